@@ -0,0 +1,68 @@
+package bml2;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 渋滞のクラスタの解析の、スレッド数に対するスケーリング
+ * （ClusterAnalysis.setPool。threads = 0 は逐次）
+ * シミュレーションと同じく analyze(BMLModel) を呼び、エンジンから行を読むところから測る。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClusterBenchmark {
+
+	@Param({"1024", "2048"})
+	int L;
+
+	@Param({"critical", "high"})
+	String density;
+
+	@Param({"0", "1", "2", "4", "8"})
+	int threads;
+
+	BMLModel bml;
+	ClusterAnalysis clusters;
+	ForkJoinPool pool;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		bml = Models.create("bitboard", L, density, 1, 0.5);
+		// 渋滞が育つまで動かす
+		for (int t = 0; t < 4 * L; t++) bml.move();
+		clusters = new ClusterAnalysis(L);
+		if (threads > 0) {
+			pool = new ForkJoinPool(threads);
+			clusters.setPool(pool);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (pool != null) pool.shutdown();
+	}
+
+	@Benchmark
+	public int analyze() {
+		clusters.analyze(bml);
+		return clusters.getLargest();
+	}
+}
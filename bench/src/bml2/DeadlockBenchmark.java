@@ -0,0 +1,79 @@
+package bml2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * デッドロックの追跡のスループット
+ * 渋滞が形成された状態（空回しの後）で、格子全体から数え直す場合と、
+ * 索引を move() のたびに逐次に更新する場合を比べる。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DeadlockBenchmark {
+
+	@Param({"64", "256", "1024", "4096"})
+	int L;
+
+	@Param({"low", "critical", "high"})
+	String density;
+
+	@Param({"2"})
+	int tau;
+
+	@Param({"0.5"})
+	double P;
+
+	ExtendedBML bml;
+	DeadlockIndex index;
+	int[][] siteX, siteY;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		bml = (ExtendedBML)Models.create("array", L, density, tau, P);
+		for (int i = 0; i < 50; i++) {
+			bml.move1period();
+		}
+		bml.getDeadlocks();
+		index = new DeadlockIndex(L);
+		int[][][] sites = bml.getSites();
+		siteX = sites[0];
+		siteY = sites[1];
+	}
+
+	/**
+	 * 格子全体から数え直す
+	 */
+	@Benchmark
+	public int rebuild(SiteUpdates counter) {
+		counter.siteUpdates += (long)L * L;
+		index.rebuild(siteX, siteY);
+		return index.size();
+	}
+
+	/**
+	 * 1ステップ動かして、索引を逐次に更新する（ModelBenchmark.move と比べる）
+	 */
+	@Benchmark
+	public int moveTracked(SiteUpdates counter) {
+		counter.siteUpdates += (long)L * L;
+		bml.move();
+		return bml.countDeadlocks();
+	}
+}
@@ -0,0 +1,75 @@
+package bml2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * エンジンごとの move(), move1period(), initialize() のスループット
+ *
+ * 例: java -jar target/benchmarks.jar ModelBenchmark -p engine=bitboard -p L=1024 -prof gc
+ * 各スレッドが独立した格子を持つので、-t でスレッド数を変えれば
+ * 掃引のように独立な試行を並べたときのスケーリングが測れる。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class ModelBenchmark {
+
+	@Param({"array", "bitboard", "sparse", "vector", "offheap"})
+	String engine;
+
+	@Param({"64", "256", "1024", "4096"})
+	int L;
+
+	@Param({"low", "critical", "high"})
+	String density;
+
+	@Param({"1", "2"})
+	int tau;
+
+	@Param({"0.5", "1.0"})
+	double P;
+
+	BMLModel bml;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		bml = Models.create(engine, L, density, tau, P);
+		// 初期配置の直後の過渡的な状態を避ける
+		for (int i = 0; i < 10; i++) {
+			bml.move1period();
+		}
+	}
+
+	@Benchmark
+	public int move(SiteUpdates counter) {
+		counter.siteUpdates += (long)L * L;
+		return bml.move();
+	}
+
+	@Benchmark
+	public void move1period(SiteUpdates counter) {
+		counter.siteUpdates += (long)L * L * 2 * tau;
+		bml.move1period();
+	}
+
+	@Benchmark
+	public void initialize() throws Exception {
+		bml.initialize();
+	}
+}
@@ -0,0 +1,64 @@
+package bml2;
+
+/**
+ * ベンチマークで使うエンジンの生成
+ */
+class Models {
+
+	private Models() {
+	}
+
+	/**
+	 * 密度の指定から k を求める
+	 * low: 自由流 (ρ = 0.01)、critical: 転移点付近 (ρ = 0.03)、high: 渋滞 (ρ = 0.3)
+	 */
+	static int k(String density, int L) {
+		double rho;
+		switch (density) {
+		case "low":
+			rho = 0.01;
+			break;
+		case "critical":
+			rho = 0.03;
+			break;
+		case "high":
+			rho = 0.3;
+			break;
+		default:
+			throw new IllegalArgumentException("density: " + density);
+		}
+		return Math.max(1, Math.min(L/2, (int)Math.round(rho * L / 2)));
+	}
+
+	/**
+	 * エンジンを作って初期化する
+	 */
+	static BMLModel create(String engine, int L, String density, int tau, double P) throws Exception {
+		int k = k(density, L);
+		BMLModel bml;
+		switch (engine) {
+		case "array":
+			bml = new ExtendedBML(L, k);
+			break;
+		case "bitboard":
+			bml = new BitboardBML(L, k);
+			break;
+		case "sparse":
+			bml = new SparseBML(L, k);
+			break;
+		case "vector":
+			bml = new VectorBML(L, k);
+			break;
+		case "offheap":
+			bml = new OffHeapBML(L, k);
+			break;
+		default:
+			throw new IllegalArgumentException("engine: " + engine);
+		}
+		bml.setRandom(new Xoshiro256(1));
+		bml.setTau(tau);
+		bml.setP(P);
+		bml.initialize();
+		return bml;
+	}
+}
@@ -0,0 +1,67 @@
+package bml2;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1つの格子の行（列）を並列に動かす場合の、スレッド数に対するスケーリング
+ * （ExtendedBML.setPool）
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelBenchmark {
+
+	@Param({"1024", "2048", "4096"})
+	int L;
+
+	@Param({"critical"})
+	String density;
+
+	@Param({"1", "2", "4", "8"})
+	int threads;
+
+	@Param({"2"})
+	int tau;
+
+	@Param({"0.5"})
+	double P;
+
+	ExtendedBML bml;
+	ForkJoinPool pool;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		bml = (ExtendedBML)Models.create("array", L, density, tau, P);
+		pool = new ForkJoinPool(threads);
+		bml.setPool(pool);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public int move(SiteUpdates counter) {
+		counter.siteUpdates += (long)L * L;
+		return bml.move();
+	}
+}
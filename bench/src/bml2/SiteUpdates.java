@@ -0,0 +1,22 @@
+package bml2;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 更新したサイト数 (L^2 / ステップ) の補助カウンタ
+ * JMH の結果に siteUpdates として毎秒の値が出力される。
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class SiteUpdates {
+	public long siteUpdates;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		siteUpdates = 0;
+	}
+}
@@ -0,0 +1,187 @@
+package bml2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * 転移の近くに点を集める適応的な掃引
+ *
+ * 図２の曲線は、自由流 (V≒1) と渋滞 (V≒0) の平らな部分がほとんどで、形が決まるのは転移の近くだけである。
+ * (tau, P) の組ごとに、粗い k の格子から始めて、次を足すことがなくなるまで繰り返す。
+ * ・隣り合う点の V の差が deltaV より大きい区間には、間の k を足す
+ * ・V の標準誤差が maxError より大きい点には、試行を（倍になるまで、maxTrials 回まで）足す
+ * 各回で足した試行は SweepRunner.trial() で並列に計算するので、保存先とキャッシュもそのまま使える。
+ * 試行のシード値は SweepRunner と同じ pointSeed() なので、同じ点の結果は通常の掃引と一致する。
+ *
+ * 出力は SweepRunner と同じ形式で、計算した k だけを並べる。
+ */
+class AdaptiveSweep {
+	private final SweepRunner runner;
+	private final int coarse;       // 最初の k の数
+	private final double deltaV;    // 隣り合う点の V の差の目標
+	private final double maxError;  // 点の V の標準誤差の目標
+	private final int maxTrials;    // 1点の試行回数の上限
+
+	private long trials = 0; // 計算した試行の数
+	private long steps = 0;  // 計算した試行のステップ数の合計
+
+	/**
+	 * 1点分の試行の結果
+	 */
+	private static class Point {
+		final List<SimulationResult> results = new ArrayList<>();
+		int requested = 0; // 計算を頼んだ試行の数
+
+		boolean failed() {
+			for (SimulationResult r : results) {
+				if (r.v < 0) return true;
+			}
+			return false;
+		}
+
+		double v() {
+			if (failed()) return -1;
+			double sum = 0;
+			for (SimulationResult r : results) sum += r.v;
+			return sum / results.size();
+		}
+
+		/**
+		 * V の標準誤差（1試行なら試行内のバッチ平均から、複数なら試行間のばらつきから）
+		 */
+		double stderr() {
+			int n = results.size();
+			if (n == 1) return results.get(0).stderr;
+			double mean = v(), sum2 = 0;
+			for (SimulationResult r : results) sum2 += (r.v - mean) * (r.v - mean);
+			return Math.sqrt(sum2 / (n - 1) / n);
+		}
+	}
+
+	/**
+	 * @param runner 試行を計算する SweepRunner（スレッド数・シード値・保存先・キャッシュを使う）
+	 * @param coarse 最初の k の数（2以上）
+	 * @param deltaV 隣り合う点の V の差の目標
+	 * @param maxError 点の V の標準誤差の目標
+	 * @param maxTrials 1点の試行回数の上限
+	 */
+	AdaptiveSweep(SweepRunner runner, int coarse, double deltaV, double maxError, int maxTrials) {
+		if (coarse < 2 || maxTrials < 1) {
+			throw new IllegalArgumentException("coarse は2以上、maxTrials は1以上でなければなりません。");
+		}
+		this.runner = runner;
+		this.coarse = coarse;
+		this.deltaV = deltaV;
+		this.maxError = maxError;
+		this.maxTrials = maxTrials;
+	}
+
+	/**
+	 * 計算した試行の数
+	 */
+	long getTrials() {
+		return trials;
+	}
+
+	/**
+	 * 計算した試行のステップ数の合計
+	 */
+	long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * 掃引を実行する
+	 * @param taus tau の値
+	 * @param Ps P の値
+	 * @param kFrom k の最小値
+	 * @param kTo k の最大値
+	 * @param out 1行ずつ受け取る出力先（呼び出したスレッドから呼ばれる）
+	 */
+	void run(int[] taus, double[] Ps, int kFrom, int kTo, Consumer<String> out) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(runner.getThreads());
+		try {
+			for (int tau : taus) {
+				out.accept("tau = " + tau);
+				for (double P : Ps) {
+					out.accept("P = " + P);
+					out.accept("[k], [ρ], [V]");
+					TreeMap<Integer, Point> curve = curve(pool, tau, P, kFrom, kTo);
+					for (Map.Entry<Integer, Point> e : curve.entrySet()) {
+						int k = e.getKey();
+						out.accept(k + ", " + (2.0*k/BMLSimulation.L) + ", " + e.getValue().v());
+					}
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * (tau, P) の1本の曲線を求める
+	 * @return k → 点
+	 */
+	private TreeMap<Integer, Point> curve(ExecutorService pool, int tau, double P, int kFrom, int kTo)
+			throws Exception {
+		TreeMap<Integer, Point> curve = new TreeMap<>();
+		int n = Math.min(coarse, kTo - kFrom + 1);
+		for (int i = 0; i < n; i++) {
+			int k = (n == 1) ? kFrom : kFrom + (int)Math.round((double)i * (kTo - kFrom) / (n - 1));
+			request(curve, k, 1);
+		}
+
+		while (true) {
+			// 頼んだ試行を並列に計算する
+			List<Future<SimulationResult>> futures = new ArrayList<>();
+			List<Point> owners = new ArrayList<>();
+			for (Map.Entry<Integer, Point> e : curve.entrySet()) {
+				int k = e.getKey();
+				Point p = e.getValue();
+				for (int trial = p.results.size(); trial < p.requested; trial++) {
+					long s = SweepRunner.pointSeed(runner.getSeed(), k, tau, P, trial);
+					futures.add(pool.submit(() -> runner.trial(k, tau, P, s)));
+					owners.add(p);
+				}
+			}
+			if (futures.isEmpty()) return curve;
+			for (int f = 0; f < futures.size(); f++) {
+				SimulationResult r = futures.get(f).get();
+				owners.get(f).results.add(r);
+				trials++;
+				steps += r.steps();
+			}
+
+			// 誤差の大きい点に試行を足す
+			for (Point p : curve.values()) {
+				int m = p.results.size();
+				if (!p.failed() && m < maxTrials && p.stderr() > maxError) {
+					p.requested = Math.min(maxTrials, Math.max(2, 2 * m));
+				}
+			}
+			// V の変化の大きい区間に k を足す
+			List<Integer> added = new ArrayList<>();
+			Map.Entry<Integer, Point> prev = null;
+			for (Map.Entry<Integer, Point> e : curve.entrySet()) {
+				if (prev != null && e.getKey() - prev.getKey() > 1
+						&& !prev.getValue().failed() && !e.getValue().failed()
+						&& Math.abs(e.getValue().v() - prev.getValue().v()) > deltaV) {
+					added.add((prev.getKey() + e.getKey()) / 2);
+				}
+				prev = e;
+			}
+			for (int k : added) request(curve, k, 1);
+		}
+	}
+
+	private static void request(TreeMap<Integer, Point> curve, int k, int trials) {
+		Point p = curve.computeIfAbsent(k, key -> new Point());
+		p.requested = Math.max(p.requested, trials);
+	}
+}
@@ -0,0 +1,164 @@
+package bml2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 別スレッドで通知する通知先
+ *
+ * post() は上限のあるキューに入れるだけで、キューが一杯なら捨てて戻る（待たない）。
+ * 通知のスレッドは、前回の通知から minInterval ミリ秒たつまで待ち、その間に溜まった通知を
+ * 改行でつないで1回にまとめる（maxLength 文字を超える分は省く）。
+ * 捨てた・省いた通知の数は、次の通知の末尾に書き添える。
+ * 通知先が例外を投げても、そのスレッドの中で捨てるので、シミュレーションには影響しない。
+ */
+class AsyncNotifier implements Notifier {
+	private static final String END = new String("END"); // 通知の終わりの印
+
+	private final Notifier target;
+	private final long minInterval; // 通知の最短間隔 [ms]
+	private final int maxLength;    // 1回の通知の最大の長さ
+	private final BlockingQueue<String> queue;
+	private final Thread thread;
+	private final AtomicLong dropped = new AtomicLong();   // 捨てた・省いた通知の数
+	private final AtomicLong delivered = new AtomicLong(); // 通知先に渡した回数
+	private volatile boolean closed = false;
+
+	/**
+	 * @param target 実際の通知先（通知のスレッドだけから呼ばれる）
+	 * @param capacity キューに溜めておける通知の数
+	 * @param minInterval 通知の最短間隔 [ms]
+	 * @param maxLength 1回の通知の最大の長さ
+	 */
+	AsyncNotifier(Notifier target, int capacity, long minInterval, int maxLength) {
+		if (capacity <= 0 || minInterval < 0 || maxLength <= 0) {
+			throw new IllegalArgumentException("capacity, maxLength は1以上、minInterval は0以上でなければなりません。");
+		}
+		this.target = target;
+		this.minInterval = minInterval;
+		this.maxLength = maxLength;
+		queue = new ArrayBlockingQueue<>(capacity);
+
+		thread = new Thread(this::deliver, "AsyncNotifier");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void post(String message) {
+		if (closed || !queue.offer(message)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 捨てた・省いた通知の数
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * 通知先に渡した回数
+	 */
+	long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * 通知のスレッド
+	 */
+	private void deliver() {
+		List<String> pending = new ArrayList<>();
+		long interval = TimeUnit.MILLISECONDS.toNanos(minInterval);
+		long next = System.nanoTime(); // 次に通知してよい時刻
+		long reported = 0;             // 書き添えた「省略」の数
+		boolean end = false;
+		while (!end) {
+			try {
+				end = add(pending, queue.take());
+				// 最短間隔まで待つ間に届いた通知もまとめる
+				long wait;
+				while (!end && (wait = next - System.nanoTime()) > 0) {
+					String s = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (s != null) end = add(pending, s);
+				}
+			} catch (InterruptedException e) {
+				end = true;
+			}
+			String s;
+			while (!end && (s = queue.poll()) != null) {
+				end = add(pending, s);
+			}
+
+			if (!pending.isEmpty()) {
+				reported = send(pending, reported);
+				next = System.nanoTime() + interval;
+			}
+			pending.clear();
+		}
+	}
+
+	/**
+	 * 通知を溜める
+	 * @return 終わりの印なら true
+	 */
+	private static boolean add(List<String> pending, String s) {
+		if (s == END) return true;
+		pending.add(s);
+		return false;
+	}
+
+	/**
+	 * 溜まった通知を1つにまとめて送る
+	 * @param reported これまでに書き添えた「省略」の数
+	 * @return 書き添えた「省略」の数
+	 */
+	private long send(List<String> messages, long reported) {
+		StringBuilder sb = new StringBuilder();
+		int n = 0;
+		for (String m : messages) {
+			if (n > 0 && sb.length() + 1 + m.length() > maxLength) break;
+			if (n > 0) sb.append('\n');
+			sb.append(m);
+			n++;
+		}
+		if (sb.length() > maxLength) sb.setLength(maxLength);
+		long skipped = dropped.addAndGet(messages.size() - n) - reported;
+		if (skipped > 0) {
+			String note = "（" + skipped + "件省略）";
+			sb.setLength(Math.max(0, Math.min(sb.length(), maxLength - note.length())));
+			sb.append(note);
+			reported += skipped;
+		}
+
+		try {
+			target.post(sb.toString());
+			delivered.incrementAndGet();
+		} catch (RuntimeException e) {
+			System.out.println("通知できません：" + e.getMessage());
+		}
+		return reported;
+	}
+
+	/**
+	 * 溜まっている通知を（最短間隔を待たずに）まとめて送ってから閉じる
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			queue.put(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			thread.interrupt();
+		}
+		target.close();
+	}
+}
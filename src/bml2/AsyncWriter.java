@@ -0,0 +1,157 @@
+package bml2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 別スレッドでまとめて書き出す書き込み器
+ *
+ * write() は上限のあるキューに入れるだけで戻り、書き出しのスレッドが溜まった分を
+ * 最大 batchSize 個ずつ取り出して、すべての書き出し先に渡す。キューが空になったら flush() する。
+ * キューが一杯のときだけ write() は空くまで待つ（背圧）。待った回数は getStalls() で分かる。
+ *
+ * 書き出しに失敗した書き出し先は以降使わず、close() でその例外を投げる。
+ * シミュレーションを止めることはしない。write() は複数のスレッドから呼び出してよい。
+ */
+class AsyncWriter<T> implements Closeable {
+	/**
+	 * 書き出し先（書き出しのスレッドだけから呼ばれる）
+	 */
+	interface Sink<T> extends Closeable {
+		/**
+		 * まとめて書き出す
+		 */
+		void write(List<T> batch) throws IOException;
+
+		/**
+		 * バッファに溜まっている分を書き出す
+		 */
+		default void flush() throws IOException {
+		}
+	}
+
+	private static final Object END = new Object(); // 書き出しの終わりの印
+
+	private final List<Sink<T>> sinks;
+	private final IOException[] errors; // 書き出し先ごとの例外
+	private final BlockingQueue<Object> queue;
+	private final int batchSize;
+	private final Thread thread;
+	private final AtomicLong stalls = new AtomicLong();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param name 書き出しのスレッドの名前
+	 * @param capacity キューに溜めておける数
+	 * @param batchSize 一度に書き出す最大の数
+	 * @param sinks 書き出し先
+	 */
+	AsyncWriter(String name, int capacity, int batchSize, List<? extends Sink<T>> sinks) {
+		if (capacity <= 0 || batchSize <= 0) {
+			throw new IllegalArgumentException("capacity, batchSize は1以上でなければなりません。");
+		}
+		this.sinks = new ArrayList<>(sinks);
+		this.errors = new IOException[sinks.size()];
+		this.queue = new ArrayBlockingQueue<>(capacity + 1);
+		this.batchSize = batchSize;
+
+		thread = new Thread(this::drain, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * 書き出しを頼む
+	 * キューが一杯なら空くまで待つ。close() の後は何もしない。
+	 */
+	void write(T item) {
+		if (closed) return;
+		if (queue.offer(item)) return;
+		stalls.incrementAndGet();
+		try {
+			while (!closed && !queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+				// 書き出しのスレッドが空けるのを待つ
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * キューが一杯で write() が待った回数
+	 */
+	long getStalls() {
+		return stalls.get();
+	}
+
+	/**
+	 * 書き出しのスレッド
+	 */
+	@SuppressWarnings("unchecked")
+	private void drain() {
+		List<Object> taken = new ArrayList<>(batchSize);
+		List<T> batch = new ArrayList<>(batchSize);
+		boolean end = false;
+		while (!end) {
+			try {
+				taken.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(taken, batchSize - 1);
+			for (Object o : taken) {
+				if (o == END) {
+					end = true;
+				} else {
+					batch.add((T)o);
+				}
+			}
+			taken.clear();
+
+			for (int s = 0; s < sinks.size(); s++) {
+				if (errors[s] != null) continue;
+				try {
+					if (!batch.isEmpty()) sinks.get(s).write(batch);
+					if (queue.isEmpty()) sinks.get(s).flush();
+				} catch (IOException e) {
+					errors[s] = e;
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * 溜まっている分をすべて書き出してから、書き出し先を閉じる
+	 * 書き出しに失敗していた場合は、最初の例外を投げる。
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			queue.put(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			thread.interrupt();
+		}
+
+		IOException first = null;
+		for (int s = 0; s < sinks.size(); s++) {
+			try {
+				sinks.get(s).close();
+			} catch (IOException e) {
+				if (errors[s] == null) errors[s] = e;
+			}
+			if (first == null) first = errors[s];
+		}
+		if (first != null) throw first;
+	}
+}
@@ -0,0 +1,148 @@
+package bml2;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * 拡張BMLモデルのシミュレーションエンジンが共通に持つ操作
+ *
+ * 格子の保持方法（int配列、ビットボードなど）はエンジンごとに異なるが、
+ * 初期配置・時間発展の規則と、move() の返す「動いた車の数」は共通である。
+ */
+public interface BMLModel {
+
+	/**
+	 * 初期配置の基本状態をセットする
+	 */
+	void initialize() throws Exception;
+
+	/**
+	 * 1回動かす
+	 * @return そのステップで動いた車の数
+	 */
+	int move();
+
+	/**
+	 * 1周期分動かす
+	 */
+	void move1period();
+
+	/**
+	 * tauのセッター
+	 */
+	void setTau(int tau);
+
+	/**
+	 * Pのセッター
+	 */
+	void setP(double P);
+
+	/**
+	 * 乱数生成器を差し替える
+	 */
+	void setRandom(RandomGenerator random);
+
+	/**
+	 * Lを返します。
+	 */
+	int getL();
+
+	/**
+	 * 車の総数を取得する
+	 */
+	int getN();
+
+	/**
+	 * kを返す
+	 */
+	int getK();
+
+	/**
+	 * tauを返す
+	 */
+	int getTau();
+
+	/**
+	 * Pを返す
+	 */
+	double getP();
+
+	/**
+	 * 現在の段階 current を返す
+	 */
+	int getCurrent();
+
+	/**
+	 * 系の状態を設定する（チェックポイントからの復元用）
+	 * 各行・列の車の数は k でなければならない。
+	 * @param siteX 横方向の車（[i][j] が 0 または 1）
+	 * @param siteY 縦方向の車（[i][j] が 0 または 1）
+	 * @param current 段階
+	 */
+	void setState(int[][] siteX, int[][] siteY, int current);
+
+	/**
+	 * 行のビット列から系の状態を設定する（チェックポイントからの復元用）
+	 * 行は j = 0, 1, ..., L-1 の順に1回ずつ読む。
+	 * 既定では配列を作って setState(int[][], int[][], int) を呼ぶので、大きな格子を扱うエンジンは置き換える。
+	 * @param rows 行 j の車（getRow() と同じ形）
+	 * @param current 段階
+	 */
+	default void setState(Rows rows, int current) {
+		int L = getL();
+		int[][] siteX = new int[L][L];
+		int[][] siteY = new int[L][L];
+		long[] x = new long[(L + 63) / 64], y = new long[(L + 63) / 64];
+		for (int j = 0; j < L; j++) {
+			rows.getRow(j, x, y);
+			for (int i = 0; i < L; i++) {
+				siteX[i][j] = (int)(x[i >>> 6] >>> i) & 1;
+				siteY[i][j] = (int)(y[i >>> 6] >>> i) & 1;
+			}
+		}
+		setState(siteX, siteY, current);
+	}
+
+	/**
+	 * サイト以外で時間発展に必要な内部状態（乱数系列の状態など）を返す
+	 * 形式はエンジンごとに異なる。
+	 * @return 内部状態（乱数生成器が Xoshiro256 でなく保存できない場合は null）
+	 */
+	long[] getAuxState();
+
+	/**
+	 * getAuxState() で得た内部状態を設定する
+	 * setState() の後に呼び出す。
+	 */
+	void setAuxState(long[] aux);
+
+	/**
+	 * 状態 (siteX, siteY, current) のハッシュ値を返す
+	 * 同じ状態には同じ値を返す。各ステップで変化した部分だけを使って逐次に更新される。
+	 */
+	long stateHash();
+
+	/**
+	 * 描画のために系の状態を与える
+	 * @return {siteX, siteY}（各 [i][j] が 0 または 1）
+	 */
+	int[][][] getSites();
+
+	/**
+	 * 行 j の車をビット列で与える（解析のために、格子全体の配列を作らずに1行ずつ読む）
+	 * サイト (i, j) はワード i/64 のビット i%64 とする（BitboardBML と同じ形）。
+	 * 状態を変えないので、動かしていない間は異なるスレッドから同時に呼び出してよい。
+	 * @param x 横方向の車を返す（長さ (L+63)/64 以上）
+	 * @param y 縦方向の車を返す（長さ (L+63)/64 以上）
+	 */
+	void getRow(int j, long[] x, long[] y);
+
+	/**
+	 * 行ごとのビット列（setState(Rows, int) に与える）
+	 */
+	interface Rows {
+		/**
+		 * 行 j の車を BMLModel.getRow() と同じ形で与える
+		 */
+		void getRow(int j, long[] x, long[] y);
+	}
+}
@@ -1,7 +1,28 @@
 package bml2;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 
 public class BMLSimulation {
@@ -11,82 +32,838 @@ public class BMLSimulation {
 	// Time interval:
 	static final int stepIgnored = 5000; //(標準2_000_000)
 	static final int stepToObtain = 2000; //(標準100_000)
+	// Adaptive: stepIgnored, stepToObtainを上限として、統計的に空回しと計測を打ち切る
+	//           false なら従来どおり固定のステップ数で測る（data/SimulationData.csv と比べられるのはこちら）
+	static final boolean adaptive = false;
+	static final double targetError = 1e-3; // 目標とするVの標準誤差
+	static final int windowPeriods = 50;    // 定常性の判定に使う区間の周期数
+	static final int batchPeriods = 10;     // バッチ平均の1バッチの周期数
+	static final int minBatches = 20;       // 打ち切る前に必要なバッチ数
 	// Trials:
 	static final int timesTrial = 1;
+	// Replica: timesTrial > 1 の場合、試行を ReplicaBML で64個ずつまとめて動かす（空回し・計測は固定ステップ数）
+	static final boolean replicaEnsemble = true;
+	// Random seed (各試行のシード値はここから導出する)
+	static final long seed = 1L;
+	// Sweep: 論文図２の (tau, P) の組と、並列に動かすスレッド数
+	static final int[] sweepTau = {1, 2};
+	static final double[] sweepP = {0.0, 0.5, 1.0};
+	static final int threads = Runtime.getRuntime().availableProcessors();
+	// Refine: "sweep refine" で、最初は refineCoarse 個の k だけを計算し、
+	//         隣り合う点の V の差が refineDeltaV を超える区間に k を、
+	//         V の標準誤差が refineError を超える点に試行を（refineMaxTrials 回まで）足していく
+	static final int refineCoarse = 9;
+	static final double refineDeltaV = 0.05;
+	static final double refineError = 0.01;
+	static final int refineMaxTrials = 16;
+	// Distributed: "sweep serve [ポート]" でコーディネータとして試行を配り、"worker ホスト[:ポート]" で計算する
+	//              ワーカーは heartbeatInterval ミリ秒ごとに生きていることを知らせ、
+	//              heartbeatTimeout ミリ秒応答のないワーカーの試行は配り直す（maxAttempts 回失敗したら V = -1）
+	//              コーディネータは distBind のアドレスで待ち受ける（"" ならすべてのインターフェース）
+	//              ワーカーを認証せず、受け取った結果を保存先とキャッシュに入れるので、広げるのは信頼できるネットワークだけにする
+	static final String distBind = "127.0.0.1";
+	static final int distPort = 5273;
+	static final long heartbeatInterval = 5_000;
+	static final long heartbeatTimeout = 30_000;
+	static final int maxAttempts = 3;
 	// Data file name
 	static final String fileName = "SimulationData.csv";
+	// Result store: 掃引の各試行の結果を追記していく列指向の保存先（"" なら保存しない）
+	//               "export [ファイル名] [文字コード]" で SimulationData.csv と同じ形式に書き出せる
+	static final String resultStoreDir = "";
+	// Cache: 試行の結果を cacheFile に記録し、同じ条件の試行は計算し直さない（"" なら使わない）
+	//        掃引をやり直したり途中で止めて再開したりしても、終わった試行は飛ばす
+	//        鍵は (L, k, tau, P, seed, stepIgnored, stepToObtain, engineVersion())
+	//        engineVersion() はクラスファイルのハッシュ値を含むので、コードや設定を変えてビルドし直すと前の結果は使わない
+	static final String cacheFile = "";
+	static final int cacheLru = 4096;
+	// Checkpoint: 空回しの途中の状態を checkpointInterval ステップごとに保存し、次回はそこから再開する
+	//             空回しを終えた状態も保存するので、同じ点をもう一度計算するときは空回しを省ける（0 なら保存しない）
+	static final long checkpointInterval = 0;
+	static final String checkpointDir = "checkpoints";
+	// Record: 各試行の格子を recordInterval ステップごとに recordDir に書き出す（0 なら記録しない）
+	//         recordFormat は PNG（連番画像）か BMLF（ランレングス・ビット詰めの1ファイル）
+	//         書き出しは別スレッドで行い、recordQueue コマまで溜めておける
+	static final long recordInterval = 0;
+	static final String recordDir = "frames";
+	static final FrameRecorder.Format recordFormat = FrameRecorder.Format.BMLF;
+	static final int recordQueue = 64;
+	// Observables: 計測中の1周期ごとの測定値（動いた台数, V, 方向別の速度, デッドロック数, クラスタ）の書き出し先
+	//              "csv" / "columnar" / "stdout" をカンマ区切りで並べる（"" なら書き出さない）
+	//              ファイル名は observablesFile に拡張子 .csv / .bmlo を付けたもの
+	//              書き出しは別スレッドでまとめて行い、observablesQueue 個まで溜めておける
+	static final String observables = "";
+	static final String observablesFile = "observables";
+	static final int observablesQueue = 1 << 16;
+	static final int observablesBatch = 1024;
+	// デッドロックを数える（engine が "array" のときだけ。逐次の追跡のぶん move() が遅くなる）
+	static final boolean observeDeadlocks = false;
+	// 渋滞のクラスタ（車のあるサイトが上下左右につながった領域）を clusterInterval ステップごとに解析し、
+	// クラスタの数・最大のクラスタ・一周するクラスタの有無を測定値に加える（0 なら解析しない）
+	static final long clusterInterval = 0;
+	// クラスタの解析を clusterThreads 個のスレッドで行の帯に分けて並列に行う（0 なら逐次）
+	static final int clusterThreads = 0;
+	// Notify: 結果の行の通知先 "none" / "log"（notifyLog に追記）/ "twitter"（起動時に PIN を入力する）
+	//         通知は別スレッドで、notifyInterval ミリ秒以上あけて溜まった分をまとめて行う（溢れた分は捨てる）
+	static final String notifyTo = "none";
+	static final String notifyLog = "notifications.log";
+	static final long notifyInterval = 60_000;
+	static final int notifyQueue = 256;
+	// Engine: "array" (ExtendedBML) / "bitboard" (BitboardBML) / "sparse" (SparseBML)
+	//         "vector" (VectorBML: SIMD を使うには実行時に --add-modules jdk.incubator.vector が必要)
+	//         "offheap" (OffHeapBML: ヒープの外に格子を置き、タイルごとにその場で動かす。大きな L 向け)
+	//         "auto" は低密度 (k < L/64) で sparse、それ以外で bitboard を使う
+	static final String engine = "array";
+	// array (ExtendedBML) の行・列を laneThreads 個のスレッドで並列に動かす（0 なら逐次）
+	// 結果はスレッド数によらない。掃引は試行を並列に動かすので、1試行の大きな L 向け
+	static final int laneThreads = 0;
+	// offheap の格子をメモリマップしたファイルに置くディレクトリ（"" ならダイレクトバッファ。-XX:MaxDirectMemorySize に注意）
+	static final String offHeapDir = "";
+
+	// 測定値の書き込み器（openObservables() で作る。なければ null）
+	private static volatile AsyncWriter<Observation> observer;
+	// bml2 のクラスファイルのハッシュ値（codeHash() で求める）
+	private static String codeHash;
+	// 試行の結果のキャッシュ（openCache() で作る。なければ null）
+	private static volatile ResultCache cache;
+	// 結果の行の通知先（openNotifier() で作る。なければ何もしない）
+	private static volatile Notifier notifier = message -> {};
+	// array の行・列を並列に動かすスレッドプール（lanePool() で作る）
+	private static ForkJoinPool lanePool;
+	// クラスタの解析に使うスレッドプール（clusterPool() で作る）
+	private static ForkJoinPool clusterPool;
+
+	/**
+	 * array の行・列を並列に動かすスレッドプール（laneThreads が 0 なら null）
+	 * すべての試行で共有する。
+	 */
+	private static synchronized ForkJoinPool lanePool() {
+		if (laneThreads <= 0) return null;
+		if (lanePool == null) lanePool = new ForkJoinPool(laneThreads);
+		return lanePool;
+	}
+
+	/**
+	 * クラスタの解析に使うスレッドプール（clusterThreads が 0 なら null）
+	 * すべての試行で共有する。
+	 */
+	private static synchronized ForkJoinPool clusterPool() {
+		if (clusterThreads <= 0) return null;
+		if (clusterPool == null) clusterPool = new ForkJoinPool(clusterThreads);
+		return clusterPool;
+	}
+
+	/**
+	 * engineで指定されたシミュレーションエンジンを作る
+	 * @param k
+	 * @return エンジンのインスタンス
+	 */
+	static BMLModel newModel(int k) {
+		switch (engine) {
+		case "array":
+			ExtendedBML bml = new ExtendedBML(L, k);
+			bml.setPool(lanePool());
+			return bml;
+		case "bitboard":
+			return new BitboardBML(L, k);
+		case "sparse":
+			return new SparseBML(L, k);
+		case "vector":
+			return new VectorBML(L, k);
+		case "offheap":
+			return new OffHeapBML(L, k, offHeapDir.isEmpty() ? null : Paths.get(offHeapDir), 0);
+		case "auto":
+			return (k < L/64) ? new SparseBML(L, k) : new BitboardBML(L, k);
+		default:
+			System.out.println("[err] engine: " + engine);
+			System.exit(1);
+			return null;
+		}
+	}
 
 	/**
 	 * 1回のシミュレーションを行なう
+	 * timesTrial回の試行の平均速度を返す。
 	 * @param k
 	 * @param tau
 	 * @param P
 	 * @return 平均速度
 	 */
 	public static double simulate(int k, int tau, double P) {
-		ExtendedBML bml = new ExtendedBML(L, k);
-		bml.setTau(tau);
-		bml.setP(P);
+		return simulateWithError(k, tau, P).v;
+	}
+
+	/**
+	 * 1回のシミュレーションを行ない、誤差と使ったステップ数も返す
+	 * timesTrial回の試行の平均をとる。
+	 * @param k
+	 * @param tau
+	 * @param P
+	 * @return 結果（初期化できない場合は v = -1）
+	 */
+	public static SimulationResult simulateWithError(int k, int tau, double P) {
+		if (replicaEnsemble && timesTrial > 1) {
+			return simulateReplicas(k, tau, P);
+		}
 
-		double[] vs = new double[timesTrial];
+		double v = 0, var = 0;
+		long warmup = 0, measure = 0;
 
 		for (int trial = 0; trial < timesTrial; trial++) {
 //			System.out.println("Trial " + trial);
-			// 初期化
+			SimulationResult r = cachedTrial(k, tau, P, SweepRunner.pointSeed(seed, k, tau, P, trial));
+			if (r.v < 0) return r;
+			v += r.v;
+			var += r.stderr * r.stderr;
+			warmup += r.warmupSteps;
+			measure += r.measureSteps;
+		}
+
+		// 試行の平均値と、その標準誤差
+		return new SimulationResult(v / timesTrial, Math.sqrt(var) / timesTrial, warmup, measure);
+	}
+
+	/**
+	 * timesTrial回の試行を ReplicaBML でまとめて行ない、平均をとる
+	 * 各試行の初期配置は simulateTrial と同じシード値から作る。
+	 * 全レプリカを同時に動かすので、空回し・計測は stepIgnored, stepToObtain の固定ステップ数とし、
+	 * 誤差は試行ごとの平均速度のばらつきから求める。
+	 * @param k
+	 * @param tau
+	 * @param P
+	 * @return 結果（初期化できない場合は v = -1）
+	 */
+	public static SimulationResult simulateReplicas(int k, int tau, double P) {
+		double sum = 0, sum2 = 0;
+
+		for (int from = 0; from < timesTrial; from += ReplicaBML.MAX_REPLICAS) {
+			int n = Math.min(ReplicaBML.MAX_REPLICAS, timesTrial - from);
+			long[] seeds = new long[n];
+			for (int r = 0; r < n; r++) {
+				seeds[r] = SweepRunner.pointSeed(seed, k, tau, P, from + r);
+			}
+
+			ReplicaBML bml = new ReplicaBML(L, k, n);
+			bml.setTau(tau);
+			bml.setP(P);
 			try {
-				bml.initialize();
+				bml.initialize(seeds);
 			} catch (Exception e) {
 				System.out.println(e.getMessage());
-				return -1;
+				return new SimulationResult(-1, Double.NaN, 0, 0);
 			}
 
 			// 空回し
-			for (int step = 0; step < stepIgnored; step++) {
+			for (int t = 0; t < stepIgnored; t++) {
 				bml.move();
 			}
 
-			// 1ステップに動こうとする車の台数(N/2)
-			int Nhalf = k * L;
 			// データ取得
-			int countMoved = 0;
-			int countToMove = 0;
+			long[] countMoved = new long[n];
+			for (int t = 0; t < stepToObtain; t++) {
+				bml.move();
+				int[] moved = bml.getMoved();
+				for (int r = 0; r < n; r++) {
+					countMoved[r] += moved[r];
+				}
+			}
 
-			for (int step = 0; step < stepToObtain; step++) {
-				countMoved += bml.move();
-				countToMove += Nhalf;
+			long countToMove = (long)k * L * stepToObtain;
+			for (int r = 0; r < n; r++) {
+				double v = ((double)countMoved[r]) / countToMove;
+				sum += v;
+				sum2 += v * v;
 			}
+		}
+
+		double mean = sum / timesTrial;
+		double se = Math.sqrt(Math.max(0, sum2 / timesTrial - mean * mean) / (timesTrial - 1));
+		return new SimulationResult(mean, se, (long)stepIgnored * timesTrial, (long)stepToObtain * timesTrial);
+	}
 
-			vs[trial] = ((double)countMoved) / countToMove;
+	/**
+	 * 結果に影響する設定とクラスファイルのハッシュ値を並べた文字列（キャッシュの鍵に含める）
+	 */
+	static String engineVersion() {
+		return "code=" + codeHash() + " engine=" + engine + " adaptive=" + adaptive
+				+ (adaptive ? " targetError=" + targetError + " windowPeriods=" + windowPeriods
+						+ " batchPeriods=" + batchPeriods + " minBatches=" + minBatches : "");
+	}
+
+	/**
+	 * 試行のキャッシュの鍵
+	 */
+	static ResultCache.Key cacheKey(int k, int tau, double P, long seed) {
+		return new ResultCache.Key(L, k, tau, P, seed, stepIgnored, stepToObtain,
+				ResultCache.versionHash(engineVersion()));
+	}
+
+	/**
+	 * キャッシュにあればその結果を返し、なければ試行を行なって記録する
+	 * @return 結果（初期化できない場合は v = -1）
+	 */
+	static SimulationResult cachedTrial(int k, int tau, double P, long seed) {
+		ResultCache c = cache;
+		ResultCache.Key key = (c != null) ? cacheKey(k, tau, P, seed) : null;
+		if (key != null) {
+			try {
+				SimulationResult r = c.get(key);
+				if (r != null) return r;
+			} catch (IOException e) {
+				System.out.println("キャッシュを読めません：" + e.getMessage());
+			}
+		}
+		SimulationResult r = simulateTrialWithError(k, tau, P, seed);
+		if (key != null && r.v >= 0) {
+			try {
+				c.put(key, r);
+			} catch (IOException e) {
+				System.out.println("キャッシュに書き込めません：" + e.getMessage());
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * 1回の試行を行なう
+	 * エンジンを新しく作るので、異なるスレッドから同時に呼び出してよい。
+	 * @param k
+	 * @param tau
+	 * @param P
+	 * @param seed 乱数のシード値
+	 * @return 平均速度（初期化できない場合は -1）
+	 */
+	public static double simulateTrial(int k, int tau, double P, long seed) {
+		return simulateTrialWithError(k, tau, P, seed).v;
+	}
+
+	/**
+	 * 1回の試行を行ない、誤差と使ったステップ数も返す
+	 *
+	 * adaptive が false の場合は stepIgnored ステップ空回ししてから stepToObtain ステップ計測する。
+	 * どちらも 2*tau の倍数でなければならない。
+	 * true の場合、それらは上限として扱い、
+	 * ・windowPeriods 周期ごとの平均速度が前の区間と誤差の範囲で一致したら空回しを終え、
+	 * ・batchPeriods 周期ごとのバッチ平均から求めた標準誤差が targetError を下回ったら計測を終える。
+	 * 空回し中に1区間まったく車が動かなければ、凍結したとみなして V = 0 を返す。
+	 * どちらの場合も、周期軌道や凍結が確認できたら残りのステップは計算で求める（CycleDetector）。
+	 * checkpointInterval が正なら空回しの途中と終わりの状態を保存し、保存した状態があればそこから再開する。
+	 * recordInterval が正なら、その間隔で格子を書き出す。
+	 * @param k
+	 * @param tau
+	 * @param P
+	 * @param seed 乱数のシード値
+	 * @return 結果（初期化できない場合は v = -1）
+	 */
+	public static SimulationResult simulateTrialWithError(int k, int tau, double P, long seed) {
+		// 計測は1周期ずつ行う（空回しも周期の区切りで終わらなければならない）
+		if (stepIgnored % (2 * tau) != 0 || stepToObtain % (2 * tau) != 0) {
+			System.out.println("[err] stepIgnored, stepToObtain は 2*tau の倍数でなければなりません: tau = " + tau);
+			System.exit(1);
+		}
+		FrameRecorder rec = openRecorder(k, tau, P, seed);
+		try {
+			return simulateTrialWithError(k, tau, P, seed, rec);
+		} finally {
+			if (rec != null) {
+				try {
+					rec.close();
+				} catch (IOException e) {
+					System.out.println("コマを書き出せません：" + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private static SimulationResult simulateTrialWithError(int k, int tau, double P, long seed, FrameRecorder rec) {
+		BMLModel bml = newModel(k);
+		bml.setRandom(new Xoshiro256(seed));
+		bml.setTau(tau);
+		bml.setP(P);
+
+		// 初期化
+		try {
+			bml.initialize();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return new SimulationResult(-1, Double.NaN, 0, 0);
 		}
 
-		// vsの平均値を返す
-		double v = 0;
-		for (double _v : vs) v += _v;
-		return (v / timesTrial);
+		// 1ステップに動こうとする車の台数(N/2)
+		long Nhalf = (long)k * L;
+		// 1周期のステップ数と、1周期に動こうとする車の延べ台数
+		int period = 2 * tau;
+		long perPeriod = Nhalf * period;
+
+		// チェックポイントがあれば、そこから再開する
+		Path cp = checkpointPath(k, tau, P, seed);
+		long warmup = 0;
+		boolean warmedUp = false;
+		if (cp != null && Files.exists(cp)) {
+			try {
+				Checkpoint c = Checkpoint.load(bml, cp);
+				warmup = c.step;
+				warmedUp = c.warmedUp;
+			} catch (IOException e) {
+				System.out.println("チェックポイントを読み込めません：" + e.getMessage());
+				try {
+					bml.setRandom(new Xoshiro256(seed));
+					bml.initialize();
+				} catch (Exception e1) {
+					System.out.println(e1.getMessage());
+					return new SimulationResult(-1, Double.NaN, 0, 0);
+				}
+			}
+		}
+		// 周期の区切りでだけ保存する（CycleDetector は周期の区切りから始める必要がある）
+		long interval = (checkpointInterval + period - 1) / period * period;
+		long saved = warmup;
+
+		// 周期軌道・凍結を検出して、残りのステップを計算で求める
+		CycleDetector det = new CycleDetector(bml, tau, P);
+		if (rec != null) det.setRecorder(rec, warmup);
+
+		// 空回し
+		if (warmedUp) {
+			// 保存した状態は空回しを終えている
+		} else if (!adaptive) {
+			while (warmup < stepIgnored) {
+				long n = stepIgnored - warmup;
+				if (cp != null && n > interval) n = interval;
+				det.advance(n);
+				warmup += n;
+				if (cp != null && warmup < stepIgnored && !det.isCyclic()) {
+					saveCheckpoint(bml, cp, warmup, false);
+				}
+			}
+		} else {
+			double prevMean = Double.NaN, prevSe = 0;
+			while (warmup < stepIgnored && !det.isCyclic()) {
+				long moved = 0;
+				double sum = 0, sum2 = 0;
+				for (int p = 0; p < windowPeriods; p++) {
+					long m = 0;
+					for (int t = 0; t < period; t++) m += det.move();
+					double v = (double)m / perPeriod;
+					sum += v;
+					sum2 += v * v;
+					moved += m;
+				}
+				warmup += (long)windowPeriods * period;
+
+				if (moved == 0) {
+					// 完全に詰まっている
+					return new SimulationResult(0, 0, warmup, 0);
+				}
+				double mean = sum / windowPeriods;
+				double se = Math.sqrt(Math.max(0, sum2 / windowPeriods - mean * mean) / windowPeriods);
+				if (!Double.isNaN(prevMean)
+						&& Math.abs(mean - prevMean) <= 2 * Math.sqrt(se * se + prevSe * prevSe)) {
+					break;
+				}
+				prevMean = mean;
+				prevSe = se;
+
+				if (cp != null && warmup - saved >= interval && !det.isCyclic()) {
+					saveCheckpoint(bml, cp, warmup, false);
+					saved = warmup;
+				}
+			}
+		}
+		// 空回しを終えた状態を保存する（周期を使って飛ばした場合はエンジンの状態が進んでいないので保存しない）
+		if (cp != null && !warmedUp && !det.isCyclic() && warmup % period == 0) {
+			saveCheckpoint(bml, cp, warmup, true);
+		}
+
+		// データ取得
+		long countMoved = 0;
+		long countToMove = 0;
+		long measure = 0;
+		BatchMeans bm = new BatchMeans(batchPeriods);
+		ClusterAnalysis clusters = null;
+		long every = clusterInterval; // 解析の間隔（0 なら解析しない）
+		long nextCluster = 0; // 次にクラスタを解析するステップ数
+
+		while (measure < stepToObtain) {
+			if (det.isCyclic()) {
+				// 残りは周期の繰り返しなので、計算で求める
+				long rest = stepToObtain - measure;
+				countMoved += det.advance(rest);
+				countToMove += Nhalf * rest;
+				measure = stepToObtain;
+				return new SimulationResult(((double)countMoved) / countToMove, 0, warmup, measure);
+			}
+
+			// 周期の前半は横方向、後半は縦方向の車が動く
+			long mx = 0, my = 0;
+			for (int t = 0; t < tau; t++) mx += det.move();
+			for (int t = 0; t < tau; t++) my += det.move();
+			long m = mx + my;
+			measure += period;
+			countMoved += m;
+			countToMove += perPeriod;
+			bm.add((double)m / perPeriod);
+
+			AsyncWriter<Observation> obs = observer;
+			if (obs != null) {
+				double half = (double)Nhalf * tau;
+				int deadlocks = observeDeadlocks ? ((ExtendedBML)bml).countDeadlocks() : -1;
+				int nc = -1, largest = -1, percolates = -1;
+				if (every > 0 && warmup + measure >= nextCluster) {
+					if (clusters == null) {
+						clusters = new ClusterAnalysis(L);
+						clusters.setPool(clusterPool());
+					}
+					clusters.analyze(bml);
+					nc = clusters.getClusters();
+					largest = clusters.getLargest();
+					percolates = clusters.percolates() ? 1 : 0;
+					nextCluster = (warmup + measure) / every * every + every;
+				}
+				obs.write(new Observation(k, tau, P, seed, warmup + measure,
+						m, m / (2 * half), mx / half, my / half, deadlocks, nc, largest, percolates));
+			}
+
+			if (adaptive && bm.batches() >= minBatches && bm.stderr() <= targetError) break;
+		}
+
+		return new SimulationResult(((double)countMoved) / countToMove, bm.stderr(), warmup, measure);
 	}
 
 
 	/**
-	 * 文字列を表示してファイルに書き込みます。
-	 * @param fw FileWriterオブジェクト
-	 * @param str 文字列
+	 * 試行のチェックポイントのファイル名
+	 * @return ファイルのパス（checkpointInterval が 0 なら null）
 	 */
-	public static void putFile(FileWriter fw, String str) {
-		String br = System.getProperty("line.separator");
-		System.out.println(str);
+	static Path checkpointPath(int k, int tau, double P, long seed) {
+		if (checkpointInterval <= 0) return null;
+		// 空回しの長さとコードが同じときだけ、保存した状態から再開する
+		return Paths.get(checkpointDir, String.format("L%d_k%d_tau%d_P%s_%s_%016x_w%d_%s.ckpt",
+				L, k, tau, P, engine, seed, stepIgnored, codeHash()));
+	}
 
-		MyTwitter.tweet(str);
+	/**
+	 * bml2 パッケージのクラスファイルのハッシュ値（16桁の16進数）
+	 * クラスファイルは設定の定数も含むので、コードや設定を変えてビルドし直すと変わる。
+	 * チェックポイントのファイル名に含めて、違う条件で保存した状態から再開しないようにする。
+	 * クラスファイルを読めなければ "unknown" を返す。
+	 */
+	static synchronized String codeHash() {
+		if (codeHash != null) return codeHash;
+		try {
+			// クラスファイルの名前と中身を、名前の順に並べる
+			SortedMap<String, byte[]> classes = new TreeMap<>();
+			Path loc = Paths.get(BMLSimulation.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (Files.isDirectory(loc)) {
+				try (DirectoryStream<Path> ds = Files.newDirectoryStream(loc.resolve("bml2"), "*.class")) {
+					for (Path f : ds) classes.put(f.getFileName().toString(), Files.readAllBytes(f));
+				}
+			} else {
+				try (JarFile jar = new JarFile(loc.toFile())) {
+					for (JarEntry e : Collections.list(jar.entries())) {
+						String name = e.getName();
+						if (!name.startsWith("bml2/") || !name.endsWith(".class")) continue;
+						try (InputStream in = jar.getInputStream(e)) {
+							classes.put(name.substring(5), in.readAllBytes());
+						}
+					}
+				}
+			}
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+				md.update(c.getKey().getBytes(StandardCharsets.UTF_8));
+				md.update(c.getValue());
+			}
+			codeHash = String.format("%016x", ByteBuffer.wrap(md.digest()).getLong());
+		} catch (IOException | URISyntaxException | GeneralSecurityException | RuntimeException e) {
+			System.out.println("クラスファイルを読めないので、コードの変更を区別できません：" + e);
+			codeHash = "unknown";
+		}
+		return codeHash;
+	}
+
+	/**
+	 * 試行のコマの記録器を作る
+	 * 作れなくてもシミュレーションは続ける。
+	 * @return 記録器（recordInterval が 0 か、作れなければ null）
+	 */
+	static FrameRecorder openRecorder(int k, int tau, double P, long seed) {
+		if (recordInterval <= 0) return null;
+		Path dir = Paths.get(recordDir,
+				String.format("L%d_k%d_tau%d_P%s_%s_%016x", L, k, tau, P, engine, seed));
+		try {
+			return new FrameRecorder(dir, recordFormat, L, recordInterval, recordQueue);
+		} catch (IOException e) {
+			System.out.println("コマの書き出し先を作れません：" + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * チェックポイントを保存する
+	 * 保存できなくてもシミュレーションは続ける。
+	 */
+	private static void saveCheckpoint(BMLModel bml, Path cp, long step, boolean warmedUp) {
+		try {
+			Checkpoint.save(bml, cp, step, warmedUp);
+		} catch (IOException e) {
+			System.out.println("チェックポイントを保存できません：" + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * 測定値の書き込み器を作る（observables が空なら何もしない）
+	 * 作れない書き出し先は飛ばす。
+	 */
+	static void openObservables() {
+		if (observables.isEmpty()) return;
+		if (observeDeadlocks && !engine.equals("array")) {
+			System.out.println("[err] observeDeadlocks は engine が \"array\" のときだけ使えます: " + engine);
+			System.exit(1);
+		}
+		List<AsyncWriter.Sink<Observation>> sinks = new ArrayList<>();
+		for (String name : observables.split(",")) {
+			try {
+				switch (name.trim()) {
+				case "csv":
+					sinks.add(ObservationSinks.csv(Paths.get(observablesFile + ".csv")));
+					break;
+				case "columnar":
+					sinks.add(ObservationSinks.columnar(Paths.get(observablesFile + ".bmlo")));
+					break;
+				case "stdout":
+					sinks.add(ObservationSinks.stdout());
+					break;
+				default:
+					System.out.println("[err] observables: " + name);
+					System.exit(1);
+				}
+			} catch (IOException e) {
+				System.out.println("測定値の書き出し先を作れません：" + e.getMessage());
+			}
+		}
+		if (!sinks.isEmpty()) {
+			observer = new AsyncWriter<>("observables", observablesQueue, observablesBatch, sinks);
+		}
+	}
+
+	/**
+	 * 溜まっている測定値をすべて書き出して閉じる
+	 */
+	static void closeObservables() {
+		AsyncWriter<Observation> obs = observer;
+		if (obs == null) return;
+		observer = null;
+		try {
+			obs.close();
+		} catch (IOException e) {
+			System.out.println("測定値を書き出せません：" + e.getMessage());
+		}
+		if (obs.getStalls() > 0) {
+			System.out.println("測定値の書き出しが追いつかず、" + obs.getStalls() + "回待ちました。");
+		}
+	}
+
+
+	/**
+	 * 試行の結果のキャッシュを開く（cacheFile が空なら何もしない）
+	 */
+	static void openCache() {
+		if (cacheFile.isEmpty()) return;
+		try {
+			cache = new ResultCache(Paths.get(cacheFile), cacheLru);
+			System.out.println("キャッシュ：" + cache.size() + "件の試行を記録済み（同じ条件の試行は計算せず、"
+					+ cacheFile + " に記録した結果を使います。版 " + codeHash() + "）");
+		} catch (IOException e) {
+			System.out.println("キャッシュを開けません：" + e.getMessage());
+		}
+	}
 
+	/**
+	 * キャッシュを閉じる
+	 */
+	static void closeCache() {
+		ResultCache c = cache;
+		if (c == null) return;
+		cache = null;
+		long[] stats = c.getStats();
 		try {
-			fw.write(str + br);
+			c.close();
 		} catch (IOException e) {
-			System.out.println("ファイルに書き込めません。");
+			System.out.println("キャッシュを閉じられません：" + e.getMessage());
+		}
+		if (stats[0] > 0) {
+			System.out.println("キャッシュ：" + stats[0] + "件の試行を省きました。");
+		}
+	}
+
+	/**
+	 * notifyTo で指定された通知先を作る
+	 */
+	static void openNotifier() {
+		Notifier target;
+		int maxLength = 1000;
+		switch (notifyTo) {
+		case "none":
+			return;
+		case "log":
 			try {
+				target = new LogNotifier(Paths.get(notifyLog));
+			} catch (IOException e) {
+				System.out.println("通知の書き出し先を作れません：" + e.getMessage());
+				return;
+			}
+			break;
+		case "twitter":
+			MyTwitter.initialize();
+			target = new TwitterNotifier();
+			maxLength = TwitterNotifier.MAX_LENGTH;
+			break;
+		default:
+			System.out.println("[err] notifyTo: " + notifyTo);
+			System.exit(1);
+			return;
+		}
+		notifier = new AsyncNotifier(target, notifyQueue, notifyInterval, maxLength);
+	}
+
+	/**
+	 * 溜まっている通知を送って閉じる
+	 */
+	static void closeNotifier() {
+		Notifier n = notifier;
+		notifier = message -> {};
+		n.close();
+	}
+
+
+	/**
+	 * 結果の行を、表示・通知・ファイルへの書き込みに回す書き出し先
+	 * ファイルに書き込めなくなっても、表示と投稿は続ける。
+	 */
+	static AsyncWriter.Sink<String> resultSink(Writer fw) {
+		return new AsyncWriter.Sink<String>() {
+			private final String br = System.getProperty("line.separator");
+			private boolean failed = false;
+
+			@Override
+			public void write(List<String> batch) throws IOException {
+				for (String str : batch) {
+					System.out.println(str);
+					notifier.post(str);
+				}
+				if (failed) return;
+				try {
+					for (String str : batch) fw.write(str + br);
+				} catch (IOException e) {
+					failed = true;
+					System.out.println("ファイルに書き込めません。");
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if (!failed) fw.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
 				fw.close();
-			} catch (IOException e1) {
 			}
+		};
+	}
+
+
+	/**
+	 * 論文図２のプロットデータを取得します。
+	 * すべての (k, tau, P, 試行) を並列に計算し、
+	 * 終わった点から順に [k], [ρ], [V] の形式でファイルに書き込みます。
+	 * 表示・通知・書き込みは別スレッドで行うので、計算を待たせません。
+	 */
+	public static void sweep() throws Exception {
+		sweep(false);
+	}
+
+	/**
+	 * 論文図２のプロットデータを取得します。
+	 * refine が true なら、粗い k の格子から始めて転移の近くに点と試行を足していきます（AdaptiveSweep）。
+	 */
+	public static void sweep(boolean refine) throws Exception {
+		Writer fw = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8);
+		AsyncWriter<String> out = new AsyncWriter<>("results", 1024, 64, List.of(resultSink(fw)));
+		ResultStore store = resultStoreDir.isEmpty() ? null : ResultStore.open(Paths.get(resultStoreDir));
+		try {
+			SweepRunner runner = new SweepRunner(threads, seed);
+			runner.setStore(store);
+			runner.setCache(cache);
+			if (refine) {
+				AdaptiveSweep as = new AdaptiveSweep(runner, refineCoarse, refineDeltaV, refineError, refineMaxTrials);
+				as.run(sweepTau, sweepP, 1, L/2, out::write);
+				long full = (long)sweepTau.length * sweepP.length * (L/2) * timesTrial;
+				System.out.println("試行 " + as.getTrials() + " 回（すべての点では " + full + " 回）、"
+						+ as.getSteps() + " ステップ");
+			} else {
+				runner.run(sweepTau, sweepP, 1, L/2, timesTrial, out::write);
+			}
+		} finally {
+			out.close();
+			if (store != null) store.close();
+		}
+	}
+
+
+	/**
+	 * 論文図２のプロットデータを、ワーカーに配って取得します（SweepCoordinator）。
+	 * 出力は sweep() と同じで、ワーカーの数や計算の順番によりません。
+	 * @param port 待ち受けるポート
+	 */
+	public static void serve(int port) throws Exception {
+		Writer fw = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8);
+		AsyncWriter<String> out = new AsyncWriter<>("results", 1024, 64, List.of(resultSink(fw)));
+		ResultStore store = resultStoreDir.isEmpty() ? null : ResultStore.open(Paths.get(resultStoreDir));
+		try {
+			InetAddress bind = distBind.isEmpty() ? null : InetAddress.getByName(distBind);
+			SweepCoordinator coordinator = new SweepCoordinator(bind, port, seed, heartbeatTimeout, maxAttempts);
+			coordinator.setStore(store);
+			coordinator.setCache(cache);
+			coordinator.run(sweepTau, sweepP, 1, L/2, timesTrial, out::write);
+		} finally {
+			out.close();
+			if (store != null) store.close();
+		}
+	}
+
+	/**
+	 * コーディネータから試行を受け取って計算します（SweepWorker）。
+	 * @param host コーディネータのホスト
+	 * @param port コーディネータのポート
+	 */
+	public static void work(String host, int port) throws Exception {
+		// キャッシュはコーディネータが記録するので、ワーカーは読み書きしない
+		SweepRunner runner = new SweepRunner(threads, seed);
+		SweepWorker worker = new SweepWorker(host, port, runner, heartbeatInterval);
+		worker.run();
+		System.out.println("試行 " + worker.getTrials() + " 回を計算しました。");
+	}
+
+
+	/**
+	 * 保存先の結果を SimulationData.csv と同じ形式で書き出します。
+	 * 同じ点の試行は平均をとります。
+	 * @param file 書き出すファイル
+	 * @param charset 文字コード（"UTF-8", "Shift_JIS" など）
+	 */
+	public static void export(String file, String charset) throws IOException {
+		if (resultStoreDir.isEmpty()) {
+			System.out.println("[err] resultStoreDir が指定されていません。");
 			System.exit(1);
 		}
+		try (ResultStore store = ResultStore.open(Paths.get(resultStoreDir));
+				Writer w = Files.newBufferedWriter(Paths.get(file), Charset.forName(charset))) {
+			store.exportCsv(w, L);
+			System.out.println(store.size() + "行から " + file + " に書き出しました。");
+		}
 	}
 
 
@@ -95,9 +872,64 @@ public class BMLSimulation {
 	 *
 	 * 論文図２に示される、異なるPにおける256*256格子上の
 	 * 密度ρに対する平均速度Vのプロットデータを取得します。
+	 * 引数に sweep を与えると、図２のすべての点を計算します（sweep refine なら転移の近くだけ細かく）。
+	 * sweep serve [ポート] なら試行をワーカーに配り、worker ホスト[:ポート] でワーカーとして計算します。
+	 * export を与えると、保存先の結果を CSV に書き出します。
 	 *
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws Exception {
+
+		openNotifier();
+		openObservables();
+		// ワーカーはキャッシュを使わない（同じマシンのコーディネータがジャーナルを開いている）
+		boolean worker = args.length > 0 && args[0].equals("worker");
+		if (!worker) openCache();
+		try {
+			run(args);
+		} finally {
+			closeCache();
+			closeObservables();
+			closeNotifier();
+		}
+	}
+
+	private static void run(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("export")) {
+			export(args.length > 1 ? args[1] : fileName, args.length > 2 ? args[2] : "UTF-8");
+			return;
+		}
+
+		if (args.length > 1 && args[0].equals("sweep") && args[1].equals("serve")) {
+			int port = args.length > 2 ? Integer.parseInt(args[2]) : distPort;
+			System.out.println((distBind.isEmpty() ? "" : distBind + " の") + "ポート " + port + " でワーカーを待ちます。");
+
+			long tStart = System.currentTimeMillis();
+			serve(port);
+			long tEnd = System.currentTimeMillis();
+
+			System.out.println("経過時間：" + ((double)(tEnd - tStart)/1000) + "秒");
+			return;
+		}
+
+		if (args.length > 1 && args[0].equals("worker")) {
+			String[] hp = args[1].split(":");
+			int port = hp.length > 1 ? Integer.parseInt(hp[1]) : distPort;
+			System.out.println(hp[0] + ":" + port + " から試行を受け取ります。（" + threads + "スレッド）");
+			work(hp[0], port);
+			return;
+		}
+
+		if (args.length > 0 && args[0].equals("sweep")) {
+			boolean refine = args.length > 1 && args[1].equals("refine");
+			System.out.println("掃引を開始します。（" + threads + "スレッド" + (refine ? "、適応的" : "") + "）");
+
+			long tStart = System.currentTimeMillis();
+			sweep(refine);
+			long tEnd = System.currentTimeMillis();
+
+			System.out.println("経過時間：" + ((double)(tEnd - tStart)/1000) + "秒");
+			return;
+		}
 
 		int tau = 2;
 		double P = 0.5;
@@ -106,7 +938,7 @@ public class BMLSimulation {
 		System.out.println("シミュレーションを開始します。");
 
 		long tStart = System.currentTimeMillis();
-		simulate(k, tau, P);
+		System.out.println(simulateWithError(k, tau, P));
 		long tEnd = System.currentTimeMillis();
 
 		System.out.println("経過時間：" + ((double)(tEnd - tStart)/1000) + "秒");
@@ -0,0 +1,62 @@
+package bml2;
+
+/**
+ * バッチ平均法による逐次統計
+ *
+ * 値を batchSize 個ずつのバッチにまとめ、バッチ平均の平均と分散を
+ * Welford の方法で逐次に更新する。時間相関のある系列でも、
+ * バッチが相関時間より十分長ければ平均の標準誤差を見積もれる。
+ */
+class BatchMeans {
+	private final int batchSize;
+	private double batchSum = 0; // 現在のバッチの和
+	private int inBatch = 0;     // 現在のバッチの値の数
+	private long batches = 0;    // 完了したバッチの数
+	private double mean = 0;     // バッチ平均の平均
+	private double m2 = 0;       // バッチ平均の偏差平方和
+
+	/**
+	 * @param batchSize 1バッチあたりの値の数
+	 */
+	BatchMeans(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * 値を1つ加える
+	 */
+	void add(double x) {
+		batchSum += x;
+		if (++inBatch == batchSize) {
+			double b = batchSum / batchSize;
+			batches++;
+			double d = b - mean;
+			mean += d / batches;
+			m2 += d * (b - mean);
+			batchSum = 0;
+			inBatch = 0;
+		}
+	}
+
+	/**
+	 * 完了したバッチの数
+	 */
+	long batches() {
+		return batches;
+	}
+
+	/**
+	 * 完了したバッチの平均
+	 */
+	double mean() {
+		return mean;
+	}
+
+	/**
+	 * 平均の標準誤差（バッチが2つ未満の場合は NaN）
+	 */
+	double stderr() {
+		if (batches < 2) return Double.NaN;
+		return Math.sqrt(m2 / (batches - 1) / batches);
+	}
+}
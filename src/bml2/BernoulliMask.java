@@ -0,0 +1,107 @@
+package bml2;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * 各ビットが独立に確率 p で 1 になる64ビットのマスクを生成する
+ *
+ * スロースタート効果の「留まる」判定をサイトごとに nextDouble() で行う代わりに、
+ * 64サイト分をまとめて作るために使う。
+ *
+ * p を 2^-32 単位に丸め、その2進展開の桁ごとに乱数ワードを AND/OR で重ねる
+ * （必要なワード数は展開の桁数で、p = 0.5 なら1個）。
+ * p が 0 や 1 に近く桁数が多い場合は、1 になるビットの間隔を幾何分布で飛ばして求める。
+ * 後者はマスクをまたいで間隔を持ち越すので、インスタンスは乱数系列ごとに1つ使う。
+ */
+class BernoulliMask {
+	private static final int PRECISION = 32;
+
+	private final double p;
+	private final long q;          // round(p * 2^32)
+	private final int lowBit;      // 2進展開の最下位の桁
+	private final boolean geometric;
+	private final boolean inverted; // 幾何分布で 1-p のビットを求めて反転する場合
+	private final double logQ;     // log(1 - 幾何分布の成功確率)
+	private long gap = -1;         // 次に立つビットまでの残りの間隔
+
+	/**
+	 * @param p 各ビットが 1 になる確率
+	 */
+	BernoulliMask(double p) {
+		this.p = p;
+		q = Math.round(Math.min(Math.max(p, 0.0), 1.0) * (1L << PRECISION));
+		lowBit = (q == 0 ? PRECISION : Long.numberOfTrailingZeros(q));
+
+		double minP = Math.min(p, 1.0 - p);
+		// 展開の桁数が多く、1 (または 0) のビットが疎な場合は幾何分布を使う
+		geometric = (PRECISION - lowBit > 8) && minP < 1.0 / 16;
+		inverted = geometric && p > 0.5;
+		logQ = Math.log1p(-minP);
+	}
+
+	/**
+	 * 確率を返す
+	 */
+	double getP() {
+		return p;
+	}
+
+	/**
+	 * 幾何分布で持ち越している間隔（持ち越しがなければ -1）
+	 */
+	long getGap() {
+		return gap;
+	}
+
+	/**
+	 * 持ち越す間隔を設定する（チェックポイントからの復元用）
+	 */
+	void setGap(long gap) {
+		this.gap = gap;
+	}
+
+	/**
+	 * マスクを1つ生成する
+	 * @param random 乱数生成器
+	 * @return 各ビットが独立に確率 p で 1 になる64ビット
+	 */
+	long next(RandomGenerator random) {
+		if (q == 0) return 0L;
+		if (q == 1L << PRECISION) return -1L;
+
+		if (geometric) {
+			long mask = 0;
+			int pos = 0;
+			while (true) {
+				if (gap < 0) gap = skip(random);
+				if (gap >= 64 - pos) {
+					gap -= 64 - pos;
+					break;
+				}
+				pos += (int)gap;
+				mask |= 1L << pos;
+				pos++;
+				gap = -1;
+				if (pos == 64) break;
+			}
+			return inverted ? ~mask : mask;
+		}
+
+		// 2進展開の下位の桁から順に重ねる
+		long mask = 0;
+		for (int b = lowBit; b < PRECISION; b++) {
+			long rnd = random.nextLong();
+			mask = ((q >>> b) & 1L) != 0 ? (mask | rnd) : (mask & rnd);
+		}
+		return mask;
+	}
+
+	/**
+	 * 次に立つビットまでに飛ばすビット数を幾何分布から引く
+	 */
+	private long skip(RandomGenerator random) {
+		double u = 1.0 - random.nextDouble(); // (0, 1]
+		double g = Math.floor(Math.log(u) / logQ);
+		return (g >= Long.MAX_VALUE ? Long.MAX_VALUE : (long)g);
+	}
+}
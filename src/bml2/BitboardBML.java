@@ -0,0 +1,388 @@
+package bml2;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * ビットボードによる拡張BMLモデル
+ *
+ * ExtendedBML と同じ規則で時間発展するが、格子の各行を long[] のビット列として持ち、
+ * 64サイト分をまとめてシフト・マスク演算で動かす。
+ * 行 j のサイト i はワード i/64 のビット i%64 に対応する（横・縦方向の車とも行優先）。
+ *
+ * 横方向の車は行内の巡回シフトで「前方が空いているか」を調べる（ルール184と同じ形）。
+ * 縦方向の車は上下の行との論理演算で動かし、偶数列（上向き）と奇数列（下向き）はマスクで区別する。
+ */
+public class BitboardBML implements BMLModel {
+	// 偶数列・奇数列のビットマスク
+	private static final long EVEN = 0x5555555555555555L;
+	private static final long ODD  = 0xAAAAAAAAAAAAAAAAL;
+
+	private long[][] x, y;   // 横方向・縦方向の車 [j][w]
+	private long[][] nx, ny; // 次のステップの書き込み先（参照の交換で使い回す）
+	private long[][] mv;     // 縦方向の移動マスク [j][w]
+	private long[] mrow;     // 横方向の移動マスク（1行分）
+	private int L; // 正方格子の一辺の数
+	private int k; // 最小密度の倍数定数
+	private int nw; // 1行あたりのワード数
+	private int r;  // 最終ワードの有効ビット数
+	private long lastMask; // 最終ワードの有効ビット
+	private int tau = 1; // 信号機の周期
+	private double P = 1.0; // スロースタート効果
+	private int current = 0; // 現在の段階
+	private long hash; // 状態のハッシュ値（段階 current を除く。ワード単位で更新する）
+	private RandomGenerator random; // インスタンスごとの乱数生成器
+	private BernoulliMask stayMask = new BernoulliMask(0.0); // スロースタート効果で留まる車（確率 1-P）
+
+	/**
+	 * コンストラクタ
+	 * @param L 正方格子の一辺の数（正の偶数）
+	 * @param k 最小密度の倍数定数（ρ=k*ρmin）
+	 */
+	BitboardBML(int L, int k) {
+		random = new Xoshiro256();
+
+		if (L <= 0 || L % 2 != 0) {
+			System.out.println("[err] Lは正の偶数でなければなりません。");
+			System.exit(1);
+		}
+		if (k < 1 || L/2 < k) {
+			System.out.println("[err] kは1以上L/2以下でなければなりません。");
+			System.exit(1);
+		}
+
+		this.L = L;
+		this.k = k;
+		nw = (L + 63) / 64;
+		r = L - 64 * (nw - 1);
+		lastMask = (r == 64 ? -1L : (1L << r) - 1);
+		x = new long[L][nw];
+		y = new long[L][nw];
+		nx = new long[L][nw];
+		ny = new long[L][nw];
+		mv = new long[L][nw];
+		mrow = new long[nw];
+	}
+
+	/**
+	 * 乱数のシード値を指定するコンストラクタ
+	 * @param L
+	 * @param k
+	 * @param 乱数のシード値
+	 */
+	BitboardBML(int L, int k, long seed) {
+		this(L, k);
+		random = new Xoshiro256(seed);
+	}
+
+	@Override
+	public void setRandom(RandomGenerator random) {
+		this.random = random;
+	}
+
+	@Override
+	public int getL() {
+		return L;
+	}
+
+	@Override
+	public int getN() {
+		return 2 * k * L;
+	}
+
+	@Override
+	public int getK() {
+		return k;
+	}
+
+	@Override
+	public int getTau() {
+		return tau;
+	}
+
+	@Override
+	public double getP() {
+		return P;
+	}
+
+	@Override
+	public int getCurrent() {
+		return current;
+	}
+
+	@Override
+	public void setTau(int tau) {
+		if (tau <= 0) {
+			System.out.println("[err] 信号機の周期 tau は1以上でなければなりません。");
+		} else {
+			this.tau = tau;
+		}
+	}
+
+	@Override
+	public void setP(double P) {
+		if (P < 0 || 1 < P) {
+			System.out.println("[err] スロースタート効果 P は0以上1以下でなければなりません。");
+		} else {
+			this.P = P;
+			stayMask = new BernoulliMask(1.0 - P);
+		}
+	}
+
+	@Override
+	public void initialize() throws Exception {
+		current = 0; // リセット
+
+		for (int j = 0; j < L; j++) {
+			for (int w = 0; w < nw; w++) {
+				x[j][w] = 0;
+				y[j][w] = 0;
+			}
+		}
+		InitialPlacement.place(L, k, random, (i, j, horizontal) -> {
+			if (horizontal) {
+				x[j][i >>> 6] |= 1L << i;
+			} else {
+				y[j][i >>> 6] |= 1L << i;
+			}
+		});
+
+		rehash();
+	}
+
+	/**
+	 * ハッシュ値を計算し直す
+	 */
+	private void rehash() {
+		hash = 0;
+		for (int j = 0; j < L; j++) {
+			for (int w = 0; w < nw; w++) {
+				hash ^= StateHash.word(StateHash.X, j, w, x[j][w]) ^ StateHash.word(StateHash.Y, j, w, y[j][w]);
+			}
+		}
+	}
+
+	@Override
+	public void setState(int[][] siteX, int[][] siteY, int current) {
+		for (int j = 0; j < L; j++) {
+			for (int w = 0; w < nw; w++) {
+				x[j][w] = 0;
+				y[j][w] = 0;
+			}
+			for (int i = 0; i < L; i++) {
+				x[j][i >>> 6] |= (long)(siteX[i][j] & 1) << i;
+				y[j][i >>> 6] |= (long)(siteY[i][j] & 1) << i;
+			}
+		}
+		this.current = current;
+		rehash();
+	}
+
+	@Override
+	public void setState(Rows rows, int current) {
+		for (int j = 0; j < L; j++) {
+			rows.getRow(j, x[j], y[j]);
+			x[j][nw - 1] &= lastMask;
+			y[j][nw - 1] &= lastMask;
+		}
+		this.current = current;
+		rehash();
+	}
+
+	/**
+	 * 乱数生成器の状態（4個）と、持ち越している間隔を返す
+	 */
+	@Override
+	public long[] getAuxState() {
+		if (!(random instanceof Xoshiro256)) return null;
+		long[] aux = new long[5];
+		((Xoshiro256)random).saveState(aux, 0);
+		aux[4] = stayMask.getGap();
+		return aux;
+	}
+
+	@Override
+	public void setAuxState(long[] aux) {
+		if (aux.length != 5) {
+			throw new IllegalArgumentException("内部状態の長さが違います: " + aux.length);
+		}
+		if (!(random instanceof Xoshiro256)) random = new Xoshiro256();
+		((Xoshiro256)random).loadState(aux, 0);
+		stayMask.setGap(aux[4]);
+	}
+
+	@Override
+	public long stateHash() {
+		return hash ^ StateHash.phase(current);
+	}
+
+	/**
+	 * 描画のために系の状態を与える
+	 * ExtendedBML と同じ [i][j] 形式の配列を新しく作って返す。
+	 */
+	@Override
+	public int[][][] getSites() {
+		int[][] siteX = new int[L][L];
+		int[][] siteY = new int[L][L];
+		for (int j = 0; j < L; j++) {
+			for (int i = 0; i < L; i++) {
+				siteX[i][j] = (int)(x[j][i >>> 6] >>> i) & 1;
+				siteY[i][j] = (int)(y[j][i >>> 6] >>> i) & 1;
+			}
+		}
+		return new int[][][] {siteX, siteY};
+	}
+
+	@Override
+	public void getRow(int j, long[] x, long[] y) {
+		System.arraycopy(this.x[j], 0, x, 0, nw);
+		System.arraycopy(this.y[j], 0, y, 0, nw);
+	}
+
+	@Override
+	public int move() {
+		int count;
+		if (current == 0) {
+			count = moveHorizontal(true);
+		} else if (current < tau) {
+			count = moveHorizontal(false);
+		} else if (current == tau) {
+			count = moveVertical(true);
+		} else {
+			count = moveVertical(false);
+		}
+
+		current++;
+		if (current == 2 * tau) {
+			current = 0;
+		}
+
+		return count;
+	}
+
+	@Override
+	public void move1period() {
+		for (int i = 0; i < 2 * tau; i++) {
+			move();
+		}
+	}
+
+	/**
+	 * 移動できる車のうち、スロースタート効果で止まる車を除く
+	 * 各車は (1-P) の確率でその場に留まる。1ワード分の判定を1つのマスクで行う。
+	 * @param m 移動できる車のビット列
+	 * @return 実際に移動する車のビット列
+	 */
+	private long slowStart(long m) {
+		return m & ~stayMask.next(random);
+	}
+
+	/**
+	 * 横方向の車を１ステップ動かす
+	 * 偶数行は右向き（i+1）、奇数行は左向き（i-1）。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveHorizontal(boolean ss) {
+		final int last = nw - 1;
+		final boolean slow = ss && P < 1.0;
+		int count = 0;
+
+		for (int j = 0; j < L; j++) {
+			long[] xr = x[j], yr = y[j], out = nx[j];
+
+			if (j % 2 == 0) {
+				// 右向き：前方 (i+1) の占有状態を1ビット下にずらして重ねる
+				for (int w = 0; w < nw; w++) {
+					long ahead = (w < last)
+							? ((xr[w] | yr[w]) >>> 1) | ((xr[w+1] | yr[w+1]) << 63)
+							: ((xr[w] | yr[w]) >>> 1) | (((xr[0] | yr[0]) & 1L) << (r - 1));
+					long m = xr[w] & ~ahead & (w < last ? -1L : lastMask);
+					if (slow && m != 0) m = slowStart(m);
+					mrow[w] = m;
+					count += Long.bitCount(m);
+				}
+				// 移動した車を1ビット上へ
+				for (int w = 0; w < nw; w++) {
+					long in = (w > 0)
+							? (mrow[w] << 1) | (mrow[w-1] >>> 63)
+							: (mrow[0] << 1) | ((mrow[last] >>> (r - 1)) & 1L);
+					long v = (xr[w] & ~mrow[w]) | in;
+					out[w] = (w < last ? v : v & lastMask);
+					if (out[w] != xr[w]) {
+						hash ^= StateHash.word(StateHash.X, j, w, xr[w]) ^ StateHash.word(StateHash.X, j, w, out[w]);
+					}
+				}
+			} else {
+				// 左向き：前方 (i-1) の占有状態を1ビット上にずらして重ねる
+				for (int w = 0; w < nw; w++) {
+					long ahead = (w > 0)
+							? ((xr[w] | yr[w]) << 1) | ((xr[w-1] | yr[w-1]) >>> 63)
+							: ((xr[0] | yr[0]) << 1) | (((xr[last] | yr[last]) >>> (r - 1)) & 1L);
+					long m = xr[w] & ~ahead & (w < last ? -1L : lastMask);
+					if (slow && m != 0) m = slowStart(m);
+					mrow[w] = m;
+					count += Long.bitCount(m);
+				}
+				// 移動した車を1ビット下へ
+				for (int w = 0; w < nw; w++) {
+					long in = (w < last)
+							? (mrow[w] >>> 1) | (mrow[w+1] << 63)
+							: (mrow[w] >>> 1) | ((mrow[0] & 1L) << (r - 1));
+					long v = (xr[w] & ~mrow[w]) | in;
+					out[w] = (w < last ? v : v & lastMask);
+					if (out[w] != xr[w]) {
+						hash ^= StateHash.word(StateHash.X, j, w, xr[w]) ^ StateHash.word(StateHash.X, j, w, out[w]);
+					}
+				}
+			}
+		}
+
+		long[][] t = x; x = nx; nx = t;
+		return count;
+	}
+
+	/**
+	 * 縦方向の車を１ステップ動かす
+	 * 偶数列は上向き（j-1）、奇数列は下向き（j+1）。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveVertical(boolean ss) {
+		final boolean slow = ss && P < 1.0;
+		int count = 0;
+
+		// 各行で動ける車を求める
+		for (int j = 0; j < L; j++) {
+			int jm = (j == 0 ? L-1 : j-1);
+			int jp = (j == L-1 ? 0 : j+1);
+			long[] yr = y[j], m = mv[j];
+			long[] xu = x[jm], yu = y[jm], xd = x[jp], yd = y[jp];
+
+			for (int w = 0; w < nw; w++) {
+				long mw = (yr[w] & EVEN & ~(xu[w] | yu[w]))
+						| (yr[w] & ODD & ~(xd[w] | yd[w]));
+				if (slow && mw != 0) mw = slowStart(mw);
+				m[w] = mw;
+				count += Long.bitCount(mw);
+			}
+		}
+
+		// 下の行から上向きの車が、上の行から下向きの車が入ってくる
+		for (int j = 0; j < L; j++) {
+			int jm = (j == 0 ? L-1 : j-1);
+			int jp = (j == L-1 ? 0 : j+1);
+			long[] yr = y[j], m = mv[j], out = ny[j];
+			long[] mu = mv[jp], md = mv[jm];
+
+			for (int w = 0; w < nw; w++) {
+				out[w] = (yr[w] & ~m[w]) | (mu[w] & EVEN) | (md[w] & ODD);
+				if (out[w] != yr[w]) {
+					hash ^= StateHash.word(StateHash.Y, j, w, yr[w]) ^ StateHash.word(StateHash.Y, j, w, out[w]);
+				}
+			}
+		}
+
+		long[][] t = y; y = ny; ny = t;
+		return count;
+	}
+}
@@ -0,0 +1,306 @@
+package bml2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * チェックポイント（系の状態の保存と復元）
+ *
+ * 長い空回しの途中の状態をファイルに保存しておき、JVM を再起動した後でも続きから再開できるようにする。
+ * 空回しを終えた状態を保存しておけば、同じ点をもう一度計算するときに空回しを省ける。
+ *
+ * ファイルの形式（ビッグエンディアン）:
+ *   int    MAGIC ("BML2"), VERSION
+ *   int    L, k, tau
+ *   double P
+ *   int    current
+ *   long   step（保存した時点のステップ数）
+ *   int    flags（ビット0: 空回しを終えている）
+ *   int    エンジン名の長さ, byte[] エンジン名（UTF-8）
+ *   int    内部状態の長さ, long[] 内部状態（BMLModel.getAuxState()）
+ *   long[] siteX, siteY（サイト (i, j) をビット j*L+i として詰めたもの）
+ * 1サイト1ビットなので、L = 256 なら格子の部分は 16KB になる。
+ *
+ * 書き込みは一時ファイルに行い、書き終えてからファイル名を置き換えるので、途中で止まっても前のチェックポイントは壊れない。
+ * 格子は BMLModel.getRow() / setState(Rows, int) で1行ずつ、BUFFER_BYTES のバッファを通して読み書きするので、
+ * 格子全体の配列は作らない（L = 65536 では格子の部分が 1GB になる）。
+ */
+class Checkpoint {
+	static final int MAGIC = 0x424D4C32; // "BML2"
+	static final int VERSION = 1;
+	private static final int BUFFER_BYTES = 1 << 16; // 読み書きのバッファの大きさ
+
+	final long step;        // 保存した時点のステップ数
+	final boolean warmedUp; // 空回しを終えた状態か
+
+	private Checkpoint(long step, boolean warmedUp) {
+		this.step = step;
+		this.warmedUp = warmedUp;
+	}
+
+	/**
+	 * エンジンの状態を保存する
+	 * @param bml エンジン
+	 * @param path 保存先
+	 * @param step 初期配置からのステップ数
+	 * @param warmedUp 空回しを終えた状態なら true
+	 */
+	static void save(BMLModel bml, Path path, long step, boolean warmedUp) throws IOException {
+		long[] aux = bml.getAuxState();
+		if (aux == null) {
+			throw new IOException("乱数生成器の状態を保存できません（Xoshiro256 以外）");
+		}
+		int L = bml.getL();
+		byte[] name = bml.getClass().getSimpleName().getBytes(StandardCharsets.UTF_8);
+
+		Path dir = path.toAbsolutePath().getParent();
+		if (dir != null) Files.createDirectories(dir);
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.allocate(Math.max(BUFFER_BYTES, 5 * 4 + 8 + 4 + 8 + 4 + 4 + name.length + 4 + 8 * aux.length));
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.putInt(L);
+			buf.putInt(bml.getK());
+			buf.putInt(bml.getTau());
+			buf.putDouble(bml.getP());
+			buf.putInt(bml.getCurrent());
+			buf.putLong(step);
+			buf.putInt(warmedUp ? 1 : 0);
+			buf.putInt(name.length);
+			buf.put(name);
+			buf.putInt(aux.length);
+			for (long a : aux) buf.putLong(a);
+
+			BitWriter out = new BitWriter(ch, buf);
+			long[] x = new long[(L + 63) / 64], y = new long[(L + 63) / 64];
+			for (int j = 0; j < L; j++) {
+				bml.getRow(j, x, y);
+				out.putRow(x, L);
+			}
+			out.finish();
+			for (int j = 0; j < L; j++) {
+				bml.getRow(j, x, y);
+				out.putRow(y, L);
+			}
+			out.finish();
+			out.flush();
+			ch.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * 保存した状態をエンジンに復元する
+	 * エンジンは同じ種類で、L, k, tau, P を設定済みでなければならない。
+	 * @param bml エンジン
+	 * @param path 保存したファイル
+	 * @return 保存した時点のステップ数など
+	 */
+	static Checkpoint load(BMLModel bml, Path path) throws IOException {
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buf = read(ch, 0, 0, 0, 5 * 4 + 8 + 4 + 8 + 4 + 4);
+			if (buf.getInt() != MAGIC) throw new IOException("チェックポイントのファイルではありません: " + path);
+			int version = buf.getInt();
+			if (version != VERSION) throw new IOException("対応していない版です: " + version);
+
+			int L = buf.getInt();
+			int k = buf.getInt();
+			int tau = buf.getInt();
+			double P = buf.getDouble();
+			int current = buf.getInt();
+			long step = buf.getLong();
+			int flags = buf.getInt();
+			long pos = buf.capacity();
+			int nameLength = buf.getInt();
+			buf = read(ch, pos, nameLength, 1, 4);
+			pos += buf.capacity();
+			byte[] name = new byte[nameLength];
+			buf.get(name);
+			int auxLength = buf.getInt();
+			buf = read(ch, pos, auxLength, 8, 0);
+			pos += buf.capacity();
+			long[] aux = new long[auxLength];
+			for (int a = 0; a < aux.length; a++) aux[a] = buf.getLong();
+
+			String engine = new String(name, StandardCharsets.UTF_8);
+			if (!engine.equals(bml.getClass().getSimpleName())) {
+				throw new IOException("エンジンが違います: " + engine);
+			}
+			if (L != bml.getL() || k != bml.getK() || tau != bml.getTau() || P != bml.getP()) {
+				throw new IOException("パラメータが違います: L=" + L + ", k=" + k + ", tau=" + tau + ", P=" + P);
+			}
+			if (current < 0 || 2 * tau <= current) {
+				throw new IOException("段階が不正です: " + current);
+			}
+			long planeBytes = 8L * bitWords(L);
+			if (ch.size() != pos + 2 * planeBytes) {
+				throw new IOException("チェックポイントが壊れています: " + path);
+			}
+
+			BitReader inX = new BitReader(ch, pos);
+			BitReader inY = new BitReader(ch, pos + planeBytes);
+			try {
+				bml.setState((j, x, y) -> {
+					inX.getRow(x, L);
+					inY.getRow(y, L);
+				}, current);
+				bml.setAuxState(aux);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage(), e);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return new Checkpoint(step, (flags & 1) != 0);
+		} catch (BufferUnderflowException | NegativeArraySizeException e) {
+			throw new IOException("チェックポイントが壊れています: " + path, e);
+		}
+	}
+
+	private static int bitWords(int L) {
+		return (int)(((long)L * L + 63) / 64);
+	}
+
+	/**
+	 * ファイルの位置 pos から n 個の要素（各 size バイト）と、続く extra バイトを読む
+	 * 長さが壊れていても大きな配列を作らないように、ファイルの大きさと比べてから読む。
+	 */
+	private static ByteBuffer read(FileChannel ch, long pos, int n, int size, int extra) throws IOException {
+		long bytes = (long)n * size + extra;
+		if (n < 0 || ch.size() - pos < bytes) throw new BufferUnderflowException();
+		ByteBuffer buf = ByteBuffer.allocate((int)bytes);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, pos + buf.position()) < 0) throw new BufferUnderflowException();
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static long mask(int bits) {
+		return bits == 64 ? -1L : (1L << bits) - 1;
+	}
+
+	/**
+	 * 行のビット列を詰めて書き出す（行 j のサイト i はビット j*L+i になる）
+	 */
+	private static class BitWriter {
+		private final FileChannel ch;
+		private final ByteBuffer buf;
+		private long acc; // 書き出していないビット
+		private int n;    // acc のビット数（0..63）
+
+		BitWriter(FileChannel ch, ByteBuffer buf) {
+			this.ch = ch;
+			this.buf = buf;
+		}
+
+		/**
+		 * 1行分（L ビット）を書く
+		 */
+		void putRow(long[] row, int L) throws IOException {
+			for (int w = 0, rest = L; rest > 0; w++, rest -= 64) {
+				int bits = Math.min(64, rest);
+				put(row[w] & mask(bits), bits);
+			}
+		}
+
+		private void put(long v, int bits) throws IOException {
+			acc |= v << n;
+			if (n + bits >= 64) {
+				putLong(acc);
+				acc = (n == 0) ? 0 : v >>> (64 - n);
+				n = n + bits - 64;
+			} else {
+				n += bits;
+			}
+		}
+
+		/**
+		 * 1面の終わり（残りのビットを1ワードにして書く）
+		 */
+		void finish() throws IOException {
+			if (n > 0) putLong(acc);
+			acc = 0;
+			n = 0;
+		}
+
+		private void putLong(long v) throws IOException {
+			if (buf.remaining() < 8) flush();
+			buf.putLong(v);
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) ch.write(buf);
+			buf.clear();
+		}
+	}
+
+	/**
+	 * BitWriter で書いた1面を先頭から読む
+	 */
+	private static class BitReader {
+		private final FileChannel ch;
+		private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+		private long pos;  // 次に読むファイルの位置
+		private long acc;  // 使っていないビット
+		private int n;     // acc のビット数（0..63）
+
+		BitReader(FileChannel ch, long pos) {
+			this.ch = ch;
+			this.pos = pos;
+			buf.flip();
+		}
+
+		/**
+		 * 1行分（L ビット）を読む
+		 */
+		void getRow(long[] row, int L) {
+			try {
+				for (int w = 0, rest = L; rest > 0; w++, rest -= 64) {
+					row[w] = get(Math.min(64, rest));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private long get(int bits) throws IOException {
+			if (bits <= n) {
+				long v = acc & mask(bits);
+				acc >>>= bits;
+				n -= bits;
+				return v;
+			}
+			long next = getLong();
+			long v = (acc | next << n) & mask(bits);
+			int used = bits - n;
+			acc = (used == 64) ? 0 : next >>> used;
+			n = 64 - used;
+			return v;
+		}
+
+		private long getLong() throws IOException {
+			if (buf.remaining() < 8) {
+				buf.compact();
+				while (buf.position() < 8) {
+					int r = ch.read(buf, pos);
+					if (r < 0) throw new IOException("チェックポイントが途中で切れています");
+					pos += r;
+				}
+				buf.flip();
+			}
+			return buf.getLong();
+		}
+	}
+}
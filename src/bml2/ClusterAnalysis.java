@@ -0,0 +1,334 @@
+package bml2;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 渋滞のクラスタの解析
+ *
+ * 車のあるサイト（向きによらない）が上下左右に隣り合ってつながった領域をクラスタとし、
+ * 周期境界の格子全体でラベル付けして、クラスタの大きさの分布、最大のクラスタ、
+ * 格子を一周するクラスタがあるか（パーコレーション）を求める。
+ *
+ * ラベル付けはサイトごとの union-find をプリミティブ配列で行う。
+ * 各サイトは親からの変位 (dx, dy) を持ち、根からの変位を周期境界で巻き戻さずに足していくので、
+ * 同じクラスタの2つのサイトが異なる変位でつながったら、そのクラスタは格子を一周している。
+ *
+ * 行を帯に分けて並列にラベル付けし、隣り合う帯の境界の行をつなぐ。分割を再帰的に行い、
+ * 2つの帯の結合はその2つの帯の中のサイトしか触らないので、異なる帯の結合は同時に行ってよい。
+ * 最後に最下行と最上行（周期境界）をつなぐ。
+ *
+ * エンジンからは BMLModel.getRow() で1行ずつビット列を読むので、解析のたびに格子全体の配列を作らない。
+ */
+public class ClusterAnalysis {
+	private static final byte WRAP_X = 1, WRAP_Y = 2;
+
+	private final int L;
+	private final int nw; // 1行あたりのワード数
+	private final int[] parent; // 親のサイト（j*L+i、空のサイトは -1、根は自分自身）
+	private final int[] dx, dy; // 親からの変位（自分の位置 - 親の位置）
+	private final int[] size;   // 根のクラスタの大きさ
+	private final byte[] wrap;  // 根のクラスタが一周している方向
+	private ForkJoinPool pool = null; // 並列に動かす場合のスレッドプール（null なら逐次）
+	private int grain;                // 1タスクあたりの行数
+
+	// 解析中の系（analyze() の間だけ、どちらかを設定する）
+	private BMLModel bml;
+	private int[][] siteX, siteY;
+
+	// 直前の解析の結果
+	private int clusters = 0;
+	private int largest = 0;
+	private int occupied = 0;
+	private boolean wrapsX = false, wrapsY = false;
+	private int[] histogram = new int[1];
+
+	/**
+	 * @param L 正方格子の一辺の数
+	 */
+	public ClusterAnalysis(int L) {
+		this.L = L;
+		nw = (L + 63) / 64;
+		parent = new int[L * L];
+		dx = new int[L * L];
+		dy = new int[L * L];
+		size = new int[L * L];
+		wrap = new byte[L * L];
+	}
+
+	/**
+	 * 並列に解析するためのスレッドプールを設定する
+	 * @param pool スレッドプール（null なら逐次に解析する）
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+		if (pool != null) {
+			grain = Math.max(8, L / (4 * pool.getParallelism()));
+		}
+	}
+
+	/**
+	 * エンジンの現在の状態を解析する
+	 */
+	public void analyze(BMLModel bml) {
+		this.bml = bml;
+		try {
+			labelAll();
+		} finally {
+			this.bml = null;
+		}
+	}
+
+	/**
+	 * 系の状態を解析する
+	 * @param siteX 横方向の車 [i][j]
+	 * @param siteY 縦方向の車 [i][j]
+	 */
+	public void analyze(int[][] siteX, int[][] siteY) {
+		this.siteX = siteX;
+		this.siteY = siteY;
+		try {
+			labelAll();
+		} finally {
+			this.siteX = null;
+			this.siteY = null;
+		}
+	}
+
+	/**
+	 * 行 j の車のあるサイト（向きによらない）をビット列 occ に読む
+	 * @param tmp 作業用（長さ nw）
+	 */
+	private void occupied(int j, long[] occ, long[] tmp) {
+		if (bml != null) {
+			bml.getRow(j, occ, tmp);
+			for (int w = 0; w < nw; w++) occ[w] |= tmp[w];
+		} else {
+			Arrays.fill(occ, 0);
+			for (int i = 0; i < L; i++) {
+				occ[i >>> 6] |= (long)(siteX[i][j] | siteY[i][j]) << i;
+			}
+		}
+	}
+
+	/**
+	 * 格子全体をラベル付けして、結果をまとめる
+	 */
+	private void labelAll() {
+		if (pool == null) {
+			new BandTask(0, L).label();
+		} else {
+			pool.invoke(new BandTask(0, L));
+		}
+		// 周期境界：最下行と最上行をつなぐ
+		int[] t = new int[2];
+		for (int i = 0; i < L; i++) {
+			int a = (L-1)*L + i;
+			if (parent[a] >= 0 && parent[i] >= 0) union(a, i, 0, 1, t);
+		}
+		collect();
+	}
+
+	/**
+	 * 行 [from, to) の帯をラベル付けするタスク
+	 */
+	private class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+
+		BandTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				label();
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new BandTask(from, mid), new BandTask(mid, to));
+			join(mid);
+		}
+
+		/**
+		 * 帯を逐次にラベル付けする
+		 */
+		void label() {
+			int[] t = new int[2];
+			long[] occ = new long[nw], tmp = new long[nw];
+			for (int j = from; j < to; j++) {
+				occupied(j, occ, tmp);
+				int row = j * L;
+				for (int i = 0; i < L; i++) {
+					int a = row + i;
+					if (((occ[i >>> 6] >>> i) & 1) != 0) {
+						parent[a] = a;
+						dx[a] = 0;
+						dy[a] = 0;
+						size[a] = 1;
+						wrap[a] = 0;
+					} else {
+						parent[a] = -1;
+					}
+				}
+				// 行の中（周期境界を含む）
+				for (int i = 0; i < L; i++) {
+					int a = row + i, b = row + (i == L-1 ? 0 : i+1);
+					if (parent[a] >= 0 && parent[b] >= 0) union(a, b, 1, 0, t);
+				}
+				// 上の行と
+				if (j > from) {
+					for (int i = 0; i < L; i++) {
+						int a = row - L + i, b = row + i;
+						if (parent[a] >= 0 && parent[b] >= 0) union(a, b, 0, 1, t);
+					}
+				}
+			}
+		}
+
+		/**
+		 * 行 mid-1 と行 mid をつなぐ
+		 */
+		private void join(int mid) {
+			int[] t = new int[2];
+			for (int i = 0; i < L; i++) {
+				int a = (mid-1)*L + i, b = mid*L + i;
+				if (parent[a] >= 0 && parent[b] >= 0) union(a, b, 0, 1, t);
+			}
+		}
+	}
+
+	/**
+	 * サイト a の根を返す（経路圧縮する）
+	 * @param t 根からの変位（a の位置 - 根の位置）を返す（長さ2）
+	 */
+	private int find(int a, int[] t) {
+		int r = a, ox = 0, oy = 0;
+		while (parent[r] != r) {
+			ox += dx[r];
+			oy += dy[r];
+			r = parent[r];
+		}
+		// 経路上のサイトを根に直接つなぐ
+		int x = a, cx = ox, cy = oy;
+		while (x != r) {
+			int next = parent[x];
+			int nx = cx - dx[x], ny = cy - dy[x];
+			parent[x] = r;
+			dx[x] = cx;
+			dy[x] = cy;
+			x = next;
+			cx = nx;
+			cy = ny;
+		}
+		t[0] = ox;
+		t[1] = oy;
+		return r;
+	}
+
+	/**
+	 * サイト a と、a から変位 (ddx, ddy) にある隣のサイト b をつなぐ
+	 */
+	private void union(int a, int b, int ddx, int ddy, int[] t) {
+		int ra = find(a, t);
+		int ax = t[0], ay = t[1];
+		int rb = find(b, t);
+		int bx = t[0], by = t[1];
+		// 根 rb の位置 - 根 ra の位置
+		int rx = ax + ddx - bx, ry = ay + ddy - by;
+		if (ra == rb) {
+			if (rx != 0) wrap[ra] |= WRAP_X;
+			if (ry != 0) wrap[ra] |= WRAP_Y;
+			return;
+		}
+		if (size[ra] < size[rb]) {
+			parent[ra] = rb;
+			dx[ra] = -rx;
+			dy[ra] = -ry;
+			size[rb] += size[ra];
+			wrap[rb] |= wrap[ra];
+		} else {
+			parent[rb] = ra;
+			dx[rb] = rx;
+			dy[rb] = ry;
+			size[ra] += size[rb];
+			wrap[ra] |= wrap[rb];
+		}
+	}
+
+	/**
+	 * 根を集めて結果をまとめる
+	 */
+	private void collect() {
+		clusters = 0;
+		largest = 0;
+		occupied = 0;
+		wrapsX = false;
+		wrapsY = false;
+		for (int a = 0; a < parent.length; a++) {
+			if (parent[a] != a) continue;
+			clusters++;
+			occupied += size[a];
+			if (size[a] > largest) largest = size[a];
+			if ((wrap[a] & WRAP_X) != 0) wrapsX = true;
+			if ((wrap[a] & WRAP_Y) != 0) wrapsY = true;
+		}
+		histogram = new int[largest + 1];
+		for (int a = 0; a < parent.length; a++) {
+			if (parent[a] == a) histogram[size[a]]++;
+		}
+	}
+
+	/**
+	 * クラスタの数
+	 */
+	public int getClusters() {
+		return clusters;
+	}
+
+	/**
+	 * 最大のクラスタの大きさ（サイト数）
+	 */
+	public int getLargest() {
+		return largest;
+	}
+
+	/**
+	 * 車のあるサイトの数
+	 */
+	public int getOccupied() {
+		return occupied;
+	}
+
+	/**
+	 * クラスタの大きさの分布
+	 * @return 大きさ s のクラスタの数を [s] に持つ配列（長さは最大のクラスタの大きさ + 1）
+	 */
+	public int[] getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * 横方向に一周するクラスタがあるか
+	 */
+	public boolean wrapsX() {
+		return wrapsX;
+	}
+
+	/**
+	 * 縦方向に一周するクラスタがあるか
+	 */
+	public boolean wrapsY() {
+		return wrapsY;
+	}
+
+	/**
+	 * 格子を一周するクラスタがあるか（パーコレーション）
+	 */
+	public boolean percolates() {
+		return wrapsX || wrapsY;
+	}
+}
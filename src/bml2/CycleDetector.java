@@ -0,0 +1,269 @@
+package bml2;
+
+import java.util.Arrays;
+
+/**
+ * 周期軌道・固定点の検出
+ *
+ * P = 1 (または P = 0) では時間発展は決定論的なので、系はいずれ固定点か周期軌道に入る。
+ * 周期の区切りごとに状態のハッシュ値を記録し、同じ値が再び現れたら、
+ * その時点の状態を保存してもう一度同じステップ数だけ動かし、状態が完全に一致することで周期を確認する。
+ * 確認できた後は、1周期分の動いた車の数から残りのステップの合計を計算で求める。
+ *
+ * 0 < P < 1 の場合は乱数によるので周期は使えないが、tau >= 2 で1周期の間まったく車が動かなければ、
+ * スロースタート効果のないステップでも動けなかったことになるので、系は凍結している。
+ *
+ * move() / advance() は与えられたエンジンの代わりに呼び出す。周期を使って飛ばしたステップでは
+ * エンジンの状態は進まないが、飛ばすのは常に周期の整数倍なので、エンジンの状態は正しいまま保たれる。
+ * 記録器を与えた場合は、エンジンを実際に動かしたステップだけを記録する（周期が確認できた後は記録しない）。
+ *
+ * 確認のための状態は BMLModel.getRow() で読んだ行のビット列として保存する（格子1面あたり L*L/8 バイト）。
+ * これが MAX_SNAPSHOT_WORDS を超える大きな格子では状態を保存せず、決定論的な場合も
+ * 1周期まったく車が動かないこと（固定点）だけを検出する。
+ */
+class CycleDetector {
+	private static final int MAX_ENTRIES = 1 << 20; // 記録するハッシュ値の上限
+	private static final long MAX_SNAPSHOT_WORDS = 1 << 23; // 確認のために保存する状態の上限（64MB）
+
+	private final BMLModel bml;
+	private final int period;          // 信号機の1周期のステップ数 (2*tau)
+	private final boolean deterministic;
+	private final boolean freezable;   // 1周期動かないことで凍結を判定できるか
+	private final boolean confirmable; // 周期を確認するための状態を保存できるか
+	private final int nw;              // 1行あたりのワード数
+
+	// 周期の区切りでのハッシュ値 → ステップ数（オープンアドレス法）
+	private long[] keys = new long[1024];
+	private long[] values = new long[1024];
+	private boolean[] used = new boolean[1024];
+	private int size = 0;
+
+	private long step = 0;        // エンジンを実際に動かしたステップ数
+	private long periodMoved = 0; // 現在の周期で動いた車の数
+	private FrameRecorder recorder; // コマの記録器（なければ null）
+	private long recordOffset;      // 記録するステップ数と step の差
+
+	// 確認中の周期
+	private long[] candidate;     // 確認中の状態（行 j の横方向・縦方向の車を順に並べたもの）
+	private long candidateHash;
+	private long candidateStart;
+	private long candidateLength;
+	private long[] candidateMoves;
+
+	// 確認できた周期（cycleLength == 0 なら未検出）
+	private long cycleLength = 0;
+	private long[] cycleMoves;    // 周期内の各ステップで動いた車の数
+	private long cycleSum;        // 1周期で動いた車の数
+	private int phase;            // 周期内の位置
+
+	/**
+	 * @param bml 初期化した直後（周期の区切り）のエンジン
+	 * @param tau 信号機の周期
+	 * @param P スロースタート効果
+	 */
+	CycleDetector(BMLModel bml, int tau, double P) {
+		this.bml = bml;
+		this.period = 2 * tau;
+		this.deterministic = (P == 0.0 || P == 1.0);
+		this.freezable = deterministic || tau >= 2;
+		int L = bml.getL();
+		this.nw = (L + 63) / 64;
+		this.confirmable = 2L * L * nw <= MAX_SNAPSHOT_WORDS;
+	}
+
+	/**
+	 * コマの記録器を与え、現在の状態を記録する
+	 * @param recorder 記録器
+	 * @param offset 現在のステップ数（チェックポイントから再開した場合は 0 でない）
+	 */
+	void setRecorder(FrameRecorder recorder, long offset) {
+		this.recorder = recorder;
+		this.recordOffset = offset - step;
+		recorder.capture(bml, offset);
+	}
+
+	/**
+	 * 周期軌道（固定点を含む）が確認できたか
+	 */
+	boolean isCyclic() {
+		return cycleLength > 0;
+	}
+
+	/**
+	 * 確認できた周期のステップ数
+	 */
+	long cycleLength() {
+		return cycleLength;
+	}
+
+	/**
+	 * 1回動かす
+	 * @return そのステップで動いた車の数
+	 */
+	int move() {
+		if (cycleLength > 0) {
+			int m = (int)cycleMoves[phase];
+			if (++phase == cycleLength) phase = 0;
+			return m;
+		}
+		int m = bml.move();
+		step++;
+		if (recorder != null) {
+			recorder.capture(bml, recordOffset + step);
+		}
+		periodMoved += m;
+		if (candidate != null) {
+			candidateMoves[(int)(step - candidateStart - 1)] = m;
+		}
+		if (step % period == 0) {
+			onPeriod();
+		}
+		return m;
+	}
+
+	/**
+	 * steps回動かす
+	 * 周期が確認できていれば、周期の整数倍の部分は計算で求める。
+	 * @return 動いた車の数の合計
+	 */
+	long advance(long steps) {
+		long total = 0;
+		while (steps > 0) {
+			if (cycleLength > 0 && phase == 0 && steps >= cycleLength) {
+				long n = steps / cycleLength;
+				total += n * cycleSum;
+				steps -= n * cycleLength;
+				continue;
+			}
+			total += move();
+			steps--;
+		}
+		return total;
+	}
+
+	/**
+	 * 周期の区切りでの処理
+	 */
+	private void onPeriod() {
+		long moved = periodMoved;
+		periodMoved = 0;
+
+		if (!deterministic || !confirmable) {
+			// 乱数によらず凍結していれば、固定点として扱う
+			if (moved == 0 && freezable) {
+				setCycle(new long[period]);
+			}
+			return;
+		}
+
+		long h = bml.stateHash();
+
+		if (candidate != null) {
+			if (step - candidateStart == candidateLength) {
+				if (h == candidateHash && sameState(candidate)) {
+					setCycle(candidateMoves);
+					return;
+				}
+				// ハッシュ値の衝突だった
+				candidate = null;
+			} else {
+				return;
+			}
+		}
+
+		long prev = get(h);
+		if (prev >= 0) {
+			// 同じハッシュ値が現れた：状態を保存して確認する
+			candidateLength = step - prev;
+			if (candidateLength <= Integer.MAX_VALUE) {
+				candidate = snapshot();
+				candidateHash = h;
+				candidateStart = step;
+				candidateMoves = new long[(int)candidateLength];
+			}
+		}
+		put(h, step);
+	}
+
+	private void setCycle(long[] moves) {
+		cycleLength = moves.length;
+		cycleMoves = moves;
+		cycleSum = 0;
+		for (long m : moves) cycleSum += m;
+		phase = 0;
+		candidate = null;
+		keys = null;
+		values = null;
+		used = null;
+	}
+
+	/**
+	 * 現在の状態を行のビット列として保存する
+	 */
+	private long[] snapshot() {
+		int L = bml.getL();
+		long[] state = new long[2 * L * nw];
+		long[] x = new long[nw], y = new long[nw];
+		for (int j = 0; j < L; j++) {
+			bml.getRow(j, x, y);
+			System.arraycopy(x, 0, state, 2 * j * nw, nw);
+			System.arraycopy(y, 0, state, (2 * j + 1) * nw, nw);
+		}
+		return state;
+	}
+
+	/**
+	 * 現在の状態が保存した状態と一致するか
+	 */
+	private boolean sameState(long[] state) {
+		int L = bml.getL();
+		long[] x = new long[nw], y = new long[nw];
+		for (int j = 0; j < L; j++) {
+			bml.getRow(j, x, y);
+			if (!Arrays.equals(x, 0, nw, state, 2 * j * nw, (2 * j + 1) * nw)
+					|| !Arrays.equals(y, 0, nw, state, (2 * j + 1) * nw, (2 * j + 2) * nw)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int slot(long h) {
+		return (int)(h ^ (h >>> 32)) & (keys.length - 1);
+	}
+
+	/**
+	 * ハッシュ値 h を記録したステップ数（なければ -1）
+	 */
+	private long get(long h) {
+		for (int s = slot(h); used[s]; s = (s + 1) & (keys.length - 1)) {
+			if (keys[s] == h) return values[s];
+		}
+		return -1;
+	}
+
+	private void put(long h, long v) {
+		if (size >= MAX_ENTRIES) {
+			// 記録が多すぎる場合は捨てる（周期が続いていれば後で再び検出される）
+			Arrays.fill(used, false);
+			size = 0;
+		}
+		if (2 * (size + 1) > keys.length) {
+			long[] oldKeys = keys, oldValues = values;
+			boolean[] oldUsed = used;
+			keys = new long[oldKeys.length * 2];
+			values = new long[oldKeys.length * 2];
+			used = new boolean[oldKeys.length * 2];
+			size = 0;
+			for (int s = 0; s < oldKeys.length; s++) {
+				if (oldUsed[s]) put(oldKeys[s], oldValues[s]);
+			}
+		}
+		int s = slot(h);
+		while (used[s] && keys[s] != h) s = (s + 1) & (keys.length - 1);
+		if (!used[s]) size++;
+		used[s] = true;
+		keys[s] = h;
+		values[s] = v;
+	}
+}
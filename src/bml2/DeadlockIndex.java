@@ -0,0 +1,120 @@
+package bml2;
+
+import java.util.Arrays;
+
+/**
+ * デッドロック（4台の車が互いの前方を塞いで止まっている 2x2 の箱）の索引
+ *
+ * 箱は左上のサイト (a, b) で表し、a と b の偶奇は等しい。
+ * ・a, b が偶数: (a, b), (a+1, b+1) に横方向の車、(a+1, b), (a, b+1) に縦方向の車
+ * ・a, b が奇数: (a, b), (a+1, b+1) に縦方向の車、(a+1, b), (a, b+1) に横方向の車
+ * 座標は L を法とするので、境界をまたぐ箱も含めて周期境界の全体を調べる。
+ *
+ * デッドロックの箱の番号 (b*L + a) を配列に詰めて持ち、番号から配列内の位置への表で
+ * 追加・削除を O(1)、数を O(1)、列挙をデッドロックの数に比例する時間で行う。
+ * 状態が変化したサイトについて update() を呼べば、そのサイトを含む箱だけを調べ直す。
+ */
+public class DeadlockIndex {
+	private final int L;
+	private final int[] boxes; // デッドロックの箱の番号（先頭から size 個）
+	private final int[] pos;   // 箱の番号/2 → boxes 内の位置（なければ -1）
+	private int size = 0;
+
+	/**
+	 * @param L 正方格子の一辺の数（正の偶数）
+	 */
+	DeadlockIndex(int L) {
+		this.L = L;
+		boxes = new int[L * L / 2];
+		pos = new int[L * L / 2];
+		Arrays.fill(pos, -1);
+	}
+
+	/**
+	 * デッドロックの数
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * n 番目のデッドロックの箱の左上の i 座標
+	 */
+	public int getI(int n) {
+		return boxes[n] % L;
+	}
+
+	/**
+	 * n 番目のデッドロックの箱の左上の j 座標
+	 */
+	public int getJ(int n) {
+		return boxes[n] / L;
+	}
+
+	/**
+	 * 格子全体を調べて作り直す
+	 */
+	void rebuild(int[][] siteX, int[][] siteY) {
+		for (int n = 0; n < size; n++) {
+			pos[boxes[n] >>> 1] = -1;
+		}
+		size = 0;
+		for (int b = 0; b < L; b++) {
+			for (int a = b % 2; a < L; a += 2) {
+				if (isDeadlock(siteX, siteY, a, b)) add(b*L + a);
+			}
+		}
+	}
+
+	/**
+	 * サイト (i, j) の状態が変化したときに、それを含む箱を調べ直す
+	 */
+	void update(int[][] siteX, int[][] siteY, int i, int j) {
+		int im = (i == 0 ? L-1 : i-1);
+		int jm = (j == 0 ? L-1 : j-1);
+		if ((i + j) % 2 == 0) {
+			check(siteX, siteY, i, j);
+			check(siteX, siteY, im, jm);
+		} else {
+			check(siteX, siteY, im, j);
+			check(siteX, siteY, i, jm);
+		}
+	}
+
+	private void check(int[][] siteX, int[][] siteY, int a, int b) {
+		int id = b*L + a;
+		boolean now = isDeadlock(siteX, siteY, a, b);
+		boolean was = pos[id >>> 1] >= 0;
+		if (now && !was) {
+			add(id);
+		} else if (!now && was) {
+			remove(id);
+		}
+	}
+
+	/**
+	 * 左上が (a, b) の箱がデッドロックか
+	 */
+	private boolean isDeadlock(int[][] siteX, int[][] siteY, int a, int b) {
+		int a1 = (a == L-1 ? 0 : a+1);
+		int b1 = (b == L-1 ? 0 : b+1);
+		if (a % 2 == 0) {
+			return siteX[a][b] == 1 && siteX[a1][b1] == 1 && siteY[a1][b] == 1 && siteY[a][b1] == 1;
+		} else {
+			return siteY[a][b] == 1 && siteY[a1][b1] == 1 && siteX[a1][b] == 1 && siteX[a][b1] == 1;
+		}
+	}
+
+	private void add(int id) {
+		pos[id >>> 1] = size;
+		boxes[size++] = id;
+	}
+
+	private void remove(int id) {
+		int p = pos[id >>> 1];
+		int last = boxes[--size];
+		boxes[p] = last;
+		pos[last >>> 1] = p;
+		pos[id >>> 1] = -1;
+	}
+}
@@ -1,16 +1,33 @@
 package bml2;
 
-import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.random.RandomGenerator;
 
-public class ExtendedBML {
+public class ExtendedBML implements BMLModel {
 	private int[][] siteX, siteY; // 横方向・縦方向の正方格子
+	private int[][] nextX, nextY; // 次のステップの書き込み先（siteX, siteYと交互に使う）
 	private int L; // 正方格子の一辺の数
 	private int k; // 最小密度の倍数定数
 	private int tau = 1; // 信号機の周期（本論文における設定値は tau = 2）
 	private double P = 1.0; // スロースタート効果（本論文における設定値は P = 0.5）
 	private int current = 0; // 現在の段階
-	private static Random random;
+	private RandomGenerator random; // インスタンスごとの乱数生成器（初期配置と各列・行の乱数系列の導出に使う）
+	private Xoshiro256[] laneRandom; // 行 j → [j], 列 i → [L+i] の乱数系列
+	private BernoulliMask[] laneStay; // 各行・列でスロースタート効果により留まるサイト（確率 1-P）
+	private long hash; // 状態のハッシュ値（段階 current を除く）
+	private long[] laneHash; // 各行・列で変化したサイトの鍵の XOR
+	private ForkJoinPool pool = null; // 並列に動かす場合のスレッドプール（null なら逐次）
+	private int grain; // 1タスクあたりの行（列）数
+	private DeadlockIndex deadlocks = null; // デッドロックの索引（null なら追跡しない）
+	private int[][] laneMoved; // 追跡する場合、各行・列で動いた車の元の位置 [lane][count]
+	private int[] laneCount;   // 各行・列で動いた車の数
+	// アサーションが有効な場合のみ、変化したサイトの数を数えて検証する
+	private static boolean verify = false;
+	static {
+		assert verify = true;
+	}
 
 	/**
 	 * コンストラクタ
@@ -18,7 +35,7 @@ public class ExtendedBML {
 	 * @param k 最小密度の倍数定数（ρ=k*ρmin）
 	 */
 	ExtendedBML(int L, int k) {
-		random = new Random();
+		random = new Xoshiro256();
 
 		if (L <= 0 || L % 2 != 0) {
 			System.out.println("[err] Lは正の偶数でなければなりません。");
@@ -33,6 +50,17 @@ public class ExtendedBML {
 		this.k = k;
 		siteX = new int[L][L];
 		siteY = new int[L][L];
+		nextX = new int[L][L];
+		nextY = new int[L][L];
+
+		laneHash = new long[2 * L];
+		laneCount = new int[2 * L];
+		laneRandom = new Xoshiro256[2 * L];
+		laneStay = new BernoulliMask[2 * L];
+		for (int lane = 0; lane < 2 * L; lane++) {
+			laneRandom[lane] = new Xoshiro256(lane);
+			laneStay[lane] = new BernoulliMask(0.0);
+		}
 	}
 
 	/**
@@ -41,9 +69,29 @@ public class ExtendedBML {
 	 * @param k
 	 * @param 乱数のシード値
 	 */
-	ExtendedBML(int L, int k, int seed) {
+	ExtendedBML(int L, int k, long seed) {
 		this(L, k);
-		random = new Random(seed);
+		random = new Xoshiro256(seed);
+	}
+
+	/**
+	 * 乱数生成器を差し替える
+	 * @param random 新しい乱数生成器（SplittableRandom, Xoshiro256 など）
+	 */
+	public void setRandom(RandomGenerator random) {
+		this.random = random;
+	}
+
+	/**
+	 * 行（列）を並列に動かすスレッドプールを設定する
+	 * 各行・列は独自の乱数系列を持つので、結果はスレッド数に依存しない。
+	 * @param pool スレッドプール（null なら逐次に動かす）
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+		if (pool != null) {
+			grain = Math.max(8, L / (4 * pool.getParallelism()));
+		}
 	}
 
 	/**
@@ -53,6 +101,18 @@ public class ExtendedBML {
 		return new int[][][] {siteX, siteY};
 	}
 
+	/**
+	 * 行 j の車をビット列で与える
+	 */
+	public void getRow(int j, long[] x, long[] y) {
+		Arrays.fill(x, 0, (L + 63) / 64, 0);
+		Arrays.fill(y, 0, (L + 63) / 64, 0);
+		for (int i = 0; i < L; i++) {
+			x[i >>> 6] |= (long)siteX[i][j] << i;
+			y[i >>> 6] |= (long)siteY[i][j] << i;
+		}
+	}
+
 	/**
 	 * Lを返します。
 	 */
@@ -78,96 +138,127 @@ public class ExtendedBML {
 	}
 
 	/**
-	 * 初期配置の基本状態をセットする
+	 * kを返す
 	 */
-	void initialize() throws Exception {
-		final int empty = 0, up = 1, down = 2, left = 3, right = 4;
-		final int maxTrials = this.L * 10; // 最大試行回数を 10L とする。
-		int[][] temp = new int[L][L];
-		int x, y, rnd, trial;
+	public int getK() {
+		return k;
+	}
 
-		current = 0; // リセット
+	/**
+	 * tauを返す
+	 */
+	public int getTau() {
+		return tau;
+	}
 
-		// ランダムにセットする
-		// k回繰り返す
-		for (int i = 0; i < this.k; i++) {
-			x = 2*i; y = 0;
-			// L/2回繰り返す
-			for (int j = 0; j < L/2; j++) {
-
-				// 上向き車 @ (x,y)
-				for (trial = 0; trial < maxTrials; trial++) {
-					rnd = random.nextInt(L);
-					if (temp[x][rnd] == empty) {
-						temp[x][rnd] = up;
-						break;
-					}
-				}
-				if (trial == maxTrials) {
-					throw new Exception("maxTrials回を超えても設定できません。");
-				}
-				// 左向き車 @ (x+1,y)
-				for (trial = 0; trial < maxTrials; trial++) {
-					rnd = random.nextInt(L);
-					if (temp[rnd][y] == empty) {
-						temp[rnd][y] = left;
-						break;
-					}
-				}
-				if (trial == maxTrials) {
-					throw new Exception("maxTrials回を超えても設定できません。");
-				}
-				// 右向き車 @ (x,y+1)
-				for (trial = 0; trial < maxTrials; trial++) {
-					rnd = random.nextInt(L);
-					if (temp[rnd][y+1] == empty) {
-						temp[rnd][y+1] = right;
-						break;
-					}
-				}
-				if (trial == maxTrials) {
-					throw new Exception("maxTrials回を超えても設定できません。");
-				}
-				// 下向き車 @ (x+1,y+1)
-				for (trial = 0; trial < maxTrials; trial++) {
-					rnd = random.nextInt(L);
-					if (temp[x+1][rnd] == empty) {
-						temp[x+1][rnd] = down;
-						break;
-					}
-				}
-				if (trial == maxTrials) {
-					throw new Exception("maxTrials回を超えても設定できません。");
-				}
+	/**
+	 * Pを返す
+	 */
+	public double getP() {
+		return P;
+	}
 
-				x += 2; y += 2;
-				if (x >= L) x = 0;
-			}
-		}
+	/**
+	 * 現在の段階を返す
+	 */
+	public int getCurrent() {
+		return current;
+	}
+
+	/**
+	 * 初期配置の基本状態をセットする
+	 */
+	public void initialize() throws Exception {
+		current = 0; // リセット
 
-		// 初期状態をsiteX, siteYにコピー
+		// 配列の初期化
 		for (int i = 0; i < L; i++) {
 			for (int j = 0; j < L; j++) {
-				// 配列の初期化
 				siteX[i][j] = 0;
 				siteY[i][j] = 0;
+			}
+		}
 
-				switch (temp[i][j]) {
-				case left:
-					// fall through
-				case right:
-					siteX[i][j] = 1;
-					break;
-				case up:
-					// fall through
-				case down:
-					siteY[i][j] = 1;
-					break;
-				}
+		// ランダムにセットする
+		InitialPlacement.place(L, k, random, (i, j, horizontal) -> {
+			if (horizontal) {
+				siteX[i][j] = 1;
+			} else {
+				siteY[i][j] = 1;
+			}
+		});
+
+		// 各行・列の乱数系列を導出する（スレッド数によらず同じ結果になる）
+		long laneSeed = random.nextLong();
+		for (int lane = 0; lane < 2 * L; lane++) {
+			laneRandom[lane].setSeed(Xoshiro256.mix(laneSeed, lane));
+			laneStay[lane] = new BernoulliMask(1.0 - P);
+		}
+
+		rehash();
+		if (deadlocks != null) deadlocks.rebuild(siteX, siteY);
+	}
+
+	/**
+	 * ハッシュ値を計算し直す
+	 */
+	private void rehash() {
+		hash = 0;
+		for (int i = 0; i < L; i++) {
+			for (int j = 0; j < L; j++) {
+				if (siteX[i][j] == 1) hash ^= StateHash.cell(StateHash.X, i, j);
+				if (siteY[i][j] == 1) hash ^= StateHash.cell(StateHash.Y, i, j);
 			}
 		}
 	}
 
+	/**
+	 * 系の状態を設定する（チェックポイントからの復元用）
+	 */
+	public void setState(int[][] siteX, int[][] siteY, int current) {
+		for (int i = 0; i < L; i++) {
+			System.arraycopy(siteX[i], 0, this.siteX[i], 0, L);
+			System.arraycopy(siteY[i], 0, this.siteY[i], 0, L);
+		}
+		this.current = current;
+		rehash();
+		if (deadlocks != null) deadlocks.rebuild(siteX, siteY);
+	}
+
+	/**
+	 * 各行・列の乱数系列の状態を返す
+	 * 行・列ごとに Xoshiro256 の状態4個と、持ち越している間隔1個を並べる。
+	 */
+	public long[] getAuxState() {
+		long[] aux = new long[2 * L * 5];
+		for (int lane = 0; lane < 2 * L; lane++) {
+			laneRandom[lane].saveState(aux, lane * 5);
+			aux[lane * 5 + 4] = laneStay[lane].getGap();
+		}
+		return aux;
+	}
+
+	/**
+	 * getAuxState() で得た乱数系列の状態を設定する
+	 */
+	public void setAuxState(long[] aux) {
+		if (aux.length != 2 * L * 5) {
+			throw new IllegalArgumentException("内部状態の長さが違います: " + aux.length);
+		}
+		for (int lane = 0; lane < 2 * L; lane++) {
+			laneRandom[lane].loadState(aux, lane * 5);
+			laneStay[lane].setGap(aux[lane * 5 + 4]);
+		}
+	}
+
+	/**
+	 * 状態 (siteX, siteY, current) のハッシュ値を返す
+	 * 各ステップで変化したサイトの鍵だけを XOR して更新している。
+	 */
+	public long stateHash() {
+		return hash ^ StateHash.phase(current);
+	}
+
 
 	/**
 	 * サイトの状態をコンソールに表示する
@@ -212,6 +303,9 @@ public class ExtendedBML {
 			System.out.println("[err] スロースタート効果 P は0以上1以下でなければなりません。");
 		} else {
 			this.P = P;
+			for (int lane = 0; lane < 2 * L; lane++) {
+				laneStay[lane] = new BernoulliMask(1.0 - P);
+			}
 		}
 	}
 
@@ -256,138 +350,276 @@ public class ExtendedBML {
 
 	/**
 	 * 横方向の車を１ステップ動かす
+	 * 横方向の移動中は siteY が変化しないので、各行は独立した1次元の環として動かせる。
+	 * 結果は nextX に書き込み、siteX と参照を交換する。
 	 * @param ss スロースタート効果を適用する場合、true
 	 * @return そのステップで動いた車の数
 	 */
 	private int moveHorizontal(boolean ss) {
-		int[][] temp = new int[L][L];
-		int i=0, next, prev=0, rnd;
-		int count = 0;
-		//test
-		int cntTemp = 0;
+		int count = (pool == null)
+				? moveLanes(true, ss, 0, L)
+				: pool.invoke(new LaneTask(true, ss, 0, L));
 
-		// 列を j=0→(L-1) まで回す
-		for (int j = 0; j < L; j++) {
+		for (int lane = 0; lane < L; lane++) {
+			hash ^= laneHash[lane];
+		}
 
-			// 行を１回余分に回す
-			for (int n = 0; n <= L; n++) {
+		// siteXとnextXを交換
+		int[][] temp = nextX;
+		nextX = siteX;
+		siteX = temp;
 
-				if (j % 2 == 0) {
-					// jが偶数の場合、右向き
-					i = (n == L ? 0 : n);
-					next = (i == L-1 ? 0 : i+1); // 進行方向前方の車のi座標
-					prev = (i == 0 ? L-1 : i-1); // 進行方向後方の車のi座標
-				} else {
-					// jが奇数の場合、左向き
-					i = (n == L ? L-1 : L-1-n);
-					next = (i == 0 ? L-1 : i-1);
-					prev = (i == L-1 ? 0 : i+1);
+		// 動いた車の元の位置と行き先の周りだけデッドロックを調べ直す
+		if (deadlocks != null) {
+			for (int j = 0; j < L; j++) {
+				int d = (j % 2 == 0 ? 1 : L-1);
+				for (int c = 0; c < laneCount[j]; c++) {
+					int i = laneMoved[j][c];
+					deadlocks.update(siteX, siteY, i, j);
+					deadlocks.update(siteX, siteY, (i + d) % L, j);
 				}
-				if (n == L) break; // 最終回だったらbreak
+			}
+		}
 
-				// スロースタート効果がない場合、rnd = 0
-				// スロースタート効果がある場合、移動しないとき、rnd = 1
-				// 移動しないのは(1-P)の確率で起こる
-				rnd = (ss ? ((random.nextDouble() >= P) ? 1 : 0) : 0);
+		return count;
+	}
 
-				// 出て行くときの回数を数える
-				if (siteX[i][j]*(1-siteX[next][j])*(1-siteY[next][j])*(1-rnd) == 1)
-					count++;
+	/**
+	 * 縦方向の車を１ステップ動かす
+	 * 縦方向の移動中は siteX が変化しないので、各列は独立した1次元の環として動かせる。
+	 * 結果は nextY に書き込み、siteY と参照を交換する。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveVertical(boolean ss) {
+		int count = (pool == null)
+				? moveLanes(false, ss, 0, L)
+				: pool.invoke(new LaneTask(false, ss, 0, L));
 
-				temp[i][j] = siteX[i][j]*(siteX[next][j]+siteY[next][j]+(1-siteX[next][j])*(1-siteY[next][j])*rnd)
-						   + (1-siteX[i][j])*(1-siteY[i][j])*siteX[prev][j]*(1-temp[prev][j]);
-			}
-			// プラス１回
-			temp[i][j] = (1-siteX[i][j])*(1-siteY[i][j])*siteX[prev][j]*(1-temp[prev][j])
-					   + (1 - (1-siteX[i][j])*(1-siteY[i][j])*siteX[prev][j])*temp[i][j];
+		for (int lane = L; lane < L + L; lane++) {
+			hash ^= laneHash[lane];
 		}
 
-		//ここで計測する
-		for (i = 0; i < L; i++) {
-			for (int j = 0; j < L; j++) {
-				if (siteX[i][j] != temp[i][j])
-					cntTemp++;
+		// siteYとnextYを交換
+		int[][] temp = nextY;
+		nextY = siteY;
+		siteY = temp;
+
+		if (deadlocks != null) {
+			for (int i = 0; i < L; i++) {
+				int d = (i % 2 == 0 ? L-1 : 1);
+				for (int c = 0; c < laneCount[L + i]; c++) {
+					int j = laneMoved[L + i][c];
+					deadlocks.update(siteX, siteY, i, j);
+					deadlocks.update(siteX, siteY, i, (j + d) % L);
+				}
 			}
 		}
-		assert (2*count == cntTemp);
 
+		return count;
+	}
 
-		// tempをsiteXにコピー
-		for (i = 0; i < L; i++) {
-			for (int j = 0; j < L; j++) {
-				siteX[i][j] = temp[i][j];
-			}
+	/**
+	 * [from, to) の行（横方向）または列（縦方向）を動かす
+	 * @return 動いた車の数
+	 */
+	private int moveLanes(boolean horizontal, boolean ss, int from, int to) {
+		int count = 0;
+		for (int lane = from; lane < to; lane++) {
+			count += horizontal ? moveRow(lane, ss) : moveColumn(lane, ss);
 		}
-
 		return count;
 	}
 
-
-
 	/**
-	 * 縦方向の車を１ステップ動かす
+	 * 行 j の横方向の車を１ステップ動かす
+	 * @param j 行
 	 * @param ss スロースタート効果を適用する場合、true
-	 * @return そのステップで動いた車の数
+	 * @return 動いた車の数
 	 */
-	private int moveVertical(boolean ss) {
-		int[][] temp = new int[L][L];
-		int j=0, next, prev=0, rnd;
+	private int moveRow(int j, boolean ss) {
+		int[][] temp = nextX;
+		Xoshiro256 random = laneRandom[j];
+		BernoulliMask stayMask = laneStay[j];
+		int i=0, next, prev=0, rnd;
 		int count = 0;
-		int count2 = 0;
+		// 変化したサイトの数（検証時のみ数える）
+		int changed = 0;
+		// 変化したサイトの鍵の XOR
+		long delta = 0;
+		// スロースタート効果で留まるサイトのビット列と、その残りビット数
+		long stayBits = 0;
+		int stayLeft = 0;
+
+		// 行を１回余分に回す
+		for (int n = 0; n <= L; n++) {
+
+			if (j % 2 == 0) {
+				// jが偶数の場合、右向き
+				i = (n == L ? 0 : n);
+				next = (i == L-1 ? 0 : i+1); // 進行方向前方の車のi座標
+				prev = (i == 0 ? L-1 : i-1); // 進行方向後方の車のi座標
+			} else {
+				// jが奇数の場合、左向き
+				i = (n == L ? L-1 : L-1-n);
+				next = (i == 0 ? L-1 : i-1);
+				prev = (i == L-1 ? 0 : i+1);
+			}
+			if (n == L) break; // 最終回だったらbreak
+
+			// スロースタート効果がない場合、rnd = 0
+			// スロースタート効果がある場合、移動しないとき、rnd = 1
+			// 移動しないのは(1-P)の確率で起こる（64サイト分をまとめて引く）
+			if (ss) {
+				if (stayLeft == 0) {
+					stayBits = stayMask.next(random);
+					stayLeft = 64;
+				}
+				rnd = (int)stayBits & 1;
+				stayBits >>>= 1;
+				stayLeft--;
+			} else {
+				rnd = 0;
+			}
 
-		// 行を i=0→(L-1) まで回す
-		for (int i = 0; i < L; i++) {
+			// 出て行くときの回数を数える
+			if (siteX[i][j]*(1-siteX[next][j])*(1-siteY[next][j])*(1-rnd) == 1) {
+				if (deadlocks != null) laneMoved[j][count] = i;
+				count++;
+			}
 
-			// 列を１回余分に回す
-			for (int n = 0; n <= L; n++) {
+			// 前回の値が残っている temp[prev][j] を読むのは n == 0 のときだけで、
+			// そのサイトは最後のプラス１回で計算し直す
+			temp[i][j] = siteX[i][j]*(siteX[next][j]+siteY[next][j]+(1-siteX[next][j])*(1-siteY[next][j])*rnd)
+					   + (1-siteX[i][j])*(1-siteY[i][j])*siteX[prev][j]*(1-temp[prev][j]);
 
-				if (i % 2 == 0) {
-					// iが偶数の場合、上向き
-					j = (n == L ? L-1 : L-1-n);
-					next = (j == 0 ? L-1 : j-1); // 進行方向前方の車のj座標
-					prev = (j == L-1 ? 0 : j+1); // 進行方向後方の車のj座標
-				} else {
-					// iが奇数の場合、下向き
-					j = (n == L ? 0 : n);
-					next = (j == L-1 ? 0 : j+1);
-					prev = (j == 0 ? L-1 : j-1);
-				}
-				if (n == L) break; // 最終回だったらbreak;
+			if (n > 0 && siteX[i][j] != temp[i][j]) {
+				delta ^= StateHash.cell(StateHash.X, i, j);
+				if (verify) changed++;
+			}
+		}
+		// プラス１回
+		temp[i][j] = (1-siteX[i][j])*(1-siteY[i][j])*siteX[prev][j]*(1-temp[prev][j])
+				   + (1 - (1-siteX[i][j])*(1-siteY[i][j])*siteX[prev][j])*temp[i][j];
 
-				// スロースタート効果がない場合、rnd = 0
-				// スロースタート効果がある場合、移動しないとき、rnd = 1
-				// 移動しないのは(1-P)の確率で起こる
-				rnd = (ss ? ((random.nextDouble() >= P) ? 1 : 0) : 0);
+		if (siteX[i][j] != temp[i][j]) {
+			delta ^= StateHash.cell(StateHash.X, i, j);
+			if (verify) changed++;
+		}
+		assert (2*count == changed);
+		laneHash[j] = delta;
+		laneCount[j] = count;
 
-				if (siteY[i][j] *(1-siteX[i][next])*(1-siteY[i][next])*(1-rnd) == 1)
-					count++;
+		return count;
+	}
 
-				temp[i][j] = siteY[i][j]*(siteX[i][next]+siteY[i][next]+(1-siteX[i][next])*(1-siteY[i][next])*rnd)
-						   + (1-siteX[i][j])*(1-siteY[i][j])*siteY[i][prev]*(1-temp[i][prev]);
+	/**
+	 * 列 i の縦方向の車を１ステップ動かす
+	 * @param i 列
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return 動いた車の数
+	 */
+	private int moveColumn(int i, boolean ss) {
+		int[][] temp = nextY;
+		Xoshiro256 random = laneRandom[L + i];
+		BernoulliMask stayMask = laneStay[L + i];
+		int j=0, next, prev=0, rnd;
+		int count = 0;
+		// 変化したサイトの数（検証時のみ数える）
+		int changed = 0;
+		// 変化したサイトの鍵の XOR
+		long delta = 0;
+		// スロースタート効果で留まるサイトのビット列と、その残りビット数
+		long stayBits = 0;
+		int stayLeft = 0;
+
+		// 列を１回余分に回す
+		for (int n = 0; n <= L; n++) {
+
+			if (i % 2 == 0) {
+				// iが偶数の場合、上向き
+				j = (n == L ? L-1 : L-1-n);
+				next = (j == 0 ? L-1 : j-1); // 進行方向前方の車のj座標
+				prev = (j == L-1 ? 0 : j+1); // 進行方向後方の車のj座標
+			} else {
+				// iが奇数の場合、下向き
+				j = (n == L ? 0 : n);
+				next = (j == L-1 ? 0 : j+1);
+				prev = (j == 0 ? L-1 : j-1);
+			}
+			if (n == L) break; // 最終回だったらbreak;
+
+			// スロースタート効果がない場合、rnd = 0
+			// スロースタート効果がある場合、移動しないとき、rnd = 1
+			// 移動しないのは(1-P)の確率で起こる（64サイト分をまとめて引く）
+			if (ss) {
+				if (stayLeft == 0) {
+					stayBits = stayMask.next(random);
+					stayLeft = 64;
+				}
+				rnd = (int)stayBits & 1;
+				stayBits >>>= 1;
+				stayLeft--;
+			} else {
+				rnd = 0;
 			}
-			// プラス１回
-			temp[i][j] = (1-siteX[i][j])*(1-siteY[i][j])*siteY[i][prev]*(1-temp[i][prev])
-					   + (1 - (1-siteX[i][j])*(1-siteY[i][j])*siteY[i][prev])*temp[i][j];
-		}
 
-		for (int i = 0; i < L; i++) {
-			for (j = 0; j < L; j++) {
-				if (siteY[i][j] != temp[i][j])
-					count2++;
+			if (siteY[i][j] *(1-siteX[i][next])*(1-siteY[i][next])*(1-rnd) == 1) {
+				if (deadlocks != null) laneMoved[L + i][count] = j;
+				count++;
 			}
-		}
-		assert (2*count == count2);
 
-		// tempをsiteYにコピー
-		for (int i = 0; i < L; i++) {
-			for (j = 0; j < L; j++) {
-				siteY[i][j] = temp[i][j];
+			temp[i][j] = siteY[i][j]*(siteX[i][next]+siteY[i][next]+(1-siteX[i][next])*(1-siteY[i][next])*rnd)
+					   + (1-siteX[i][j])*(1-siteY[i][j])*siteY[i][prev]*(1-temp[i][prev]);
+
+			if (n > 0 && siteY[i][j] != temp[i][j]) {
+				delta ^= StateHash.cell(StateHash.Y, i, j);
+				if (verify) changed++;
 			}
 		}
+		// プラス１回
+		temp[i][j] = (1-siteX[i][j])*(1-siteY[i][j])*siteY[i][prev]*(1-temp[i][prev])
+				   + (1 - (1-siteX[i][j])*(1-siteY[i][j])*siteY[i][prev])*temp[i][j];
+
+		if (siteY[i][j] != temp[i][j]) {
+			delta ^= StateHash.cell(StateHash.Y, i, j);
+			if (verify) changed++;
+		}
+		assert (2*count == changed);
+		laneHash[L + i] = delta;
+		laneCount[L + i] = count;
 
 		return count;
 	}
 
+	/**
+	 * 行（列）の範囲を分割して並列に動かすタスク
+	 */
+	private class LaneTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private final boolean horizontal, ss;
+		private final int from, to;
+
+		LaneTask(boolean horizontal, boolean ss, int from, int to) {
+			this.horizontal = horizontal;
+			this.ss = ss;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (to - from <= grain) {
+				return moveLanes(horizontal, ss, from, to);
+			}
+			int mid = (from + to) >>> 1;
+			LaneTask left = new LaneTask(horizontal, ss, from, mid);
+			left.fork();
+			int count = new LaneTask(horizontal, ss, mid, to).compute();
+			return count + left.join();
+		}
+	}
+
 
 
 	public void check() {
@@ -407,25 +639,25 @@ public class ExtendedBML {
 
 
 	/**
-	 * デッドロックを数える。<注：境界まで探していない>
+	 * デッドロックの索引を返す
+	 * 最初に呼び出したときに格子全体から作り、以降は move() のたびに
+	 * 動いた車の周りだけを調べ直して更新する（境界をまたぐ箱も含む）。
+	 * 返した索引は move() によって更新され続ける。
 	 */
-	public ArrayList<Integer> countDeadlocks() {
-		int count = 0;
-		ArrayList<Integer> list = new ArrayList<Integer>();
-
-		for (int i = 0; i < L - 2; i+=2) {
-			for (int j = 0; j < L - 2; j+=2) {
-				if (siteX[i][j] == 1 && siteX[i+1][j+1] == 1 && siteY[i+1][j] == 1 && siteY[i][j+1] == 1) {
-					count++;
-					list.add(i); list.add(j);
-				}
-				if (siteY[i+1][j+1] == 1 && siteY[i+2][j+2] == 1 && siteX[i+2][j+1] == 1 && siteX[i+1][j+2] == 1) {
-					count++;
-					list.add(i+1); list.add(j+1);
-				}
-			}
+	public DeadlockIndex getDeadlocks() {
+		if (deadlocks == null) {
+			laneMoved = new int[2 * L][k];
+			DeadlockIndex index = new DeadlockIndex(L);
+			index.rebuild(siteX, siteY);
+			deadlocks = index;
 		}
+		return deadlocks;
+	}
 
-		return list;
+	/**
+	 * デッドロックを数える。
+	 */
+	public int countDeadlocks() {
+		return getDeadlocks().size();
 	}
 }
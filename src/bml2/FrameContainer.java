@@ -0,0 +1,198 @@
+package bml2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * コマ（格子の状態）を続けて書き込むファイル
+ *
+ * 各サイトを 空(0) / 横方向の車(1) / 縦方向の車(2) の3値で持つ（車の向きは行・列の偶奇で決まる）。
+ * コマごとに、同じ値の連なりを (値, 長さ) の組にするランレングス符号と、
+ * 1サイト2ビットに詰めたものの短い方で書く。渋滞した状態ではランレングス符号が、
+ * 自由流の状態ではビット詰めが短くなる。
+ *
+ * ファイルの形式（ビッグエンディアン）:
+ *   int    MAGIC ("BMLF"), VERSION
+ *   int    L
+ *   long   every（何ステップごとのコマか）
+ *   コマの繰り返し:
+ *     long   step
+ *     byte   符号の種類（RLE / PACKED）
+ *     int    長さ, byte[] 符号
+ *   RLE:    byte 値, 可変長整数（7ビットずつ、下位から）の長さ の繰り返し（行優先 j*L+i の順）
+ *   PACKED: サイト n を byte[n/4] のビット 2*(n%4) から2ビットに詰めたもの
+ */
+class FrameContainer implements Closeable {
+	static final int MAGIC = 0x424D4C46; // "BMLF"
+	static final int VERSION = 1;
+	static final byte RLE = 0, PACKED = 1;
+
+	/**
+	 * 読み出したコマを受け取る
+	 */
+	interface Visitor {
+		/**
+		 * @param step ステップ数
+		 * @param codes 各サイトの色番号（LatticeRaster.code()、行優先 j*L+i。次のコマで上書きされる）
+		 */
+		void frame(long step, byte[] codes);
+	}
+
+	private final int L;
+	private final DataOutputStream out;
+	private final byte[] packed; // ビット詰めの作業領域
+	private final byte[] rle;    // ランレングス符号の作業領域（ビット詰めより長くなったら打ち切る）
+
+	/**
+	 * ファイルを作ってヘッダを書く
+	 * @param file 書き込むファイル
+	 * @param L 正方格子の一辺の数
+	 * @param every 何ステップごとのコマか
+	 */
+	FrameContainer(Path file, int L, long every) throws IOException {
+		this.L = L;
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+		packed = new byte[(L * L + 3) / 4];
+		rle = new byte[packed.length + 8];
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(L);
+		out.writeLong(every);
+	}
+
+	/**
+	 * サイトの色番号から3値への変換
+	 */
+	private static int state(byte code) {
+		if (code == LatticeRaster.EMPTY) return 0;
+		return (code == LatticeRaster.RIGHT || code == LatticeRaster.LEFT) ? 1 : 2;
+	}
+
+	/**
+	 * コマを1つ書く
+	 * @param step ステップ数
+	 * @param codes 各サイトの色番号（行優先 j*L+i）
+	 */
+	void write(long step, byte[] codes) throws IOException {
+		int n = L * L;
+
+		// ランレングス符号（ビット詰めより長くなったら打ち切る）
+		int len = 0;
+		for (int s = 0; s < n; ) {
+			int v = state(codes[s]);
+			int run = 1;
+			while (s + run < n && state(codes[s + run]) == v) run++;
+			s += run;
+			if (len + 6 > packed.length) {
+				len = -1;
+				break;
+			}
+			rle[len++] = (byte)v;
+			while (run >= 0x80) {
+				rle[len++] = (byte)(run | 0x80);
+				run >>>= 7;
+			}
+			rle[len++] = (byte)run;
+		}
+
+		out.writeLong(step);
+		if (len >= 0) {
+			out.writeByte(RLE);
+			out.writeInt(len);
+			out.write(rle, 0, len);
+		} else {
+			Arrays.fill(packed, (byte)0);
+			for (int s = 0; s < n; s++) {
+				packed[s >> 2] |= (byte)(state(codes[s]) << ((s & 3) * 2));
+			}
+			out.writeByte(PACKED);
+			out.writeInt(packed.length);
+			out.write(packed);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * ファイルのコマを順に読み出す
+	 * @param file 読み込むファイル
+	 * @param visitor コマを受け取る
+	 * @return L
+	 */
+	static int read(Path file, Visitor visitor) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("コマのファイルではありません: " + file);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("対応していない版です: " + version);
+			}
+			int L = in.readInt();
+			in.readLong(); // every
+			int n = L * L;
+			byte[] codes = new byte[n];
+			byte[] buf = new byte[(n + 3) / 4 + 8];
+
+			while (true) {
+				long step;
+				try {
+					step = in.readLong();
+				} catch (EOFException e) {
+					return L;
+				}
+				byte kind = in.readByte();
+				int len = in.readInt();
+				if (len < 0 || len > buf.length) {
+					throw new IOException("コマの長さが不正です: " + len);
+				}
+				in.readFully(buf, 0, len);
+
+				if (kind == RLE) {
+					int s = 0;
+					for (int p = 0; p < len; ) {
+						int v = buf[p++];
+						int run = 0;
+						for (int shift = 0; ; shift += 7) {
+							int b = buf[p++];
+							run |= (b & 0x7f) << shift;
+							if (b >= 0) break;
+						}
+						if (s + run > n) {
+							throw new IOException("コマの符号が不正です (step " + step + ")");
+						}
+						for (int e = s + run; s < e; s++) codes[s] = decode(s, L, v);
+					}
+					if (s != n) {
+						throw new IOException("コマの符号が不正です (step " + step + ")");
+					}
+				} else if (kind == PACKED) {
+					for (int s = 0; s < n; s++) {
+						codes[s] = decode(s, L, (buf[s >> 2] >> ((s & 3) * 2)) & 3);
+					}
+				} else {
+					throw new IOException("符号の種類が不正です: " + kind);
+				}
+				visitor.frame(step, codes);
+			}
+		}
+	}
+
+	/**
+	 * 3値からサイト n = j*L+i の色番号への変換
+	 */
+	private static byte decode(int n, int L, int v) {
+		return (byte)LatticeRaster.code(n % L, n / L, v == 1 ? 1 : 0, v == 2 ? 1 : 0);
+	}
+}
@@ -0,0 +1,171 @@
+package bml2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.imageio.ImageIO;
+
+/**
+ * 画面なしでコマを書き出す記録器
+ *
+ * シミュレーションのスレッドは every ステップごとに capture() で格子の状態を LatticeFrame に写し取り、
+ * 上限のあるキューに入れるだけで戻る。書き出しは別のスレッドが行うので、ディスクを待つのは
+ * キューが一杯のときだけである。LatticeFrame は使い回すので、記録中にメモリは増えない。
+ *
+ * 書き出しの形式:
+ * ・PNG:  1コマ1サイト1ピクセルの連番画像 (frame_0000001000.png など)
+ * ・BMLF: すべてのコマを1つのファイル (frames.bmlf) に、ランレングス符号かビット詰めで書く（FrameContainer）
+ *
+ * 書き出しに失敗した場合もシミュレーションは止めず、以降のコマを捨てて close() で例外を投げる。
+ */
+class FrameRecorder implements Closeable {
+	/**
+	 * 書き出しの形式
+	 */
+	enum Format { PNG, BMLF }
+
+	private static final LatticeFrame END = new LatticeFrame(0); // 書き出しの終わりの印
+
+	private final Path dir;
+	private final Format format;
+	private final int L;
+	private final long every;
+	private final BlockingQueue<LatticeFrame> queue; // 書き出し待ちのコマ
+	private final BlockingQueue<LatticeFrame> free;  // 使い回すコマ
+	private final Thread encoder;
+	private FrameContainer container;                // BMLF の書き込み先
+	private LatticeRaster raster;                    // PNG の画像
+	private volatile IOException error;              // 書き出しで起きた例外
+	private long frames = 0;                         // 書き出しを頼んだコマの数
+	private boolean closed = false;
+
+	/**
+	 * @param dir 書き出すディレクトリ（なければ作る）
+	 * @param format 書き出しの形式
+	 * @param L 正方格子の一辺の数
+	 * @param every 何ステップごとに記録するか
+	 * @param capacity キューに溜めておけるコマの数
+	 */
+	FrameRecorder(Path dir, Format format, int L, long every, int capacity) throws IOException {
+		if (every <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("every, capacity は1以上でなければなりません。");
+		}
+		this.dir = dir;
+		this.format = format;
+		this.L = L;
+		this.every = every;
+		Files.createDirectories(dir);
+		if (format == Format.BMLF) {
+			container = new FrameContainer(dir.resolve("frames.bmlf"), L, every);
+		} else {
+			raster = new LatticeRaster(L);
+		}
+
+		queue = new ArrayBlockingQueue<>(capacity + 1);
+		free = new ArrayBlockingQueue<>(capacity);
+		for (int n = 0; n < capacity; n++) {
+			free.add(new LatticeFrame(L));
+		}
+
+		encoder = new Thread(this::encode, "FrameRecorder-" + dir.getFileName());
+		encoder.setDaemon(true);
+		encoder.start();
+	}
+
+	/**
+	 * 何ステップごとに記録するか
+	 */
+	long getEvery() {
+		return every;
+	}
+
+	/**
+	 * 書き出しを頼んだコマの数
+	 */
+	long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * ステップ数が every の倍数なら、系の状態を記録する
+	 * キューに空きがあればすぐに戻り、一杯のときだけ空くまで待つ。
+	 * @param bml 記録するエンジン
+	 * @param step 現在のステップ数
+	 */
+	void capture(BMLModel bml, long step) {
+		if (step % every != 0 || closed || error != null) return;
+
+		LatticeFrame f = free.poll();
+		try {
+			if (f == null) f = free.take(); // キューが一杯
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		int[][][] sites = bml.getSites();
+		f.capture(sites[0], sites[1], step, -1);
+		queue.add(f); // queue は free より大きいので必ず入る
+		frames++;
+	}
+
+	/**
+	 * 書き出しのスレッド
+	 */
+	private void encode() {
+		while (true) {
+			LatticeFrame f;
+			try {
+				f = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (f == END) return;
+
+			try {
+				if (error == null) write(f);
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				// ImageIO などの例外でスレッドが止まると、capture() が空きを待ち続けてしまう
+				error = new IOException("コマを書き出せません: " + e, e);
+			} finally {
+				free.add(f);
+			}
+		}
+	}
+
+	private void write(LatticeFrame f) throws IOException {
+		if (format == Format.BMLF) {
+			container.write(f.step, f.codes);
+		} else {
+			raster.update(f.codes);
+			Path file = dir.resolve(String.format("frame_%010d.png", f.step));
+			if (!ImageIO.write(raster.getImage(), "png", file.toFile())) {
+				throw new IOException("PNG を書き出せません。");
+			}
+		}
+	}
+
+	/**
+	 * 溜まっているコマをすべて書き出してから閉じる
+	 * 書き出しに失敗していた場合は、その例外を投げる。
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			queue.put(END);
+			encoder.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			encoder.interrupt();
+		}
+		if (container != null) container.close();
+		if (error != null) throw error;
+	}
+}
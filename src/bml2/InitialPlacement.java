@@ -0,0 +1,274 @@
+package bml2;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * 初期配置の生成
+ *
+ * どのエンジンも同じ初期配置の規則を使うように、配置処理をここにまとめる。
+ * 各列に縦方向の車を k 台、各行に横方向の車を k 台置く。
+ * 縦方向の車は列の順に、その時点でまだ空きのある行から一様に選び、
+ * 横方向の車は行ごとに、縦方向の車のない列から一様に選ぶ。
+ * 1台ずつ・1列ずつの選択は一様だが、できあがる配置全体は一様分布ではない
+ * （先に選んだ列の選び方が後の列の候補を狭めるため。例えば L=4, k=2 の 90 通りの配置は等確率にならない）。
+ * 元の実装（サイトを一様に引いて空くまで引き直す方法）とも分布が異なる。
+ *
+ * 乱数で選んだサイトが空くまで引き直す方法では、k が L/2 に近いと試行回数が増え続け、
+ * 途中で置けなくなることもある。ここでは選べるサイトの集合を配列で持ち、部分的な
+ * Fisher–Yates シャッフルで k 個を選ぶので、引き直しがなく O(N + L) で終わる。
+ *
+ * 縦方向の車を先に置く。各行には後から横方向の車を k 台置く空きが必要なので、
+ * 行ごとの縦方向の車は L-k 台までとする。k が大きい場合（(L-k)^2 < kL）は、
+ * 残りの列をすべて埋められる条件を保つように選ぶ（下の safe の場合）。
+ */
+class InitialPlacement {
+
+	/**
+	 * 車を置く先（エンジンの格子）
+	 */
+	interface Sink {
+		/**
+		 * サイト (i, j) に車を置く
+		 * 向きは ExtendedBML と同じく、行・列の偶奇で決まる。
+		 * @param horizontal 横方向の車なら true、縦方向の車なら false
+		 */
+		void put(int i, int j, boolean horizontal);
+	}
+
+	/**
+	 * 置いた縦方向の車を行ごとに読み返せる格子
+	 * place(L, k, random, Lattice) は縦方向の車の位置を自分で覚えないので、ヒープは O(L + k) しか使わない。
+	 */
+	interface Lattice extends Sink {
+		/**
+		 * 行 j で縦方向の車のある列を小さい順に cols に入れる
+		 * 縦方向の車をすべて置いた後に呼ばれる。
+		 * @return 列の数
+		 */
+		int verticalColumns(int j, int[] cols);
+	}
+
+	/**
+	 * 1列分の縦方向の車の行を受け取る
+	 */
+	private interface ColumnSink {
+		void column(int i, int[] rows);
+	}
+
+	/**
+	 * 1行分の縦方向の車の列を返す（Lattice.verticalColumns と同じ）
+	 */
+	private interface RowColumns {
+		int get(int j, int[] cols);
+	}
+
+	private InitialPlacement() {
+	}
+
+	/**
+	 * 初期配置を生成する
+	 * 0 <= k <= L/2 なら必ず配置できる。
+	 * 縦方向の車の位置を覚えるために int[L*k] を2つ使う（L*k が int に収まらない大きさでは Lattice の方を使う）。
+	 * @param L 正方格子の一辺の数
+	 * @param k 最小密度の倍数定数
+	 * @param random 乱数生成器
+	 * @param sink 車を置く先（各サイトに高々1回呼ばれる）
+	 */
+	static void place(int L, int k, RandomGenerator random, Sink sink) {
+		if (k < 0 || L/2 < k) {
+			throw new IllegalArgumentException("kは0以上L/2以下でなければなりません。");
+		}
+		if ((long)L * k > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("L*k が大きすぎます: " + ((long)L * k));
+		}
+
+		// 縦方向の車: 列 i に置く行を yRows[i*k .. i*k+k) に覚える
+		int[] yRows = new int[L * k];
+		int[] rowCap = placeVertical(L, k, random, (i, rows) -> {
+			for (int t = 0; t < k; t++) {
+				yRows[i*k + t] = rows[t];
+				sink.put(i, rows[t], false);
+			}
+		});
+
+		// 行ごとの縦方向の車の列（行 r は yCols[start[r] .. start[r+1])）
+		int[] start = new int[L + 1];
+		for (int r = 0; r < L; r++) start[r + 1] = start[r] + (L - k - rowCap[r]);
+		int[] fill = new int[L];
+		int[] yCols = new int[L * k];
+		for (int i = 0; i < L; i++) {
+			for (int t = 0; t < k; t++) {
+				int r = yRows[i*k + t];
+				yCols[start[r] + fill[r]++] = i;
+			}
+		}
+
+		placeHorizontal(L, k, random, sink, (j, cols) -> {
+			int n = start[j + 1] - start[j];
+			System.arraycopy(yCols, start[j], cols, 0, n);
+			return n;
+		});
+	}
+
+	/**
+	 * 初期配置を生成する（縦方向の車の位置は lattice から読み返す）
+	 * 乱数の使い方は place(L, k, random, Sink) と同じなので、同じ乱数系列なら同じ配置になる。
+	 * ヒープは O(L + k) しか使わない。
+	 */
+	static void place(int L, int k, RandomGenerator random, Lattice lattice) {
+		if (k < 0 || L/2 < k) {
+			throw new IllegalArgumentException("kは0以上L/2以下でなければなりません。");
+		}
+		placeVertical(L, k, random, (i, rows) -> {
+			for (int t = 0; t < k; t++) lattice.put(i, rows[t], false);
+		});
+		placeHorizontal(L, k, random, lattice, lattice::verticalColumns);
+	}
+
+	/**
+	 * 縦方向の車を列ごとに選ぶ
+	 * @return 各行にあと置ける縦方向の車の数
+	 */
+	private static int[] placeVertical(int L, int k, RandomGenerator random, ColumnSink out) {
+		int[] rowCap = new int[L]; // 各行にあと置ける縦方向の車の数
+		for (int r = 0; r < L; r++) rowCap[r] = L - k;
+
+		boolean safe = (long)(L - k) * (L - k) < (long)k * L;
+		if (!safe) {
+			placeColumns(L, k, random, rowCap, out);
+		} else {
+			placeColumnsSafe(L, k, random, rowCap, out);
+		}
+		return rowCap;
+	}
+
+	/**
+	 * 横方向の車: 行ごとに、縦方向の車のない列から k 個選ぶ
+	 */
+	private static void placeHorizontal(int L, int k, RandomGenerator random, Sink sink, RowColumns yCols) {
+		// perm は恒等置換から始め、行ごとに触った位置だけ元に戻す
+		int[] perm = new int[L], inv = new int[L];
+		for (int c = 0; c < L; c++) {
+			perm[c] = c;
+			inv[c] = c;
+		}
+		int[] cols = new int[L];
+		int[] touched = new int[2 * L + 2 * k];
+		for (int j = 0; j < L; j++) {
+			int nt = 0;
+			int n = L;
+			// 縦方向の車のある列を末尾に寄せる
+			int ny = yCols.get(j, cols);
+			for (int s = 0; s < ny; s++) {
+				int p = inv[cols[s]];
+				n--;
+				swap(perm, inv, p, n);
+				touched[nt++] = p;
+				touched[nt++] = n;
+			}
+			// 残りの n 列から k 列を選ぶ
+			for (int t = 0; t < k; t++) {
+				int u = t + random.nextInt(n - t);
+				swap(perm, inv, t, u);
+				touched[nt++] = t;
+				touched[nt++] = u;
+				sink.put(perm[t], j, true);
+			}
+			for (int q = 0; q < nt; q++) {
+				perm[touched[q]] = touched[q];
+				inv[touched[q]] = touched[q];
+			}
+		}
+	}
+
+	/**
+	 * 列ごとに、まだ空きのある行から k 行を一様に選ぶ
+	 * (L-k)^2 >= kL なら、空きのある行は常に k 行以上残る。
+	 * （空きのない行は L-k 台ずつ持つので、kL 台未満では kL/(L-k) <= L-k 行未満）
+	 */
+	private static void placeColumns(int L, int k, RandomGenerator random, int[] rowCap, ColumnSink out) {
+		int[] avail = new int[L], pos = new int[L];
+		int[] rows = new int[k];
+		for (int r = 0; r < L; r++) {
+			avail[r] = r;
+			pos[r] = r;
+		}
+		int n = L;
+
+		for (int i = 0; i < L; i++) {
+			for (int t = 0; t < k; t++) {
+				int u = t + random.nextInt(n - t);
+				swap(avail, pos, t, u);
+				rows[t] = avail[t];
+			}
+			out.column(i, rows);
+			for (int t = 0; t < k; t++) {
+				int r = rows[t];
+				if (--rowCap[r] == 0) {
+					// 空きのなくなった行を除く
+					n--;
+					swap(avail, pos, pos[r], n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 列ごとに k 行を選ぶ（k が大きい場合）
+	 *
+	 * 残り m 列（この列を含む）をすべて埋められるのは、Σ_r min(rowCap[r], m) >= km のときである
+	 * （各列から各行へ容量1の辺を張ったフローの最小カットから）。
+	 * rowCap[r] >= m の行は、この列で選んでも選ばなくても左辺への寄与が1減る。
+	 * それ以外の行を選ぶと寄与が1減るので、そのような行は slack 行までしか選べない。
+	 * 足りない分は rowCap[r] >= m の行から先に選び、残りは空きのある行から一様に選ぶ。
+	 */
+	private static void placeColumnsSafe(int L, int k, RandomGenerator random, int[] rowCap, ColumnSink out) {
+		int[] high = new int[L], rest = new int[L];
+		int[] rows = new int[k];
+
+		for (int i = 0; i < L; i++) {
+			int m = L - i;
+			long f = 0;
+			int nh = 0, nr = 0;
+			for (int r = 0; r < L; r++) {
+				f += Math.min(rowCap[r], m);
+				if (rowCap[r] >= m) {
+					high[nh++] = r;
+				} else if (rowCap[r] > 0) {
+					rest[nr++] = r;
+				}
+			}
+			long slack = f - nh - (long)k * (m - 1);
+			int required = (int)Math.max(0, k - slack);
+
+			// rowCap[r] >= m の行から required 行
+			for (int t = 0; t < required; t++) {
+				int u = t + random.nextInt(nh - t);
+				int tmp = high[t]; high[t] = high[u]; high[u] = tmp;
+				rows[t] = high[t];
+			}
+			// 残りの行から k - required 行
+			for (int t = required; t < nh; t++) rest[nr++] = high[t];
+			for (int t = 0; t < k - required; t++) {
+				int u = t + random.nextInt(nr - t);
+				int tmp = rest[t]; rest[t] = rest[u]; rest[u] = tmp;
+				rows[required + t] = rest[t];
+			}
+			out.column(i, rows);
+			for (int t = 0; t < k; t++) {
+				rowCap[rows[t]]--;
+			}
+		}
+	}
+
+	/**
+	 * 置換 a（逆置換 inv）の位置 p, q の値を入れ替える
+	 */
+	private static void swap(int[] a, int[] inv, int p, int q) {
+		int vp = a[p], vq = a[q];
+		a[p] = vq;
+		a[q] = vp;
+		inv[vq] = p;
+		inv[vp] = q;
+	}
+}
@@ -0,0 +1,39 @@
+package bml2;
+
+/**
+ * 描画用に写し取った系の状態（1コマ分）
+ *
+ * 各サイトの色番号（LatticeRaster.code()）を行優先 j*L+i で持つ。
+ * シミュレーションのスレッドが capture() で書き、TripleBuffer で公開した後は、
+ * 描画側が手放すまで書き換えられない。
+ */
+class LatticeFrame {
+	final int L;
+	final byte[] codes; // 色番号 [j*L+i]
+	long step;          // 写し取ったときのステップ数
+	int deadlocks;      // 写し取ったときのデッドロックの数（数えていなければ -1）
+
+	/**
+	 * @param L 正方格子の一辺の数
+	 */
+	LatticeFrame(int L) {
+		this.L = L;
+		codes = new byte[L * L];
+	}
+
+	/**
+	 * 系の状態を写し取る
+	 * @param siteX 横方向の車 [i][j]
+	 * @param siteY 縦方向の車 [i][j]
+	 */
+	void capture(int[][] siteX, int[][] siteY, long step, int deadlocks) {
+		for (int i = 0; i < L; i++) {
+			int[] x = siteX[i], y = siteY[i];
+			for (int j = 0; j < L; j++) {
+				codes[j*L + i] = (byte)LatticeRaster.code(i, j, x[j], y[j]);
+			}
+		}
+		this.step = step;
+		this.deadlocks = deadlocks;
+	}
+}
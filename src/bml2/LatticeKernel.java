@@ -0,0 +1,77 @@
+package bml2;
+
+/**
+ * VectorBML の1行分の更新処理
+ *
+ * 格子は行優先の byte 配列（サイト (i, j) は j*L+i、値は 0 または 1）で持つ。
+ * 行内の巡回（i = 0 と L-1 の境界）は内部とは別に処理する。
+ * スロースタート効果で留まるサイトは、行内の位置 i をビット i とするビット列で与える（不要なら null）。
+ *
+ * jdk.incubator.vector が使える場合は SIMD 版（SimdKernel）、使えない場合はスカラー版（ScalarKernel）を使う。
+ * どちらも同じ結果になる。
+ */
+interface LatticeKernel {
+
+	/**
+	 * 使える中で最も速い実装を返す
+	 * システムプロパティ bml2.simd が false なら、常にスカラー版を返す。
+	 */
+	static LatticeKernel create() {
+		if (!Boolean.parseBoolean(System.getProperty("bml2.simd", "true"))) {
+			return new ScalarKernel();
+		}
+		try {
+			// --add-modules jdk.incubator.vector を指定しないとクラスを読み込めない
+			return (LatticeKernel)Class.forName("bml2.SimdKernel").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return new ScalarKernel();
+		}
+	}
+
+	/**
+	 * 実装の名前
+	 */
+	String name();
+
+	/**
+	 * 横方向の車を1行分動かす
+	 * @param x 横方向の車
+	 * @param y 縦方向の車
+	 * @param out 動かした後の横方向の車の書き込み先
+	 * @param base 行の先頭の位置 (j*L)
+	 * @param L 1行のサイト数
+	 * @param right 右向き（i+1）なら true、左向き（i-1）なら false
+	 * @param stay スロースタート効果で留まるサイト（なければ null）
+	 * @param m 作業用（長さ L）
+	 * @return 動いた車の数
+	 */
+	int horizontalRow(byte[] x, byte[] y, byte[] out, int base, int L, boolean right, long[] stay, byte[] m);
+
+	/**
+	 * 縦方向の車のうち、1行分の動ける車を求める
+	 * 偶数列は上の行 (up) へ、奇数列は下の行 (down) へ動く。
+	 * @param x 横方向の車
+	 * @param y 縦方向の車
+	 * @param base 行の先頭の位置
+	 * @param up 上の行の先頭の位置
+	 * @param down 下の行の先頭の位置
+	 * @param L 1行のサイト数
+	 * @param stay スロースタート効果で留まるサイト（なければ null）
+	 * @param mv 動ける車の書き込み先（base から L 個）
+	 * @return 動ける車の数
+	 */
+	int verticalMask(byte[] x, byte[] y, int base, int up, int down, int L, long[] stay, byte[] mv);
+
+	/**
+	 * verticalMask() で求めた動ける車を1行分動かす
+	 * 偶数列には下の行から、奇数列には上の行から車が入ってくる。
+	 * @param y 縦方向の車
+	 * @param mv 動ける車
+	 * @param out 動かした後の縦方向の車の書き込み先
+	 * @param base 行の先頭の位置
+	 * @param up 上の行の先頭の位置
+	 * @param down 下の行の先頭の位置
+	 * @param L 1行のサイト数
+	 */
+	void verticalApply(byte[] y, byte[] mv, byte[] out, int base, int up, int down, int L);
+}
@@ -0,0 +1,120 @@
+package bml2;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * 格子の状態を1サイト1ピクセルの画像に描く
+ *
+ * 車ごとに fillOval() を呼ぶ代わりに、BufferedImage の int[] ラスタへ色を直接書き込み、
+ * 画面には最近傍補間で拡大（縮小）して転送する。
+ * 前回描いたときの各サイトの色番号を持っておき、変化したピクセルだけを書き換える。
+ */
+public class LatticeRaster {
+	// 色番号: 空, 右向き, 左向き, 上向き, 下向き
+	static final int EMPTY = 0, RIGHT = 1, LEFT = 2, UP = 3, DOWN = 4;
+	// SimulatorPanel の矢印と同じ色
+	private static final int[] PALETTE = {
+			Color.WHITE.getRGB(), Color.GRAY.getRGB(), Color.BLACK.getRGB(), Color.RED.getRGB(), Color.BLUE.getRGB()
+	};
+
+	private final int L;
+	private final BufferedImage image;
+	private final int[] pixels; // image のラスタ（行優先 j*L+i）
+	private final byte[] codes; // 前回描いた色番号（行優先 j*L+i）
+
+	/**
+	 * @param L 正方格子の一辺の数
+	 */
+	public LatticeRaster(int L) {
+		this.L = L;
+		image = new BufferedImage(L, L, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		codes = new byte[L * L];
+		Arrays.fill(pixels, PALETTE[EMPTY]);
+	}
+
+	/**
+	 * Lを返します。
+	 */
+	public int getL() {
+		return L;
+	}
+
+	/**
+	 * サイト (i, j) の色番号
+	 * 横方向の車は行の偶奇、縦方向の車は列の偶奇で向きが決まる。
+	 */
+	static int code(int i, int j, int x, int y) {
+		if (x == 1) return (j % 2 == 0) ? RIGHT : LEFT;
+		if (y == 1) return (i % 2 == 0) ? UP : DOWN;
+		return EMPTY;
+	}
+
+	/**
+	 * 系の状態を画像に反映する（変化したピクセルだけ書き換える）
+	 * @param siteX 横方向の車 [i][j]
+	 * @param siteY 縦方向の車 [i][j]
+	 * @return 書き換えたピクセルの数
+	 */
+	public int update(int[][] siteX, int[][] siteY) {
+		int changed = 0;
+		for (int j = 0; j < L; j++) {
+			int row = j * L;
+			for (int i = 0; i < L; i++) {
+				int c = code(i, j, siteX[i][j], siteY[i][j]);
+				if (codes[row + i] != c) {
+					codes[row + i] = (byte)c;
+					pixels[row + i] = PALETTE[c];
+					changed++;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * 写し取った色番号を画像に反映する（変化したピクセルだけ書き換える）
+	 * @param frame 各サイトの色番号（行優先 j*L+i）
+	 * @return 書き換えたピクセルの数
+	 */
+	public int update(byte[] frame) {
+		int changed = 0;
+		for (int n = 0; n < codes.length; n++) {
+			byte c = frame[n];
+			if (codes[n] != c) {
+				codes[n] = c;
+				pixels[n] = PALETTE[c];
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * 画像を最近傍補間で拡大（縮小）して描く
+	 * @param g 描画先
+	 * @param x 左上の x 座標
+	 * @param y 左上の y 座標
+	 * @param size 描く大きさ（ピクセル）
+	 */
+	public void draw(Graphics g, int x, int y, int size) {
+		if (g instanceof Graphics2D) {
+			((Graphics2D)g).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		}
+		g.drawImage(image, x, y, size, size, null);
+	}
+
+	/**
+	 * 画像を返す（ファイルへの書き出しなどに使う）
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+}
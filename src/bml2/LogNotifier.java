@@ -0,0 +1,51 @@
+package bml2;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * 時刻を付けてファイルに追記する通知先
+ * 書き込めなくなったら以降の通知は捨てる。
+ */
+class LogNotifier implements Notifier {
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private final Writer out;
+	private boolean failed = false;
+
+	/**
+	 * @param file 追記するファイル（なければ作る）
+	 */
+	LogNotifier(Path file) throws IOException {
+		out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public synchronized void post(String message) {
+		if (failed) return;
+		String br = System.getProperty("line.separator");
+		try {
+			String time = "[" + LocalDateTime.now().format(TIME) + "] ";
+			out.write(time + message.replace("\n", br + time) + br);
+			out.flush();
+		} catch (IOException e) {
+			failed = true;
+			System.out.println("通知を書き込めません：" + e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+	}
+}
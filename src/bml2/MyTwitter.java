@@ -54,6 +54,9 @@ public class MyTwitter {
 	}
 
 	public static void tweet(String str) {
+		// initialize() を呼んでいない場合は投稿しない
+		if (twitter == null) return;
+
 		try {
 			twitter.updateStatus(str);
 		} catch (TwitterException e) {
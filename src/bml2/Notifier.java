@@ -0,0 +1,21 @@
+package bml2;
+
+import java.io.Closeable;
+
+/**
+ * 進捗や結果の通知先
+ *
+ * post() はシミュレーションのスレッドから呼ばれるので、すぐに戻らなければならない。
+ * 時間のかかる通知先（ネットワークなど）は AsyncNotifier で包んで使う。
+ */
+interface Notifier extends Closeable {
+	/**
+	 * 通知する
+	 * @param message 通知する文字列
+	 */
+	void post(String message);
+
+	@Override
+	default void close() {
+	}
+}
@@ -0,0 +1,56 @@
+package bml2;
+
+/**
+ * 計測中の1周期分の測定値
+ *
+ * 1周期 (2*tau ステップ) のうち、前半の tau ステップは横方向、後半は縦方向の車だけが動くので、
+ * 方向別の速度はそれぞれの半周期で動いた車の割合になる。
+ */
+class Observation {
+	/**
+	 * 列の名前（CSV の見出しと、列指向ファイルの列の順）
+	 */
+	static final String[] COLUMNS = {"k", "tau", "P", "seed", "step", "moved", "v", "vx", "vy", "deadlocks",
+			"clusters", "largest", "percolates"};
+
+	final int k;
+	final int tau;
+	final double P;
+	final long seed;      // 試行のシード値
+	final long step;      // 周期の終わりのステップ数（空回しを含む）
+	final long moved;     // 1周期で動いた車の数
+	final double v;       // 1周期の平均速度
+	final double vx;      // 横方向の車の平均速度
+	final double vy;      // 縦方向の車の平均速度
+	final int deadlocks;  // 周期の終わりのデッドロックの数（数えていなければ -1）
+	final int clusters;   // 周期の終わりの渋滞のクラスタの数（解析していなければ -1）
+	final int largest;    // 最大のクラスタの大きさ（解析していなければ -1）
+	final int percolates; // 格子を一周するクラスタがあれば 1、なければ 0（解析していなければ -1）
+
+	Observation(int k, int tau, double P, long seed, long step,
+			long moved, double v, double vx, double vy, int deadlocks,
+			int clusters, int largest, int percolates) {
+		this.k = k;
+		this.tau = tau;
+		this.P = P;
+		this.seed = seed;
+		this.step = step;
+		this.moved = moved;
+		this.v = v;
+		this.vx = vx;
+		this.vy = vy;
+		this.deadlocks = deadlocks;
+		this.clusters = clusters;
+		this.largest = largest;
+		this.percolates = percolates;
+	}
+
+	/**
+	 * CSV の1行（改行なし）
+	 */
+	String toCsv() {
+		return k + "," + tau + "," + P + "," + seed + "," + step + ","
+				+ moved + "," + v + "," + vx + "," + vy + "," + deadlocks + ","
+				+ clusters + "," + largest + "," + percolates;
+	}
+}
@@ -0,0 +1,145 @@
+package bml2;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * 測定値（Observation）の書き出し先
+ *
+ * ・csv:      見出し付きの CSV ファイル
+ * ・stdout:   標準出力に CSV で（閉じても標準出力は閉じない）
+ * ・columnar: 列指向のバイナリファイル
+ *
+ * 列指向ファイルの形式（ビッグエンディアン）:
+ *   int MAGIC ("BMLO"), VERSION, 列の数
+ *   ブロックの繰り返し（AsyncWriter が渡した1回分）:
+ *     int n（行数）
+ *     列ごとに n 個の値（Observation.COLUMNS の順）
+ *       int k, int tau, double P, long seed, long step, long moved,
+ *       double v, double vx, double vy, int deadlocks,
+ *       int clusters, int largest, int percolates
+ * 同じ列の値が続いているので、1列だけ読んだり圧縮したりしやすい。
+ */
+class ObservationSinks {
+	static final int MAGIC = 0x424D4C4F; // "BMLO"
+	static final int VERSION = 2;
+	private static final int ROW_BYTES = 4 + 4 + 8 + 8 + 8 + 8 + 8 + 8 + 8 + 4 + 4 + 4 + 4;
+
+	private ObservationSinks() {
+	}
+
+	/**
+	 * CSV ファイルに書き出す
+	 */
+	static AsyncWriter.Sink<Observation> csv(Path file) throws IOException {
+		Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+		return new CsvSink(w, true);
+	}
+
+	/**
+	 * 標準出力に CSV で書き出す
+	 */
+	static AsyncWriter.Sink<Observation> stdout() {
+		return new CsvSink(new BufferedWriter(new OutputStreamWriter(System.out)), false);
+	}
+
+	/**
+	 * 列指向のバイナリファイルに書き出す
+	 */
+	static AsyncWriter.Sink<Observation> columnar(Path file) throws IOException {
+		return new ColumnarSink(file);
+	}
+
+	private static class CsvSink implements AsyncWriter.Sink<Observation> {
+		private final Writer out;
+		private final boolean closeOut; // 閉じるときに out も閉じるか
+		private boolean headerPending = true;
+
+		CsvSink(Writer out, boolean closeOut) {
+			this.out = out;
+			this.closeOut = closeOut;
+		}
+
+		@Override
+		public void write(List<Observation> batch) throws IOException {
+			String br = System.getProperty("line.separator");
+			if (headerPending) {
+				out.write(String.join(",", Observation.COLUMNS) + br);
+				headerPending = false;
+			}
+			for (Observation o : batch) {
+				out.write(o.toCsv());
+				out.write(br);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closeOut) {
+				out.close();
+			} else {
+				out.flush();
+			}
+		}
+	}
+
+	private static class ColumnarSink implements AsyncWriter.Sink<Observation> {
+		private final FileChannel ch;
+		private ByteBuffer buf = ByteBuffer.allocate(4096);
+
+		ColumnarSink(Path file) throws IOException {
+			ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			ByteBuffer head = ByteBuffer.allocate(12);
+			head.putInt(MAGIC).putInt(VERSION).putInt(Observation.COLUMNS.length).flip();
+			writeFully(head);
+		}
+
+		@Override
+		public void write(List<Observation> batch) throws IOException {
+			int n = batch.size();
+			int size = 4 + n * ROW_BYTES;
+			if (buf.capacity() < size) buf = ByteBuffer.allocate(Integer.highestOneBit(size) * 2);
+			buf.clear();
+			buf.putInt(n);
+			for (Observation o : batch) buf.putInt(o.k);
+			for (Observation o : batch) buf.putInt(o.tau);
+			for (Observation o : batch) buf.putDouble(o.P);
+			for (Observation o : batch) buf.putLong(o.seed);
+			for (Observation o : batch) buf.putLong(o.step);
+			for (Observation o : batch) buf.putLong(o.moved);
+			for (Observation o : batch) buf.putDouble(o.v);
+			for (Observation o : batch) buf.putDouble(o.vx);
+			for (Observation o : batch) buf.putDouble(o.vy);
+			for (Observation o : batch) buf.putInt(o.deadlocks);
+			for (Observation o : batch) buf.putInt(o.clusters);
+			for (Observation o : batch) buf.putInt(o.largest);
+			for (Observation o : batch) buf.putInt(o.percolates);
+			buf.flip();
+			writeFully(buf);
+		}
+
+		private void writeFully(ByteBuffer b) throws IOException {
+			while (b.hasRemaining()) ch.write(b);
+		}
+
+		@Override
+		public void close() throws IOException {
+			ch.close();
+		}
+	}
+}
@@ -0,0 +1,600 @@
+package bml2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.random.RandomGenerator;
+
+/**
+ * ヒープの外に格子を置く拡張BMLモデル
+ *
+ * BitboardBML と同じビット列（行 j のサイト i はワード i/64 のビット i%64）を、
+ * ヒープの外のバッファ（ダイレクトバッファ、またはディレクトリを与えた場合はメモリマップしたファイル）に置く。
+ * 1サイトは横・縦方向の2ビットで、L=65536 でも格子全体で 1GB になる。
+ * ヒープに置くのはタイルの作業領域と、初期配置の O(L + k) の作業領域だけである。
+ *
+ * 時間発展は次のステップの書き込み先を持たずにその場で行う。格子を数行ずつのタイル（キャッシュに収まる大きさ）に分け、
+ * タイルをヒープの作業領域に読み込んで動かし、書き戻す。
+ * ・横方向の車は行の中で閉じているので、タイルごとに独立に動かせる。
+ * ・縦方向の車は上下の行に依存する。タイルの上下1行（ハロー）を読み込み、
+ *   前のタイルの最後の行の元の状態と移動マスクを持ち越す。周期境界の分として、
+ *   最初の行の元の状態と移動マスクを取っておき、最後に最初と最後の行へ入ってくる車を足す。
+ * 乱数はワードの順に BitboardBML と同じ順番で使うので、同じシード値なら同じ時間発展になる。
+ */
+public class OffHeapBML implements BMLModel {
+	// 偶数列・奇数列のビットマスク
+	private static final long EVEN = 0x5555555555555555L;
+	private static final long ODD  = 0xAAAAAAAAAAAAAAAAL;
+	// タイルの大きさの目安（1面あたりのバイト数）
+	private static final int TILE_BYTES = 128 * 1024;
+	// 1つのバッファの大きさの上限（ByteBuffer は int で番地を指すので、これを超える分は分ける）
+	private static final long CHUNK_BYTES = 1L << 30;
+
+	private final Plane x, y; // 横方向・縦方向の車
+	private final int L; // 正方格子の一辺の数
+	private final int k; // 最小密度の倍数定数
+	private final int nw; // 1行あたりのワード数
+	private final int r;  // 最終ワードの有効ビット数
+	private final long lastMask; // 最終ワードの有効ビット
+	private final int tileRows; // 1タイルの行数
+
+	// タイルの作業領域（ハローの2行を含む）
+	private final long[] tx, ty, tm;
+	private final long[] carryY, carryM; // 前のタイルの最後の行の元の状態と移動マスク
+	private final long[] firstY, firstM; // 最初の行の元の状態と移動マスク（周期境界）
+	private final long[] mrow; // 横方向の移動マスク（1行分）
+
+	private int tau = 1; // 信号機の周期
+	private double P = 1.0; // スロースタート効果
+	private int current = 0; // 現在の段階
+	private long hash; // 状態のハッシュ値（段階 current を除く。ワード単位で更新する）
+	private RandomGenerator random; // インスタンスごとの乱数生成器
+	private BernoulliMask stayMask = new BernoulliMask(0.0); // スロースタート効果で留まる車（確率 1-P）
+
+	/**
+	 * ヒープの外のバッファに格子を持つ1面（L 行 × nw ワード）
+	 * 行は1つのバッファの中に収まるように分ける。
+	 */
+	private static class Plane {
+		private final LongBuffer[] chunks;
+		private final int rowsPerChunk;
+		private final int nw;
+
+		/**
+		 * @param dir メモリマップするファイルを置くディレクトリ（null ならダイレクトバッファ）
+		 */
+		Plane(int L, int nw, Path dir, String name) throws IOException {
+			this.nw = nw;
+			rowsPerChunk = (int)Math.min(L, CHUNK_BYTES / (8L * nw));
+			chunks = new LongBuffer[(L + rowsPerChunk - 1) / rowsPerChunk];
+			Path file = null;
+			FileChannel ch = null;
+			if (dir != null) {
+				Files.createDirectories(dir);
+				file = Files.createTempFile(dir, name, ".lattice");
+				ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			try {
+				for (int c = 0; c < chunks.length; c++) {
+					int rows = Math.min(rowsPerChunk, L - c * rowsPerChunk);
+					long bytes = 8L * nw * rows;
+					ByteBuffer b = (ch == null)
+							? ByteBuffer.allocateDirect((int)bytes)
+							: ch.map(FileChannel.MapMode.READ_WRITE, 8L * nw * c * rowsPerChunk, bytes);
+					chunks[c] = b.order(ByteOrder.nativeOrder()).asLongBuffer();
+				}
+			} finally {
+				if (ch != null) {
+					// マップした領域はチャネルを閉じても残る。ファイルはできれば今消し、だめなら終了時に消す
+					ch.close();
+					try {
+						Files.delete(file);
+					} catch (IOException e) {
+						file.toFile().deleteOnExit();
+					}
+				}
+			}
+		}
+
+		/**
+		 * 行 j を dst[off..off+nw) に読む
+		 */
+		void get(int j, long[] dst, int off) {
+			chunks[j / rowsPerChunk].get((j % rowsPerChunk) * nw, dst, off, nw);
+		}
+
+		/**
+		 * src[off..off+nw) を行 j に書く
+		 */
+		void put(int j, long[] src, int off) {
+			chunks[j / rowsPerChunk].put((j % rowsPerChunk) * nw, src, off, nw);
+		}
+
+		long word(int j, int w) {
+			return chunks[j / rowsPerChunk].get((j % rowsPerChunk) * nw + w);
+		}
+
+		void setWord(int j, int w, long v) {
+			chunks[j / rowsPerChunk].put((j % rowsPerChunk) * nw + w, v);
+		}
+	}
+
+	/**
+	 * コンストラクタ（ダイレクトバッファに格子を置く）
+	 * ダイレクトバッファの合計は -XX:MaxDirectMemorySize で制限される。
+	 * @param L 正方格子の一辺の数（正の偶数）
+	 * @param k 最小密度の倍数定数（ρ=k*ρmin）
+	 */
+	OffHeapBML(int L, int k) {
+		this(L, k, null, 0);
+	}
+
+	/**
+	 * 乱数のシード値を指定するコンストラクタ
+	 * @param L
+	 * @param k
+	 * @param 乱数のシード値
+	 */
+	OffHeapBML(int L, int k, long seed) {
+		this(L, k);
+		random = new Xoshiro256(seed);
+	}
+
+	/**
+	 * 格子を置く場所とタイルの行数を指定するコンストラクタ
+	 * @param dir メモリマップするファイルを置くディレクトリ（null ならダイレクトバッファ）
+	 * @param tileRows 1タイルの行数（0 なら TILE_BYTES から決める）
+	 */
+	OffHeapBML(int L, int k, Path dir, int tileRows) {
+		random = new Xoshiro256();
+
+		if (L <= 0 || L % 2 != 0) {
+			System.out.println("[err] Lは正の偶数でなければなりません。");
+			System.exit(1);
+		}
+		if (k < 1 || L/2 < k) {
+			System.out.println("[err] kは1以上L/2以下でなければなりません。");
+			System.exit(1);
+		}
+
+		this.L = L;
+		this.k = k;
+		nw = (L + 63) / 64;
+		r = L - 64 * (nw - 1);
+		lastMask = (r == 64 ? -1L : (1L << r) - 1);
+		if (tileRows <= 0) tileRows = Math.max(1, TILE_BYTES / (8 * nw));
+		this.tileRows = Math.min(tileRows, L);
+		try {
+			x = new Plane(L, nw, dir, "x");
+			y = new Plane(L, nw, dir, "y");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		tx = new long[(this.tileRows + 2) * nw];
+		ty = new long[(this.tileRows + 2) * nw];
+		tm = new long[this.tileRows * nw];
+		carryY = new long[nw];
+		carryM = new long[nw];
+		firstY = new long[nw];
+		firstM = new long[nw];
+		mrow = new long[nw];
+	}
+
+	@Override
+	public void setRandom(RandomGenerator random) {
+		this.random = random;
+	}
+
+	@Override
+	public int getL() {
+		return L;
+	}
+
+	@Override
+	public int getN() {
+		return 2 * k * L;
+	}
+
+	@Override
+	public int getK() {
+		return k;
+	}
+
+	@Override
+	public int getTau() {
+		return tau;
+	}
+
+	@Override
+	public double getP() {
+		return P;
+	}
+
+	@Override
+	public int getCurrent() {
+		return current;
+	}
+
+	@Override
+	public void setTau(int tau) {
+		if (tau <= 0) {
+			System.out.println("[err] 信号機の周期 tau は1以上でなければなりません。");
+		} else {
+			this.tau = tau;
+		}
+	}
+
+	@Override
+	public void setP(double P) {
+		if (P < 0 || 1 < P) {
+			System.out.println("[err] スロースタート効果 P は0以上1以下でなければなりません。");
+		} else {
+			this.P = P;
+			stayMask = new BernoulliMask(1.0 - P);
+		}
+	}
+
+	@Override
+	public void initialize() throws Exception {
+		current = 0; // リセット
+
+		long[] zero = new long[nw];
+		for (int j = 0; j < L; j++) {
+			x.put(j, zero, 0);
+			y.put(j, zero, 0);
+		}
+		// 縦方向の車の位置は格子から読み返すので、配置もヒープを O(L + k) しか使わない
+		InitialPlacement.place(L, k, random, new InitialPlacement.Lattice() {
+			@Override
+			public void put(int i, int j, boolean horizontal) {
+				Plane p = horizontal ? x : y;
+				p.setWord(j, i >>> 6, p.word(j, i >>> 6) | 1L << i);
+			}
+
+			@Override
+			public int verticalColumns(int j, int[] cols) {
+				y.get(j, mrow, 0);
+				int n = 0;
+				for (int w = 0; w < nw; w++) {
+					for (long v = mrow[w]; v != 0; v &= v - 1) {
+						cols[n++] = 64 * w + Long.numberOfTrailingZeros(v);
+					}
+				}
+				return n;
+			}
+		});
+
+		rehash();
+	}
+
+	/**
+	 * ハッシュ値を計算し直す
+	 */
+	private void rehash() {
+		hash = 0;
+		for (int j = 0; j < L; j++) {
+			x.get(j, tx, 0);
+			y.get(j, ty, 0);
+			for (int w = 0; w < nw; w++) {
+				hash ^= StateHash.word(StateHash.X, j, w, tx[w]) ^ StateHash.word(StateHash.Y, j, w, ty[w]);
+			}
+		}
+	}
+
+	@Override
+	public void setState(int[][] siteX, int[][] siteY, int current) {
+		for (int j = 0; j < L; j++) {
+			for (int w = 0; w < nw; w++) {
+				tx[w] = 0;
+				ty[w] = 0;
+			}
+			for (int i = 0; i < L; i++) {
+				tx[i >>> 6] |= (long)(siteX[i][j] & 1) << i;
+				ty[i >>> 6] |= (long)(siteY[i][j] & 1) << i;
+			}
+			x.put(j, tx, 0);
+			y.put(j, ty, 0);
+		}
+		this.current = current;
+		rehash();
+	}
+
+	/**
+	 * 行のビット列をそのまま書き込む（格子全体の配列を作らない）
+	 */
+	@Override
+	public void setState(Rows rows, int current) {
+		for (int j = 0; j < L; j++) {
+			rows.getRow(j, tx, ty);
+			tx[nw - 1] &= lastMask;
+			ty[nw - 1] &= lastMask;
+			x.put(j, tx, 0);
+			y.put(j, ty, 0);
+		}
+		this.current = current;
+		rehash();
+	}
+
+	/**
+	 * 乱数生成器の状態（4個）と、持ち越している間隔を返す
+	 */
+	@Override
+	public long[] getAuxState() {
+		if (!(random instanceof Xoshiro256)) return null;
+		long[] aux = new long[5];
+		((Xoshiro256)random).saveState(aux, 0);
+		aux[4] = stayMask.getGap();
+		return aux;
+	}
+
+	@Override
+	public void setAuxState(long[] aux) {
+		if (aux.length != 5) {
+			throw new IllegalArgumentException("内部状態の長さが違います: " + aux.length);
+		}
+		if (!(random instanceof Xoshiro256)) random = new Xoshiro256();
+		((Xoshiro256)random).loadState(aux, 0);
+		stayMask.setGap(aux[4]);
+	}
+
+	@Override
+	public long stateHash() {
+		return hash ^ StateHash.phase(current);
+	}
+
+	/**
+	 * 描画のために系の状態を与える
+	 * ExtendedBML と同じ [i][j] 形式の配列を新しく作って返す（大きな格子ではヒープに収まらない）。
+	 */
+	@Override
+	public int[][][] getSites() {
+		int[][] siteX = new int[L][L];
+		int[][] siteY = new int[L][L];
+		for (int j = 0; j < L; j++) {
+			x.get(j, tx, 0);
+			y.get(j, ty, 0);
+			for (int i = 0; i < L; i++) {
+				siteX[i][j] = (int)(tx[i >>> 6] >>> i) & 1;
+				siteY[i][j] = (int)(ty[i >>> 6] >>> i) & 1;
+			}
+		}
+		return new int[][][] {siteX, siteY};
+	}
+
+	@Override
+	public void getRow(int j, long[] x, long[] y) {
+		this.x.get(j, x, 0);
+		this.y.get(j, y, 0);
+	}
+
+	@Override
+	public int move() {
+		int count;
+		if (current == 0) {
+			count = moveHorizontal(true);
+		} else if (current < tau) {
+			count = moveHorizontal(false);
+		} else if (current == tau) {
+			count = moveVertical(true);
+		} else {
+			count = moveVertical(false);
+		}
+
+		current++;
+		if (current == 2 * tau) {
+			current = 0;
+		}
+
+		return count;
+	}
+
+	@Override
+	public void move1period() {
+		for (int i = 0; i < 2 * tau; i++) {
+			move();
+		}
+	}
+
+	/**
+	 * 移動できる車のうち、スロースタート効果で止まる車を除く
+	 * @param m 移動できる車のビット列
+	 * @return 実際に移動する車のビット列
+	 */
+	private long slowStart(long m) {
+		return m & ~stayMask.next(random);
+	}
+
+	/**
+	 * 横方向の車を１ステップ動かす
+	 * 偶数行は右向き（i+1）、奇数行は左向き（i-1）。タイルごとに読み込んで動かし、書き戻す。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveHorizontal(boolean ss) {
+		final int last = nw - 1;
+		final boolean slow = ss && P < 1.0;
+		int count = 0;
+
+		for (int a = 0; a < L; a += tileRows) {
+			int b = Math.min(a + tileRows, L);
+			for (int j = a; j < b; j++) {
+				x.get(j, tx, (j - a) * nw);
+				y.get(j, ty, (j - a) * nw);
+			}
+
+			for (int j = a; j < b; j++) {
+				int o = (j - a) * nw;
+
+				if (j % 2 == 0) {
+					// 右向き：前方 (i+1) の占有状態を1ビット下にずらして重ねる
+					for (int w = 0; w < nw; w++) {
+						long ahead = (w < last)
+								? ((tx[o+w] | ty[o+w]) >>> 1) | ((tx[o+w+1] | ty[o+w+1]) << 63)
+								: ((tx[o+w] | ty[o+w]) >>> 1) | (((tx[o] | ty[o]) & 1L) << (r - 1));
+						long m = tx[o+w] & ~ahead & (w < last ? -1L : lastMask);
+						if (slow && m != 0) m = slowStart(m);
+						mrow[w] = m;
+						count += Long.bitCount(m);
+					}
+					// 移動した車を1ビット上へ
+					for (int w = 0; w < nw; w++) {
+						long in = (w > 0)
+								? (mrow[w] << 1) | (mrow[w-1] >>> 63)
+								: (mrow[0] << 1) | ((mrow[last] >>> (r - 1)) & 1L);
+						long v = (tx[o+w] & ~mrow[w]) | in;
+						if (w == last) v &= lastMask;
+						if (v != tx[o+w]) {
+							hash ^= StateHash.word(StateHash.X, j, w, tx[o+w]) ^ StateHash.word(StateHash.X, j, w, v);
+							tx[o+w] = v;
+						}
+					}
+				} else {
+					// 左向き：前方 (i-1) の占有状態を1ビット上にずらして重ねる
+					for (int w = 0; w < nw; w++) {
+						long ahead = (w > 0)
+								? ((tx[o+w] | ty[o+w]) << 1) | ((tx[o+w-1] | ty[o+w-1]) >>> 63)
+								: ((tx[o] | ty[o]) << 1) | (((tx[o+last] | ty[o+last]) >>> (r - 1)) & 1L);
+						long m = tx[o+w] & ~ahead & (w < last ? -1L : lastMask);
+						if (slow && m != 0) m = slowStart(m);
+						mrow[w] = m;
+						count += Long.bitCount(m);
+					}
+					// 移動した車を1ビット下へ
+					for (int w = 0; w < nw; w++) {
+						long in = (w < last)
+								? (mrow[w] >>> 1) | (mrow[w+1] << 63)
+								: (mrow[w] >>> 1) | ((mrow[0] & 1L) << (r - 1));
+						long v = (tx[o+w] & ~mrow[w]) | in;
+						if (w == last) v &= lastMask;
+						if (v != tx[o+w]) {
+							hash ^= StateHash.word(StateHash.X, j, w, tx[o+w]) ^ StateHash.word(StateHash.X, j, w, v);
+							tx[o+w] = v;
+						}
+					}
+				}
+			}
+
+			for (int j = a; j < b; j++) {
+				x.put(j, tx, (j - a) * nw);
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * 縦方向の車を１ステップ動かす
+	 * 偶数列は上向き（j-1）、奇数列は下向き（j+1）。
+	 *
+	 * タイル [a, b) では、作業領域の行 0 に行 a-1、行 1..b-a にタイル、行 b-a+1 に行 b を読み込み、
+	 * タイルの各行の移動マスク m を求めてから、出ていく車を消し、タイルの中から入ってくる車を足す。
+	 * 行 a-1 はすでに書き換わっているので、元の状態は前のタイルから持ち越す（carryY）。
+	 * タイルの外との出入りは、下向きの車（m[a-1] → 行 a）は持ち越した carryM で、
+	 * 上向きの車（m[a] → 行 a-1）は書き戻した行 a-1 に足す。
+	 * 周期境界の分（m[L-1] → 行 0、m[0] → 行 L-1）は、最後のタイルの後で足す。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveVertical(boolean ss) {
+		final boolean slow = ss && P < 1.0;
+		int count = 0;
+
+		for (int a = 0; a < L; a += tileRows) {
+			int b = Math.min(a + tileRows, L);
+			int n = b - a;
+
+			// 読み込む（行 a-1 の縦方向の車は元の状態を使う）
+			int above = (a == 0 ? L-1 : a-1);
+			x.get(above, tx, 0);
+			if (a == 0) {
+				y.get(L-1, ty, 0);
+			} else {
+				System.arraycopy(carryY, 0, ty, 0, nw);
+			}
+			for (int j = a; j < b; j++) {
+				x.get(j, tx, (j - a + 1) * nw);
+				y.get(j, ty, (j - a + 1) * nw);
+			}
+			if (a == 0) System.arraycopy(ty, nw, firstY, 0, nw);
+			int below = (b == L ? 0 : b);
+			x.get(below, tx, (n + 1) * nw);
+			if (b == L) {
+				System.arraycopy(firstY, 0, ty, (n + 1) * nw, nw);
+			} else {
+				y.get(below, ty, (n + 1) * nw);
+			}
+
+			// 各行で動ける車を求める
+			for (int t = 1; t <= n; t++) {
+				int o = t * nw, u = o - nw, d = o + nw, mo = (t - 1) * nw;
+				for (int w = 0; w < nw; w++) {
+					long mw = (ty[o+w] & EVEN & ~(tx[u+w] | ty[u+w]))
+							| (ty[o+w] & ODD & ~(tx[d+w] | ty[d+w]));
+					if (slow && mw != 0) mw = slowStart(mw);
+					tm[mo+w] = mw;
+					count += Long.bitCount(mw);
+				}
+			}
+			if (a == 0) System.arraycopy(tm, 0, firstM, 0, nw);
+
+			// 行 a-1 へ上向きの車が入る（行 0 の分は最後に足す）
+			if (a > 0) {
+				for (int w = 0; w < nw; w++) {
+					long in = tm[w] & EVEN;
+					if (in != 0) addWord(a - 1, w, in);
+				}
+			}
+
+			// 次のタイルのために、最後の行の元の状態を取っておく
+			System.arraycopy(ty, n * nw, carryY, 0, nw);
+
+			// 出ていく車を消し、タイルの中から入ってくる車を足す
+			for (int t = 1; t <= n; t++) {
+				int j = a + t - 1, o = t * nw, mo = (t - 1) * nw;
+				for (int w = 0; w < nw; w++) {
+					long v = ty[o+w] & ~tm[mo+w];
+					if (t < n) v |= tm[mo+nw+w] & EVEN;
+					if (t > 1) {
+						v |= tm[mo-nw+w] & ODD;
+					} else if (a > 0) {
+						v |= carryM[w] & ODD;
+					}
+					if (v != ty[o+w]) {
+						hash ^= StateHash.word(StateHash.Y, j, w, ty[o+w]) ^ StateHash.word(StateHash.Y, j, w, v);
+						ty[o+w] = v;
+					}
+				}
+				y.put(j, ty, o);
+			}
+
+			System.arraycopy(tm, (n - 1) * nw, carryM, 0, nw);
+		}
+
+		// 周期境界：m[L-1] の下向きの車が行 0 へ、m[0] の上向きの車が行 L-1 へ入る
+		for (int w = 0; w < nw; w++) {
+			long in = carryM[w] & ODD;
+			if (in != 0) addWord(0, w, in);
+		}
+		for (int w = 0; w < nw; w++) {
+			long in = firstM[w] & EVEN;
+			if (in != 0) addWord(L - 1, w, in);
+		}
+
+		return count;
+	}
+
+	/**
+	 * 縦方向の車の行 j のワード w に車を足す
+	 */
+	private void addWord(int j, int w, long in) {
+		long old = y.word(j, w), v = old | in;
+		hash ^= StateHash.word(StateHash.Y, j, w, old) ^ StateHash.word(StateHash.Y, j, w, v);
+		y.setWord(j, w, v);
+	}
+}
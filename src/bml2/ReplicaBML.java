@@ -0,0 +1,314 @@
+package bml2;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * 64個の独立な試行を1ワードにまとめて動かす拡張BMLモデル（ビットスライス）
+ *
+ * 各サイトの状態は 0 か 1 なので、同じサイトを 64 個の試行（レプリカ）の分だけ集めると1つの long に入る。
+ * ビット r がレプリカ r に対応し、各レプリカは独自の初期配置と独立なスロースタートの乱数を持つ。
+ * ExtendedBML と同じ規則をビット演算で全レプリカに同時に適用するので、
+ * 64 試行のアンサンブル平均が1回の試行とほぼ同じ計算量で求まる。
+ *
+ * 各レプリカで動いた車の数は、サイトごとの移動マスクをビットスライスのカウンタ
+ * （桁 b のワードのビット r がレプリカ r の数の 2^b の桁）に足し込み、ステップの最後に取り出す。
+ */
+public class ReplicaBML {
+	public static final int MAX_REPLICAS = 64;
+
+	private long[][] x, y;   // 横方向・縦方向の車 [j][i]（ビット r がレプリカ r）
+	private long[][] nx, ny; // 次のステップの書き込み先（参照の交換で使い回す）
+	private long[][] mv;     // 縦方向の移動マスク [j][i]
+	private long[] mrow;     // 横方向の移動マスク（1行分）
+	private long[] counter;  // 動いた車の数のビットスライスカウンタ
+	private int[] moved;     // 直前のステップで各レプリカの動いた車の数
+	private int L; // 正方格子の一辺の数
+	private int k; // 最小密度の倍数定数
+	private int replicas; // レプリカの数
+	private int tau = 1; // 信号機の周期
+	private double P = 1.0; // スロースタート効果
+	private int current = 0; // 現在の段階
+	private RandomGenerator random; // スロースタート効果の乱数生成器
+	private BernoulliMask stayMask = new BernoulliMask(0.0); // 留まる車（各ビット独立に確率 1-P）
+
+	/**
+	 * コンストラクタ
+	 * @param L 正方格子の一辺の数（正の偶数）
+	 * @param k 最小密度の倍数定数（ρ=k*ρmin）
+	 * @param replicas レプリカの数（1以上64以下）
+	 */
+	ReplicaBML(int L, int k, int replicas) {
+		random = new Xoshiro256();
+
+		if (L <= 0 || L % 2 != 0) {
+			System.out.println("[err] Lは正の偶数でなければなりません。");
+			System.exit(1);
+		}
+		if (k < 1 || L/2 < k) {
+			System.out.println("[err] kは1以上L/2以下でなければなりません。");
+			System.exit(1);
+		}
+		if (replicas < 1 || MAX_REPLICAS < replicas) {
+			System.out.println("[err] レプリカの数は1以上" + MAX_REPLICAS + "以下でなければなりません。");
+			System.exit(1);
+		}
+
+		this.L = L;
+		this.k = k;
+		this.replicas = replicas;
+		x = new long[L][L];
+		y = new long[L][L];
+		nx = new long[L][L];
+		ny = new long[L][L];
+		mv = new long[L][L];
+		mrow = new long[L];
+		// 1ステップに動く車は1レプリカあたり高々 kL 台
+		counter = new long[64 - Long.numberOfLeadingZeros((long)k * L)];
+		moved = new int[replicas];
+	}
+
+	/**
+	 * スロースタート効果の乱数生成器を差し替える
+	 * initialize() の後に呼び出す。
+	 */
+	public void setRandom(RandomGenerator random) {
+		this.random = random;
+	}
+
+	/**
+	 * Lを返します。
+	 */
+	public int getL() {
+		return L;
+	}
+
+	/**
+	 * 1レプリカあたりの車の総数を取得する
+	 */
+	public int getN() {
+		return 2 * k * L;
+	}
+
+	/**
+	 * レプリカの数を返す
+	 */
+	public int getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * tauのセッター
+	 */
+	public void setTau(int tau) {
+		if (tau <= 0) {
+			System.out.println("[err] 信号機の周期 tau は1以上でなければなりません。");
+		} else {
+			this.tau = tau;
+		}
+	}
+
+	/**
+	 * Pのセッター
+	 */
+	public void setP(double P) {
+		if (P < 0 || 1 < P) {
+			System.out.println("[err] スロースタート効果 P は0以上1以下でなければなりません。");
+		} else {
+			this.P = P;
+			stayMask = new BernoulliMask(1.0 - P);
+		}
+	}
+
+	/**
+	 * 各レプリカの初期配置をセットする
+	 * レプリカ r の初期配置は、シード値 seeds[r] の Xoshiro256 で ExtendedBML などと同じ方法で作るので、
+	 * 同じシード値の1回の試行と同じ配置になる。スロースタート効果の乱数系列もシード値から導出する。
+	 * @param seeds 各レプリカのシード値（長さはレプリカの数）
+	 */
+	public void initialize(long[] seeds) throws Exception {
+		if (seeds.length != replicas) {
+			throw new Exception("シード値の数がレプリカの数と違います。");
+		}
+		current = 0; // リセット
+
+		for (int j = 0; j < L; j++) {
+			for (int i = 0; i < L; i++) {
+				x[j][i] = 0;
+				y[j][i] = 0;
+			}
+		}
+		for (int rep = 0; rep < replicas; rep++) {
+			long bit = 1L << rep;
+			InitialPlacement.place(L, k, new Xoshiro256(seeds[rep]), (i, j, horizontal) -> {
+				if (horizontal) {
+					x[j][i] |= bit;
+				} else {
+					y[j][i] |= bit;
+				}
+			});
+		}
+
+		random = new Xoshiro256(Xoshiro256.mix(seeds[0], replicas));
+	}
+
+	/**
+	 * レプリカ r の系の状態を与える
+	 * @return {siteX, siteY}（ExtendedBML と同じ [i][j] 形式の新しい配列）
+	 */
+	public int[][][] getSites(int rep) {
+		int[][] siteX = new int[L][L];
+		int[][] siteY = new int[L][L];
+		for (int j = 0; j < L; j++) {
+			for (int i = 0; i < L; i++) {
+				siteX[i][j] = (int)(x[j][i] >>> rep) & 1;
+				siteY[i][j] = (int)(y[j][i] >>> rep) & 1;
+			}
+		}
+		return new int[][][] {siteX, siteY};
+	}
+
+	/**
+	 * 1回動かす
+	 * @return 全レプリカで動いた車の数の合計
+	 */
+	public long move() {
+		long count;
+		if (current == 0) {
+			count = moveHorizontal(true);
+		} else if (current < tau) {
+			count = moveHorizontal(false);
+		} else if (current == tau) {
+			count = moveVertical(true);
+		} else {
+			count = moveVertical(false);
+		}
+
+		current++;
+		if (current == 2 * tau) {
+			current = 0;
+		}
+
+		return count;
+	}
+
+	/**
+	 * 1周期分動かす
+	 */
+	public void move1period() {
+		for (int i = 0; i < 2 * tau; i++) {
+			move();
+		}
+	}
+
+	/**
+	 * 直前のステップで各レプリカの動いた車の数
+	 * @return 長さがレプリカの数の配列（次の move() で上書きされる）
+	 */
+	public int[] getMoved() {
+		return moved;
+	}
+
+	/**
+	 * 移動マスクをカウンタに足し込む（各ビットに 0 か 1 を足す）
+	 */
+	private void count(long m) {
+		for (int b = 0; m != 0; b++) {
+			long carry = counter[b] & m;
+			counter[b] ^= m;
+			m = carry;
+		}
+	}
+
+	/**
+	 * カウンタから各レプリカの数を取り出してリセットする
+	 * @return 全レプリカの合計
+	 */
+	private long flush() {
+		long total = 0;
+		for (int rep = 0; rep < replicas; rep++) {
+			int c = 0;
+			for (int b = 0; b < counter.length; b++) {
+				c |= (int)((counter[b] >>> rep) & 1) << b;
+			}
+			moved[rep] = c;
+			total += c;
+		}
+		for (int b = 0; b < counter.length; b++) {
+			counter[b] = 0;
+		}
+		return total;
+	}
+
+	/**
+	 * 横方向の車を１ステップ動かす
+	 * 偶数行は右向き（i+1）、奇数行は左向き（i-1）。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return 全レプリカで動いた車の数の合計
+	 */
+	private long moveHorizontal(boolean ss) {
+		final boolean slow = ss && P < 1.0;
+
+		for (int j = 0; j < L; j++) {
+			long[] xr = x[j], yr = y[j], out = nx[j];
+			int d = (j % 2 == 0) ? 1 : L-1; // 前方へのずれ（L を法とする）
+
+			// 前方が空いている車
+			for (int i = 0; i < L; i++) {
+				int next = i + d;
+				if (next >= L) next -= L;
+				long m = xr[i] & ~(xr[next] | yr[next]);
+				if (slow && m != 0) m &= ~stayMask.next(random);
+				mrow[i] = m;
+				count(m);
+			}
+			// 後方から入ってくる車
+			for (int i = 0; i < L; i++) {
+				int prev = i - d;
+				if (prev < 0) prev += L;
+				out[i] = (xr[i] & ~mrow[i]) | mrow[prev];
+			}
+		}
+
+		long[][] t = x; x = nx; nx = t;
+		return flush();
+	}
+
+	/**
+	 * 縦方向の車を１ステップ動かす
+	 * 偶数列は上向き（j-1）、奇数列は下向き（j+1）。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return 全レプリカで動いた車の数の合計
+	 */
+	private long moveVertical(boolean ss) {
+		final boolean slow = ss && P < 1.0;
+
+		// 各サイトで動ける車を求める
+		for (int j = 0; j < L; j++) {
+			long[] xu = x[j == 0 ? L-1 : j-1], yu = y[j == 0 ? L-1 : j-1];
+			long[] xd = x[j == L-1 ? 0 : j+1], yd = y[j == L-1 ? 0 : j+1];
+			long[] yr = y[j], m = mv[j];
+
+			for (int i = 0; i < L; i++) {
+				long mi = (i % 2 == 0)
+						? yr[i] & ~(xu[i] | yu[i])
+						: yr[i] & ~(xd[i] | yd[i]);
+				if (slow && mi != 0) mi &= ~stayMask.next(random);
+				m[i] = mi;
+				count(mi);
+			}
+		}
+
+		// 偶数列には下の行から、奇数列には上の行から車が入ってくる
+		for (int j = 0; j < L; j++) {
+			long[] mu = mv[j == L-1 ? 0 : j+1], md = mv[j == 0 ? L-1 : j-1];
+			long[] yr = y[j], m = mv[j], out = ny[j];
+
+			for (int i = 0; i < L; i++) {
+				out[i] = (yr[i] & ~m[i]) | ((i % 2 == 0) ? mu[i] : md[i]);
+			}
+		}
+
+		long[][] t = y; y = ny; ny = t;
+		return flush();
+	}
+}
@@ -0,0 +1,292 @@
+package bml2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 試行の結果のキャッシュ（メモ化）
+ *
+ * 鍵 (L, k, tau, P, seed, 空回しのステップ数, 計測のステップ数, エンジンの版) ごとに
+ * SimulationResult を覚えておく。同じ鍵の試行は同じ結果になるので、掃引をやり直したり
+ * 途中で止めて再開したりしても、終わった試行は計算し直さずに済む。
+ *
+ * 結果は追記のみのジャーナルファイルに書き、開くときにジャーナル全体を読んで
+ * 鍵のハッシュ値 → ファイル内の位置 の表（プリミティブ配列のオープンアドレス法）を作る。
+ * 最近使った結果はメモリの LRU に置き、それ以外はジャーナルから読み直す。
+ *
+ * ジャーナルのレコード（ビッグエンディアン、固定長）:
+ *   int L, k, tau; double P; long seed, warm, measure, エンジンの版のハッシュ値
+ *   double v, stderr; long warmupSteps, measureSteps
+ *   int CRC32（ここまでのバイト列）
+ * 書き込みの途中で止まった末尾のレコードは CRC が合わないので、開くときに切り捨てる。
+ *
+ * 各インスタンスはジャーナルの末尾を自分で覚えて書くので、2つが同じファイルに書くと互いのレコードを上書きしてしまう。
+ * 開いている間はファイルに排他ロックをかけ、ロックが取れなければ開かない（IOException）。
+ */
+class ResultCache implements Closeable {
+	static final int MAGIC = 0x424D4C43; // "BMLC"
+	static final int VERSION = 1;
+	private static final int HEADER_BYTES = 8;
+	private static final int RECORD_BYTES = 3 * 4 + 8 + 4 * 8 + 2 * 8 + 2 * 8 + 4;
+
+	/**
+	 * キャッシュの鍵
+	 */
+	static final class Key {
+		final int L, k, tau;
+		final double P;
+		final long seed, warm, measure, version;
+
+		/**
+		 * @param version エンジンの版のハッシュ値（versionHash()）
+		 */
+		Key(int L, int k, int tau, double P, long seed, long warm, long measure, long version) {
+			this.L = L;
+			this.k = k;
+			this.tau = tau;
+			this.P = P;
+			this.seed = seed;
+			this.warm = warm;
+			this.measure = measure;
+			this.version = version;
+		}
+
+		/**
+		 * 64ビットのハッシュ値
+		 */
+		long hash64() {
+			long h = Xoshiro256.mix(version, L);
+			h = Xoshiro256.mix(h, k);
+			h = Xoshiro256.mix(h, tau);
+			h = Xoshiro256.mix(h, Double.doubleToLongBits(P));
+			h = Xoshiro256.mix(h, seed);
+			h = Xoshiro256.mix(h, warm);
+			return Xoshiro256.mix(h, measure);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key q = (Key)o;
+			return L == q.L && k == q.k && tau == q.tau
+					&& Double.doubleToLongBits(P) == Double.doubleToLongBits(q.P)
+					&& seed == q.seed && warm == q.warm && measure == q.measure && version == q.version;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(hash64());
+		}
+	}
+
+	private final FileChannel journal;
+	private final Map<Key, SimulationResult> lru;
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+	private final CRC32 crc = new CRC32();
+	private long end; // ジャーナルの末尾
+
+	// 鍵のハッシュ値 → レコードの位置（オープンアドレス法、位置 0 は空き）
+	private long[] hashes = new long[1024];
+	private long[] offsets = new long[1024];
+	private int size = 0;
+
+	private long hits = 0, misses = 0;
+
+	/**
+	 * エンジンの版を表す文字列のハッシュ値
+	 */
+	static long versionHash(String version) {
+		long h = 0;
+		for (byte b : version.getBytes(StandardCharsets.UTF_8)) {
+			h = Xoshiro256.mix(h, b);
+		}
+		return h;
+	}
+
+	/**
+	 * ジャーナルを開く（なければ作る）
+	 * @param file ジャーナルのファイル
+	 * @param lruSize メモリに置いておく結果の数
+	 */
+	ResultCache(Path file, int lruSize) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		if (dir != null) Files.createDirectories(dir);
+		journal = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = journal.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null; // 同じ JVM の別のインスタンスが開いている
+		}
+		if (lock == null) {
+			journal.close();
+			throw new IOException("ほかのプロセスが使っています: " + file);
+		}
+		lru = new LinkedHashMap<Key, SimulationResult>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, SimulationResult> eldest) {
+				return size() > lruSize;
+			}
+		};
+
+		ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES);
+		if (journal.size() == 0) {
+			head.putInt(MAGIC).putInt(VERSION).flip();
+			while (head.hasRemaining()) journal.write(head, head.position());
+			end = HEADER_BYTES;
+			return;
+		}
+		while (head.hasRemaining() && journal.read(head, head.position()) >= 0) {
+			// ヘッダを読む
+		}
+		if (head.position() < HEADER_BYTES || head.getInt(0) != MAGIC) {
+			journal.close();
+			throw new IOException("キャッシュのジャーナルではありません: " + file);
+		}
+		if (head.getInt(4) != VERSION) {
+			journal.close();
+			throw new IOException("対応していない版です: " + head.getInt(4));
+		}
+
+		// レコードを読んで表を作る（壊れた末尾は切り捨てる）
+		end = HEADER_BYTES;
+		long length = journal.size();
+		while (end + RECORD_BYTES <= length) {
+			Key key = readKey(end);
+			if (key == null) break;
+			index(key.hash64(), end);
+			end += RECORD_BYTES;
+		}
+		if (end < length) {
+			journal.truncate(end);
+		}
+	}
+
+	/**
+	 * 記録した結果の数
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * 見つかった回数と見つからなかった回数
+	 */
+	synchronized long[] getStats() {
+		return new long[] {hits, misses};
+	}
+
+	/**
+	 * 鍵の結果を返す
+	 * @return 結果（なければ null）
+	 */
+	synchronized SimulationResult get(Key key) throws IOException {
+		SimulationResult r = lru.get(key);
+		if (r != null) {
+			hits++;
+			return r;
+		}
+		long h = key.hash64();
+		for (int s = slot(h); offsets[s] != 0; s = (s + 1) & (offsets.length - 1)) {
+			if (hashes[s] != h) continue;
+			if (!key.equals(readKey(offsets[s]))) continue;
+			r = new SimulationResult(record.getDouble(52), record.getDouble(60), record.getLong(68), record.getLong(76));
+			lru.put(key, r);
+			hits++;
+			return r;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * 鍵の結果を記録する（ジャーナルに追記する）
+	 * すでに記録されている鍵なら何もしない。
+	 */
+	synchronized void put(Key key, SimulationResult r) throws IOException {
+		if (lru.containsKey(key) || find(key)) return;
+
+		record.clear();
+		record.putInt(key.L).putInt(key.k).putInt(key.tau).putDouble(key.P);
+		record.putLong(key.seed).putLong(key.warm).putLong(key.measure).putLong(key.version);
+		record.putDouble(r.v).putDouble(r.stderr).putLong(r.warmupSteps).putLong(r.measureSteps);
+		crc.reset();
+		crc.update(record.array(), 0, RECORD_BYTES - 4);
+		record.putInt((int)crc.getValue());
+		record.flip();
+		long pos = end;
+		while (record.hasRemaining()) journal.write(record, pos + record.position());
+		end += RECORD_BYTES;
+
+		index(key.hash64(), pos);
+		lru.put(key, r);
+	}
+
+	private boolean find(Key key) throws IOException {
+		long h = key.hash64();
+		for (int s = slot(h); offsets[s] != 0; s = (s + 1) & (offsets.length - 1)) {
+			if (hashes[s] == h && key.equals(readKey(offsets[s]))) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 位置 pos のレコードを record に読み、鍵を返す
+	 * @return 鍵（CRC が合わなければ null）
+	 */
+	private Key readKey(long pos) throws IOException {
+		record.clear();
+		while (record.hasRemaining()) {
+			if (journal.read(record, pos + record.position()) < 0) return null;
+		}
+		crc.reset();
+		crc.update(record.array(), 0, RECORD_BYTES - 4);
+		if ((int)crc.getValue() != record.getInt(RECORD_BYTES - 4)) return null;
+		return new Key(record.getInt(0), record.getInt(4), record.getInt(8), record.getDouble(12),
+				record.getLong(20), record.getLong(28), record.getLong(36), record.getLong(44));
+	}
+
+	private int slot(long h) {
+		return (int)(h ^ (h >>> 32)) & (offsets.length - 1);
+	}
+
+	private void index(long h, long pos) {
+		if (2 * (size + 1) > offsets.length) {
+			long[] oldHashes = hashes, oldOffsets = offsets;
+			hashes = new long[oldHashes.length * 2];
+			offsets = new long[oldOffsets.length * 2];
+			for (int s = 0; s < oldOffsets.length; s++) {
+				if (oldOffsets[s] != 0) insert(oldHashes[s], oldOffsets[s]);
+			}
+		}
+		insert(h, pos);
+		size++;
+	}
+
+	private void insert(long h, long pos) {
+		int s = slot(h);
+		while (offsets[s] != 0) s = (s + 1) & (offsets.length - 1);
+		hashes[s] = h;
+		offsets[s] = pos;
+	}
+
+	/**
+	 * ジャーナルをディスクに書き出して閉じる（ロックも外れる）
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		journal.force(false);
+		journal.close();
+	}
+}
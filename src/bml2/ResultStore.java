@@ -0,0 +1,331 @@
+package bml2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 掃引の結果を列ごとのファイルに追記していく保存先
+ *
+ * ディレクトリの中に列ごとのファイル（L.col, k.col, ...）と、確定した行数を持つ meta を置き、
+ * どれもメモリマップして読み書きする。行の追加は各列に値を書いてから meta の行数を増やすので、
+ * 途中で止まっても確定した行までは壊れない。容量が足りなくなったら倍に広げてマップし直す。
+ *
+ * 列: L, k, ρ, tau, P, seed, steps（空回しと計測の合計）, V, stderr, wall（経過時間 [秒]）
+ * 値はすべてビッグエンディアンで、行 r の値はファイルの r*幅 バイト目から置く。
+ *
+ * select() は tau, P の列を走査して条件に合う行を集め、ρ の順に並べて返す。
+ * テキストを読み直さないので、数百万行でも速い。
+ *
+ * 各インスタンスは行数を自分で覚えて書くので、2つが同じディレクトリに追記すると互いの行を上書きしてしまう。
+ * 開いている間は meta に排他ロックをかけ、ロックが取れなければ開かない（IOException）。
+ */
+public class ResultStore implements Closeable {
+	static final int MAGIC = 0x424D4C52; // "BMLR"
+	static final int VERSION = 1;
+	private static final int META_BYTES = 16; // MAGIC, VERSION, long 行数
+	private static final int INITIAL_CAPACITY = 4096;
+
+	// 列の番号とファイル名、幅（バイト）
+	private static final int L_ = 0, K = 1, RHO = 2, TAU = 3, P_ = 4, SEED = 5, STEPS = 6, V = 7, STDERR = 8, WALL = 9;
+	private static final String[] NAMES = {"L", "k", "rho", "tau", "P", "seed", "steps", "V", "stderr", "wall"};
+	private static final int[] WIDTH = {4, 4, 8, 4, 8, 8, 8, 8, 8, 8};
+
+	private final Path dir;
+	private final FileChannel[] channels = new FileChannel[NAMES.length];
+	private final MappedByteBuffer[] columns = new MappedByteBuffer[NAMES.length];
+	private final FileChannel metaChannel;
+	private final MappedByteBuffer meta;
+	private int rows;     // 確定した行数
+	private int capacity; // マップしている行数
+
+	/**
+	 * 保存先を開く（なければ作る）
+	 * @param dir 保存先のディレクトリ
+	 */
+	public static ResultStore open(Path dir) throws IOException {
+		return new ResultStore(dir);
+	}
+
+	private ResultStore(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+
+		metaChannel = FileChannel.open(dir.resolve("meta"),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = metaChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null; // 同じ JVM の別のインスタンスが開いている
+		}
+		if (lock == null) {
+			metaChannel.close();
+			throw new IOException("ほかのプロセスが使っています: " + dir);
+		}
+		boolean fresh = metaChannel.size() == 0;
+		meta = metaChannel.map(FileChannel.MapMode.READ_WRITE, 0, META_BYTES);
+		if (fresh) {
+			meta.putInt(0, MAGIC);
+			meta.putInt(4, VERSION);
+			meta.putLong(8, 0);
+			meta.force();
+		} else if (meta.getInt(0) != MAGIC) {
+			close();
+			throw new IOException("結果の保存先ではありません: " + dir);
+		} else if (meta.getInt(4) != VERSION) {
+			int version = meta.getInt(4);
+			close();
+			throw new IOException("対応していない版です: " + version);
+		}
+		rows = (int)meta.getLong(8);
+
+		for (int c = 0; c < NAMES.length; c++) {
+			channels[c] = FileChannel.open(dir.resolve(NAMES[c] + ".col"),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		int cap = INITIAL_CAPACITY;
+		while (cap < rows) cap *= 2;
+		map(cap);
+	}
+
+	/**
+	 * 各列を cap 行分マップし直す
+	 */
+	private void map(int cap) throws IOException {
+		if ((long)cap * 8 > Integer.MAX_VALUE) {
+			throw new IOException("行数が多すぎます: " + cap);
+		}
+		for (int c = 0; c < NAMES.length; c++) {
+			columns[c] = channels[c].map(FileChannel.MapMode.READ_WRITE, 0, (long)cap * WIDTH[c]);
+		}
+		capacity = cap;
+	}
+
+	/**
+	 * 保存先のディレクトリ
+	 */
+	public Path getDir() {
+		return dir;
+	}
+
+	/**
+	 * 行数
+	 */
+	public synchronized int size() {
+		return rows;
+	}
+
+	/**
+	 * 1試行の結果を追記する
+	 * @param wall 経過時間 [秒]
+	 * @return 追記した行の番号
+	 */
+	public synchronized int append(int L, int k, int tau, double P, long seed,
+			long steps, double v, double stderr, double wall) throws IOException {
+		if (rows == capacity) map(capacity * 2);
+		int r = rows;
+		columns[L_].putInt(r * 4, L);
+		columns[K].putInt(r * 4, k);
+		columns[RHO].putDouble(r * 8, 2.0 * k / L);
+		columns[TAU].putInt(r * 4, tau);
+		columns[P_].putDouble(r * 8, P);
+		columns[SEED].putLong(r * 8, seed);
+		columns[STEPS].putLong(r * 8, steps);
+		columns[V].putDouble(r * 8, v);
+		columns[STDERR].putDouble(r * 8, stderr);
+		columns[WALL].putDouble(r * 8, wall);
+		// 値を書いてから行数を増やす
+		rows = r + 1;
+		meta.putLong(8, rows);
+		return r;
+	}
+
+	/**
+	 * ファイルに書き出されていない変更をディスクに書き出す
+	 */
+	public synchronized void force() {
+		for (MappedByteBuffer col : columns) col.force();
+		meta.force();
+	}
+
+	// 行 row の各列の値
+
+	public synchronized int getL(int row) {
+		return columns[L_].getInt(check(row) * 4);
+	}
+
+	public synchronized int getK(int row) {
+		return columns[K].getInt(check(row) * 4);
+	}
+
+	public synchronized double getRho(int row) {
+		return columns[RHO].getDouble(check(row) * 8);
+	}
+
+	public synchronized int getTau(int row) {
+		return columns[TAU].getInt(check(row) * 4);
+	}
+
+	public synchronized double getP(int row) {
+		return columns[P_].getDouble(check(row) * 8);
+	}
+
+	public synchronized long getSeed(int row) {
+		return columns[SEED].getLong(check(row) * 8);
+	}
+
+	public synchronized long getSteps(int row) {
+		return columns[STEPS].getLong(check(row) * 8);
+	}
+
+	public synchronized double getV(int row) {
+		return columns[V].getDouble(check(row) * 8);
+	}
+
+	public synchronized double getStderr(int row) {
+		return columns[STDERR].getDouble(check(row) * 8);
+	}
+
+	public synchronized double getWall(int row) {
+		return columns[WALL].getDouble(check(row) * 8);
+	}
+
+	private int check(int row) {
+		if (row < 0 || rows <= row) {
+			throw new IndexOutOfBoundsException("row: " + row);
+		}
+		return row;
+	}
+
+	/**
+	 * tau, P が一致し、ρ が [rhoFrom, rhoTo] にある行を ρ の順に返す（ρ が等しければ追記の順）
+	 * @param L 格子の一辺（0 ならすべて）
+	 */
+	public synchronized int[] select(int L, int tau, double P, double rhoFrom, double rhoTo) {
+		MappedByteBuffer cL = columns[L_], cTau = columns[TAU], cP = columns[P_], cRho = columns[RHO];
+		int[] found = new int[16];
+		int n = 0;
+		for (int r = 0; r < rows; r++) {
+			if (cTau.getInt(r * 4) != tau) continue;
+			if (cP.getDouble(r * 8) != P) continue;
+			if (L != 0 && cL.getInt(r * 4) != L) continue;
+			double rho = cRho.getDouble(r * 8);
+			if (rho < rhoFrom || rhoTo < rho) continue;
+			if (n == found.length) found = Arrays.copyOf(found, 2 * n);
+			found[n++] = r;
+		}
+		found = Arrays.copyOf(found, n);
+
+		double[] keys = new double[n];
+		for (int i = 0; i < n; i++) keys[i] = cRho.getDouble(found[i] * 8);
+		sortByKey(found, keys, new int[n], new double[n], 0, n);
+		return found;
+	}
+
+	/**
+	 * tau, P が一致する行をすべて ρ の順に返す
+	 */
+	public int[] select(int L, int tau, double P) {
+		return select(L, tau, P, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * 行 rows を対応する keys の順に並べる（安定なマージソート）
+	 */
+	private static void sortByKey(int[] rows, double[] keys, int[] tmpRows, double[] tmpKeys, int from, int to) {
+		if (to - from < 2) return;
+		int mid = (from + to) >>> 1;
+		sortByKey(rows, keys, tmpRows, tmpKeys, from, mid);
+		sortByKey(rows, keys, tmpRows, tmpKeys, mid, to);
+		if (keys[mid - 1] <= keys[mid]) return;
+		int a = from, b = mid;
+		for (int i = from; i < to; i++) {
+			if (b >= to || (a < mid && keys[a] <= keys[b])) {
+				tmpRows[i] = rows[a];
+				tmpKeys[i] = keys[a++];
+			} else {
+				tmpRows[i] = rows[b];
+				tmpKeys[i] = keys[b++];
+			}
+		}
+		System.arraycopy(tmpRows, from, rows, from, to - from);
+		System.arraycopy(tmpKeys, from, keys, from, to - from);
+	}
+
+	/**
+	 * SimulationData.csv と同じ形式で書き出す
+	 * tau, P の組ごとに "tau = ..." / "P = ..." / "[k], [ρ], [V]" の見出しを付け、
+	 * k ごとに試行の平均の V を ρ の順に書く（失敗した試行があれば -1）。
+	 * @param out 書き出し先
+	 * @param L 格子の一辺（この L の行だけを書き出す）
+	 */
+	public synchronized void exportCsv(Writer out, int L) throws IOException {
+		String br = System.getProperty("line.separator");
+
+		// tau, P の組を小さい順に
+		int[] taus = distinctInts(columns[TAU], L);
+		for (int tau : taus) {
+			double[] Ps = distinctPs(L, tau);
+			out.write("tau = " + tau + br);
+			for (double P : Ps) {
+				out.write("P = " + P + br);
+				out.write("[k], [ρ], [V]" + br);
+				int[] sel = select(L, tau, P);
+				for (int i = 0; i < sel.length; ) {
+					int k = getK(sel[i]);
+					double sum = 0;
+					int n = 0;
+					boolean failed = false;
+					for (; i < sel.length && getK(sel[i]) == k; i++, n++) {
+						double v = getV(sel[i]);
+						if (v < 0) failed = true;
+						sum += v;
+					}
+					out.write(k + ", " + (2.0*k/L) + ", " + (failed ? -1.0 : sum / n) + br);
+				}
+			}
+		}
+	}
+
+	private int[] distinctInts(MappedByteBuffer col, int L) {
+		int[] values = new int[rows];
+		int n = 0;
+		for (int r = 0; r < rows; r++) {
+			if (columns[L_].getInt(r * 4) == L) values[n++] = col.getInt(r * 4);
+		}
+		return Arrays.stream(values, 0, n).sorted().distinct().toArray();
+	}
+
+	private double[] distinctPs(int L, int tau) {
+		double[] values = new double[rows];
+		int n = 0;
+		for (int r = 0; r < rows; r++) {
+			if (columns[L_].getInt(r * 4) == L && columns[TAU].getInt(r * 4) == tau) {
+				values[n++] = columns[P_].getDouble(r * 8);
+			}
+		}
+		return Arrays.stream(values, 0, n).sorted().distinct().toArray();
+	}
+
+	/**
+	 * 変更をディスクに書き出して閉じる
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (meta != null) meta.force();
+		for (int c = 0; c < NAMES.length; c++) {
+			if (columns[c] != null) columns[c].force();
+			if (channels[c] != null) channels[c].close();
+		}
+		metaChannel.close();
+	}
+}
@@ -0,0 +1,89 @@
+package bml2;
+
+/**
+ * LatticeKernel のスカラー版
+ * SimdKernel の内部で、ベクトルの幅に満たない端の部分の処理にも使う。
+ */
+class ScalarKernel implements LatticeKernel {
+
+	@Override
+	public String name() {
+		return "scalar";
+	}
+
+	/**
+	 * サイト i がスロースタート効果で留まるか
+	 */
+	static boolean stays(long[] stay, int i) {
+		return stay != null && ((stay[i >>> 6] >>> i) & 1L) != 0;
+	}
+
+	@Override
+	public int horizontalRow(byte[] x, byte[] y, byte[] out, int base, int L, boolean right, long[] stay, byte[] m) {
+		int count = horizontalMask(x, y, base, L, right, stay, m, 0, L);
+		horizontalApply(x, out, base, L, right, m, 0, L);
+		return count;
+	}
+
+	/**
+	 * 行内の位置 [from, to) で動ける車を求める
+	 */
+	static int horizontalMask(byte[] x, byte[] y, int base, int L, boolean right, long[] stay, byte[] m,
+			int from, int to) {
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			int next = right ? (i == L-1 ? 0 : i+1) : (i == 0 ? L-1 : i-1);
+			int v = x[base + i] & ~(x[base + next] | y[base + next]);
+			if (v != 0 && stays(stay, i)) v = 0;
+			m[i] = (byte)v;
+			count += v;
+		}
+		return count;
+	}
+
+	/**
+	 * 行内の位置 [from, to) に、動ける車 m を動かした結果を書き込む
+	 */
+	static void horizontalApply(byte[] x, byte[] out, int base, int L, boolean right, byte[] m, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int prev = right ? (i == 0 ? L-1 : i-1) : (i == L-1 ? 0 : i+1);
+			out[base + i] = (byte)((x[base + i] & ~m[i]) | m[prev]);
+		}
+	}
+
+	@Override
+	public int verticalMask(byte[] x, byte[] y, int base, int up, int down, int L, long[] stay, byte[] mv) {
+		return verticalMask(x, y, base, up, down, stay, mv, 0, L);
+	}
+
+	/**
+	 * 行内の位置 [from, to) で動ける縦方向の車を求める
+	 */
+	static int verticalMask(byte[] x, byte[] y, int base, int up, int down, long[] stay, byte[] mv,
+			int from, int to) {
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			int ahead = (i % 2 == 0) ? (up + i) : (down + i);
+			int v = y[base + i] & ~(x[ahead] | y[ahead]);
+			if (v != 0 && stays(stay, i)) v = 0;
+			mv[base + i] = (byte)v;
+			count += v;
+		}
+		return count;
+	}
+
+	@Override
+	public void verticalApply(byte[] y, byte[] mv, byte[] out, int base, int up, int down, int L) {
+		verticalApply(y, mv, out, base, up, down, 0, L);
+	}
+
+	/**
+	 * 行内の位置 [from, to) に、動ける車 mv を動かした結果を書き込む
+	 */
+	static void verticalApply(byte[] y, byte[] mv, byte[] out, int base, int up, int down, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int in = (i % 2 == 0) ? mv[down + i] : mv[up + i];
+			out[base + i] = (byte)((y[base + i] & ~mv[base + i]) | in);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package bml2;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * LatticeKernel の SIMD 版（jdk.incubator.vector）
+ *
+ * 1行を CPU のベクトル幅（AVX2 なら32サイト、AVX-512 なら64サイト）ずつ処理する。
+ * 前方・後方のサイトはずらした位置からの読み込みで得るので、行内の巡回が関係しない内部だけをベクトルで処理し、
+ * 境界（i = 0, L-1）と幅に満たない残りは ScalarKernel で処理する。
+ * 縦方向は上下の行を読むだけで行内の巡回がないので、行全体をベクトルで処理できる。
+ * 偶数列・奇数列は 1,0,1,0,... のパターンとの AND で区別する。
+ *
+ * 実行時に --add-modules jdk.incubator.vector が必要。LatticeKernel.create() から反射で読み込む。
+ */
+class SimdKernel implements LatticeKernel {
+	private static final VectorSpecies<Byte> S = (ByteVector.SPECIES_PREFERRED.length() <= 64)
+			? ByteVector.SPECIES_PREFERRED : ByteVector.SPECIES_512;
+	private static final int V = S.length();
+
+	private final ByteVector even; // 偶数番目のレーンが 1
+	private final ByteVector odd;  // 奇数番目のレーンが 1
+
+	SimdKernel() {
+		byte[] e = new byte[V], o = new byte[V];
+		for (int l = 0; l < V; l++) {
+			e[l] = (byte)((l + 1) % 2);
+			o[l] = (byte)(l % 2);
+		}
+		even = ByteVector.fromArray(S, e, 0);
+		odd = ByteVector.fromArray(S, o, 0);
+	}
+
+	@Override
+	public String name() {
+		return "simd" + (V * 8);
+	}
+
+	/**
+	 * 行内の位置 i から V サイト分の留まるサイトのマスク
+	 */
+	private static VectorMask<Byte> stayMask(long[] stay, int i) {
+		int w = i >>> 6, s = i & 63;
+		long bits = stay[w] >>> s;
+		if (s != 0 && w + 1 < stay.length) bits |= stay[w + 1] << (64 - s);
+		return VectorMask.fromLong(S, bits);
+	}
+
+	@Override
+	public int horizontalRow(byte[] x, byte[] y, byte[] out, int base, int L, boolean right, long[] stay, byte[] m) {
+		int count = 0;
+		// 前方のサイトが行内に収まる範囲: 右向きは [0, L-1)、左向きは [1, L)
+		int from = right ? 0 : 1;
+		int to = right ? L-1 : L;
+		int d = right ? 1 : -1;
+
+		int i = from;
+		for (; i + V <= to; i += V) {
+			ByteVector xv = ByteVector.fromArray(S, x, base + i);
+			ByteVector ahead = ByteVector.fromArray(S, x, base + i + d)
+					.or(ByteVector.fromArray(S, y, base + i + d));
+			ByteVector mv = xv.and(ahead.not());
+			if (stay != null) mv = mv.blend((byte)0, stayMask(stay, i));
+			mv.intoArray(m, i);
+			count += mv.compare(VectorOperators.NE, (byte)0).trueCount();
+		}
+		count += ScalarKernel.horizontalMask(x, y, base, L, right, stay, m, i, to);
+		count += ScalarKernel.horizontalMask(x, y, base, L, right, stay, m, right ? L-1 : 0, right ? L : 1);
+
+		// 後方のサイトが行内に収まる範囲: 右向きは [1, L)、左向きは [0, L-1)
+		from = right ? 1 : 0;
+		to = right ? L : L-1;
+		i = from;
+		for (; i + V <= to; i += V) {
+			ByteVector xv = ByteVector.fromArray(S, x, base + i);
+			ByteVector mv = ByteVector.fromArray(S, m, i);
+			ByteVector in = ByteVector.fromArray(S, m, i - d);
+			xv.and(mv.not()).or(in).intoArray(out, base + i);
+		}
+		ScalarKernel.horizontalApply(x, out, base, L, right, m, i, to);
+		ScalarKernel.horizontalApply(x, out, base, L, right, m, right ? 0 : L-1, right ? 1 : L);
+		return count;
+	}
+
+	@Override
+	public int verticalMask(byte[] x, byte[] y, int base, int up, int down, int L, long[] stay, byte[] mv) {
+		int count = 0;
+		int i = 0;
+		for (; i + V <= L; i += V) {
+			ByteVector occUp = ByteVector.fromArray(S, x, up + i).or(ByteVector.fromArray(S, y, up + i));
+			ByteVector occDown = ByteVector.fromArray(S, x, down + i).or(ByteVector.fromArray(S, y, down + i));
+			ByteVector ahead = occUp.and(even).or(occDown.and(odd));
+			ByteVector m = ByteVector.fromArray(S, y, base + i).and(ahead.not());
+			if (stay != null) m = m.blend((byte)0, stayMask(stay, i));
+			m.intoArray(mv, base + i);
+			count += m.compare(VectorOperators.NE, (byte)0).trueCount();
+		}
+		count += ScalarKernel.verticalMask(x, y, base, up, down, stay, mv, i, L);
+		return count;
+	}
+
+	@Override
+	public void verticalApply(byte[] y, byte[] mv, byte[] out, int base, int up, int down, int L) {
+		int i = 0;
+		for (; i + V <= L; i += V) {
+			ByteVector in = ByteVector.fromArray(S, mv, down + i).and(even)
+					.or(ByteVector.fromArray(S, mv, up + i).and(odd));
+			ByteVector.fromArray(S, y, base + i).and(ByteVector.fromArray(S, mv, base + i).not())
+					.or(in).intoArray(out, base + i);
+		}
+		ScalarKernel.verticalApply(y, mv, out, base, up, down, i, L);
+	}
+}
@@ -0,0 +1,31 @@
+package bml2;
+
+/**
+ * シミュレーション1点分の結果
+ * 平均速度 V と、その標準誤差、実際に使ったステップ数を持つ。
+ */
+public class SimulationResult {
+	final double v;          // 平均速度
+	final double stderr;     // V の標準誤差
+	final long warmupSteps;  // 空回しに使ったステップ数
+	final long measureSteps; // データ取得に使ったステップ数
+
+	SimulationResult(double v, double stderr, long warmupSteps, long measureSteps) {
+		this.v = v;
+		this.stderr = stderr;
+		this.warmupSteps = warmupSteps;
+		this.measureSteps = measureSteps;
+	}
+
+	/**
+	 * 使ったステップ数の合計
+	 */
+	long steps() {
+		return warmupSteps + measureSteps;
+	}
+
+	@Override
+	public String toString() {
+		return "V = " + v + " ± " + stderr + " (空回し " + warmupSteps + " + 取得 " + measureSteps + " ステップ)";
+	}
+}
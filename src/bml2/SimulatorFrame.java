@@ -5,13 +5,15 @@ import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.Timer;
 
 
 public class SimulatorFrame extends JFrame implements Runnable {
@@ -21,8 +23,16 @@ public class SimulatorFrame extends JFrame implements Runnable {
 
 	public static SimulatorFrame frame;
 
-	// BMLのインスタンス
+	// BMLのインスタンス（シミュレーションのスレッドだけが触る）
 	private ExtendedBML bml;
+	// Reset で作った次のインスタンス（シミュレーションのスレッドが受け取る）
+	private final AtomicReference<ExtendedBML> pending = new AtomicReference<>();
+
+	// 描画用のコマの受け渡し
+	private volatile TripleBuffer<LatticeFrame> frames;
+	private LatticeFrame shown; // 表示中のコマ（EDT だけが触る）
+	private Timer repaintTimer;
+	private static final int FRAME_INTERVAL = 16; // 描画の間隔 [ms]（約60fps）
 
 	// 操作ボタン
 	private JButton btnStart;
@@ -31,8 +41,10 @@ public class SimulatorFrame extends JFrame implements Runnable {
 	// 描画パネル
 	private JPanel panel;
 
-	public boolean running = false;
-	public int step = 0;
+	public volatile boolean running = false;
+	public volatile int step = 0;
+	private volatile int stepsPerFrame = 1;	// 何ステップごとにコマを公開するか
+	private volatile int stepsPerSecond = 50;	// 目標の速さ（0なら全速）
 
 	private Thread animationThread;
 	private JLabel lblDeadlocks;
@@ -45,6 +57,8 @@ public class SimulatorFrame extends JFrame implements Runnable {
 	private JButton btnReset;
 	private JLabel lblL;
 	private JLabel lblK;
+	private JTextField txtStepsPerFrame;
+	private JTextField txtStepsPerSecond;
 
 
 	/**
@@ -54,12 +68,15 @@ public class SimulatorFrame extends JFrame implements Runnable {
 	public SimulatorFrame() {
 
 		bml = new ExtendedBML(L, k);
+		bml.getDeadlocks(); // デッドロックを move() のたびに逐次に追跡する
 		try {
 			bml.initialize();
 		} catch (Exception e1) {
 		}
 //		bml.setP(0.5);
 		bml.setTau(3);
+		frames = new TripleBuffer<>(() -> new LatticeFrame(L));
+		publish();
 
 		setTitle("Extended BML Model Simulator");
 		setResizable(false);
@@ -78,6 +95,7 @@ public class SimulatorFrame extends JFrame implements Runnable {
 		btnStart = new JButton("Start");
 		btnStart.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
+				applySpeed();
 				if (running) {
 					btnStart.setText("Start");
 					btnReset.setEnabled(true);
@@ -97,6 +115,36 @@ public class SimulatorFrame extends JFrame implements Runnable {
 		getContentPane().add(lblDeadlocks);
 		lblDeadlocks.setText("");
 
+		JLabel lblStepsPerFrame = new JLabel("steps/frame");
+		lblStepsPerFrame.setBounds(814, 20, 80, 13);
+		getContentPane().add(lblStepsPerFrame);
+
+		txtStepsPerFrame = new JTextField();
+		txtStepsPerFrame.setText("" + stepsPerFrame);
+		txtStepsPerFrame.setBounds(814, 43, 68, 19);
+		getContentPane().add(txtStepsPerFrame);
+		txtStepsPerFrame.setColumns(10);
+
+		JLabel lblStepsPerSecond = new JLabel("steps/s");
+		lblStepsPerSecond.setBounds(814, 76, 80, 13);
+		getContentPane().add(lblStepsPerSecond);
+
+		txtStepsPerSecond = new JTextField();
+		txtStepsPerSecond.setText("" + stepsPerSecond);
+		txtStepsPerSecond.setToolTipText("0 で全速");
+		txtStepsPerSecond.setBounds(814, 99, 68, 19);
+		getContentPane().add(txtStepsPerSecond);
+		txtStepsPerSecond.setColumns(10);
+
+		// 実行中でも Enter で反映する
+		ActionListener speedListener = new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				applySpeed();
+			}
+		};
+		txtStepsPerFrame.addActionListener(speedListener);
+		txtStepsPerSecond.addActionListener(speedListener);
+
 		lblStep = new JLabel("step");
 		lblStep.setBounds(814, 240, 50, 13);
 		getContentPane().add(lblStep);
@@ -156,41 +204,114 @@ public class SimulatorFrame extends JFrame implements Runnable {
 				int k = Integer.parseInt(txtK.getText());
 				int tau = Integer.parseInt(textField.getText());
 				double P = Double.parseDouble(textField_1.getText());
-				bml = new ExtendedBML(L, k);
-				bml.setP(P);
-				bml.setTau(tau);
+				ExtendedBML next = new ExtendedBML(L, k);
+				next.getDeadlocks();
+				next.setP(P);
+				next.setTau(tau);
 				SimulatorFrame.L = L;
 				SimulatorFrame.k = k;
-				step = 0;
-				lblStepval.setText("" + step);
 				try {
-					bml.initialize();
+					next.initialize();
 				} catch (Exception e1) {
 				}
-
+				// 差し替えはシミュレーションのスレッドで行う
+				pending.set(next);
+				animationThread.interrupt();
 			}
 		});
 
 		btnStart.requestFocus();
 
+		// 公開された最新のコマを表示の間隔で取り出し、Swing の更新をまとめて行う
+		repaintTimer = new Timer(FRAME_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				LatticeFrame f = frames.poll();
+				if (f == null) return;
+				shown = f;
+				lblStepval.setText("" + f.step);
+				lblDeadlocks.setText("" + f.deadlocks);
+				panel.repaint();
+			}
+		});
+		repaintTimer.start();
+
 		animationThread = new Thread(this, "Test");
 		animationThread.start();
 	}
 
+	/**
+	 * 入力欄の steps/frame と steps/s を反映します。
+	 */
+	private void applySpeed() {
+		try {
+			stepsPerFrame = Math.max(1, Integer.parseInt(txtStepsPerFrame.getText().trim()));
+			stepsPerSecond = Math.max(0, Integer.parseInt(txtStepsPerSecond.getText().trim()));
+		} catch (NumberFormatException e) {
+			System.out.println("[err] steps/frame, steps/s は整数でなければなりません。");
+		}
+		txtStepsPerFrame.setText("" + stepsPerFrame);
+		txtStepsPerSecond.setText("" + stepsPerSecond);
+	}
+
+	/**
+	 * 現在の状態を写し取って公開します（シミュレーションのスレッドから呼ぶ）。
+	 */
+	private void publish() {
+		int[][][] sites = bml.getSites();
+		frames.back().capture(sites[0], sites[1], step, bml.countDeadlocks());
+		frames.publish();
+	}
+
+	/**
+	 * シミュレーションのスレッド
+	 * 目標の速さ（0なら全速）で動かし、stepsPerFrame ステップごとにコマを公開します。
+	 * Swing のコンポーネントには触らず、表示は repaintTimer が EDT で行います。
+	 */
 	@Override
 	public void run() {
+		long published = step;
+		long deadline = System.nanoTime();
 		while (true) {
-			if (running) {
-				bml.move();
-				step++;
-				lblStepval.setText("" + step);
-				panel.repaint();
-				ArrayList<Integer> deadlocks = bml.countDeadlocks();
-				//System.out.println("running");
+			ExtendedBML next = pending.getAndSet(null);
+			if (next != null) {
+				bml = next;
+				step = 0;
+				frames = new TripleBuffer<>(() -> new LatticeFrame(next.getL()));
+				publish();
+				published = step;
+			}
+
+			if (!running) {
+				if (published != step) {
+					// 止めたときの状態を表示する
+					publish();
+					published = step;
+				}
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				deadline = System.nanoTime();
+				continue;
 			}
-			try {
-				Thread.sleep(20);
-			} catch (InterruptedException e) {
+
+			bml.move();
+			step++;
+			if (step - published >= stepsPerFrame) {
+				publish();
+				published = step;
+			}
+
+			int rate = stepsPerSecond;
+			if (rate > 0) {
+				deadline += 1000000000L / rate;
+				long wait = deadline - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				} else if (wait < -100000000L) {
+					// 0.1秒以上遅れたら追いつこうとしない
+					deadline = System.nanoTime();
+				}
 			}
 		}
 	}
@@ -218,6 +339,7 @@ public class SimulatorFrame extends JFrame implements Runnable {
 	public class SimulatorPanel extends JPanel {
 		final int delta = 20;		// 1つのマスのサイズ
 		final int sx = 10, sy = 10;	// 描画開始座標
+		private LatticeRaster raster;	// L > 20 のときの描画用の画像
 
 		/**
 		 * Panel内部を描画します。
@@ -225,20 +347,21 @@ public class SimulatorFrame extends JFrame implements Runnable {
 		@Override
 		public void paintComponent(Graphics g) {
 			super.paintComponent(g);
-			int L = bml.getL();
+			LatticeFrame f = shown;
+			if (f == null) return;
 
-			if (L <= 20) {
-				drawGrid(g);
-				drawArrows(g);
+			if (f.L <= 20) {
+				drawGrid(g, f.L);
+				drawArrows(g, f);
 			} else {
-				drawCircles(g);
+				drawRaster(g, f);
 			}
 		}
 
 		/**
 		 * （下請けメソッド）グリッドを描画します。
 		 */
-		private void drawGrid(Graphics g) {
+		private void drawGrid(Graphics g, int L) {
 			for (int i = 0; i <= L; i++) {
 				g.drawLine(sx, sy+delta*i, sx+delta*L, sy+delta*i);
 				g.drawLine(sx+delta*i, sy, sx+delta*i, sy+delta*L);
@@ -248,91 +371,41 @@ public class SimulatorFrame extends JFrame implements Runnable {
 		/**
 		 * （下請けメソッド）矢印を描画します。
 		 */
-		private void drawArrows(Graphics g) {
-			int[][][] sites;
-			int[][] siteX, siteY;
-			int index;
-
-			final int RIGHT = 0, LEFT = 1, UP = 2, DOWN = 3;
-			final String[] arrow = {"→", "←", "↑", "↓"};
-			final Color[]  color = {Color.GRAY, Color.BLACK, Color.RED, Color.BLUE};
-
-			sites = bml.getSites();
-			siteX = sites[0];
-			siteY = sites[1];
+		private void drawArrows(Graphics g, LatticeFrame f) {
+			final int L = f.L;
+			// LatticeRaster の色番号ごとの矢印と色（0 は空）
+			final String[] arrow = {null, "→", "←", "↑", "↓"};
+			final Color[]  color = {null, Color.GRAY, Color.BLACK, Color.RED, Color.BLUE};
 
 			for (int i = 0; i < L; i++) {
 				for (int j = 0; j < L; j++) {
-					// 横方向の矢印の描画
-					if (siteX[i][j] == 1) {
-						index = (j % 2 == 0 ? RIGHT : LEFT);
-						g.setColor(color[index]);
+					int c = f.codes[j*L + i];
+					if (c != LatticeRaster.EMPTY) {
+						g.setColor(color[c]);
 						// (x, y)は文字列のベースラインなので、位置を微調整する
-						g.drawString(arrow[index], sx+delta*i + 5, sy+delta*j + 15);
-					}
-					// 縦方向の矢印の描画
-					if (siteY[i][j] == 1) {
-						index = (i % 2 == 0 ? UP : DOWN);
-						g.setColor(color[index]);
-						g.drawString(arrow[index], sx+delta*i + 5, sy+delta*j + 15);
+						g.drawString(arrow[c], sx+delta*i + 5, sy+delta*j + 15);
 					}
 				}
 			}
 		}
 
 		/**
-		 * （下請けメソッド）小さい円で状態を描画します。
+		 * （下請けメソッド）格子を画像にして描画します。
+		 * 1サイト1ピクセルの画像を、パネルに収まる大きさに最近傍補間で拡大して描きます。
 		 */
-		private void drawCircles(Graphics g) {
+		private void drawRaster(Graphics g, LatticeFrame f) {
+			final int L = f.L;
+			int size = Math.min(getWidth(), getHeight()) - 2 * Math.max(sx, sy);
+			if (size >= L) size -= size % L; // 整数倍に拡大する
 
-			final int d = 7;
-
-			g.setColor(Color.BLACK);
-			g.drawRect(sx, sy, d*L, d*L);
-
-			int[][][] sites = bml.getSites();
-			int[][] siteX = sites[0];
-			int[][] siteY = sites[1];
-
-			ArrayList<Integer> deadlocks = bml.countDeadlocks();
-			int deadlocksSize = deadlocks.size();
-			for (int i = 0; i < deadlocksSize; ) {
-				int x = deadlocks.get(i); i++;
-				int y = deadlocks.get(i); i++;
-//				g.setColor(Color.CYAN);
-//				g.fillRect(sx+d*x, sy+d*y, d*2, d*2);
+			if (raster == null || raster.getL() != L) {
+				raster = new LatticeRaster(L);
 			}
+			raster.update(f.codes);
+			raster.draw(g, sx, sy, size);
 
-//			lblDeadlocks.setText("" + deadlocksSize/2);
-
-			for (int i = 0; i < L; i++) {
-				for (int j = 0; j < L; j++) {
-					if (siteX[i][j] == 1) {
-						if (j % 2 == 0) {
-							g.setColor(Color.GRAY);
-							g.fillOval(sx+d*i, sy+d*j, d, d);
-						} else {
-							g.setColor(Color.BLACK);
-							g.fillOval(sx+d*i, sy+d*j, d, d);
-						}
-					}
-					if (siteY[i][j] == 1) {
-						if (i % 2 == 0) {
-							g.setColor(Color.RED);
-							g.fillOval(sx+d*i, sy+d*j, d, d);
-						} else {
-							g.setColor(Color.BLUE);
-							g.fillOval(sx+d*i, sy+d*j, d, d);
-						}
-					}
-				}
-			}
-
-
+			g.setColor(Color.BLACK);
+			g.drawRect(sx, sy, size, size);
 		}
-
-
-
-
 	}
 }
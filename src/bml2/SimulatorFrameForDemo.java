@@ -158,6 +158,7 @@ public class SimulatorFrameForDemo extends JFrame implements Runnable {
 	public class SimulatorPanel extends JPanel {
 		final int delta = 20; // 1つのマスのサイズ
 		final int sx = 10, sy = 10; // 描画開始座標
+		private LatticeRaster raster; // L > 20 のときの描画用の画像
 
 		/**
 		 * Panel内部を描画します。
@@ -173,7 +174,7 @@ public class SimulatorFrameForDemo extends JFrame implements Runnable {
 					drawGrid(g);
 					drawArrows(g);
 				} else {
-					drawCircles(g);
+					drawRaster(g);
 				}
 			}
 		}
@@ -227,42 +228,22 @@ public class SimulatorFrameForDemo extends JFrame implements Runnable {
 		}
 
 		/**
-		 * （下請けメソッド）小さい円で状態を描画します。
+		 * （下請けメソッド）格子を画像にして描画します。
+		 * 1サイト1ピクセルの画像を、パネルに収まる大きさに最近傍補間で拡大して描きます。
 		 */
-		private void drawCircles(Graphics g) {
+		private void drawRaster(Graphics g) {
+			int size = Math.min(getWidth(), getHeight()) - 2 * Math.max(sx, sy);
+			if (size >= L) size -= size % L; // 整数倍に拡大する
 
-			final int d = 7;
-
-			g.setColor(Color.BLACK);
-			g.drawRect(sx, sy, d * L, d * L);
-
-			int[][][] sites = bml.getSites();
-			int[][] siteX = sites[0];
-			int[][] siteY = sites[1];
-
-			for (int i = 0; i < L; i++) {
-				for (int j = 0; j < L; j++) {
-					if (siteX[i][j] == 1) {
-						if (j % 2 == 0) {
-							g.setColor(Color.GRAY);
-							g.fillOval(sx + d * i, sy + d * j, d, d);
-						} else {
-							g.setColor(Color.BLACK);
-							g.fillOval(sx + d * i, sy + d * j, d, d);
-						}
-					}
-					if (siteY[i][j] == 1) {
-						if (i % 2 == 0) {
-							g.setColor(Color.RED);
-							g.fillOval(sx + d * i, sy + d * j, d, d);
-						} else {
-							g.setColor(Color.BLUE);
-							g.fillOval(sx + d * i, sy + d * j, d, d);
-						}
-					}
-				}
+			if (raster == null || raster.getL() != L) {
+				raster = new LatticeRaster(L);
 			}
+			int[][][] sites = bml.getSites();
+			raster.update(sites[0], sites[1]);
+			raster.draw(g, sx, sy, size);
 
+			g.setColor(Color.BLACK);
+			g.drawRect(sx, sy, size, size);
 		}
 
 	}
@@ -0,0 +1,440 @@
+package bml2;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * 車のリストによる拡張BMLモデル（低密度用）
+ *
+ * 各行・各列に、その車線を走る車の位置を int[k] で持つ。
+ * 車は追い越さないので、位置は巡回的に昇順のまま保たれ、
+ * 進行方向前方の車はリスト上の隣の車になる。
+ * 交差する車線の車はビット列の占有表で調べる。
+ * 1ステップの計算量は格子の大きさ O(L^2) ではなく車の数 O(N) = O(kL) に比例する。
+ */
+public class SparseBML implements BMLModel {
+	private int[][] rowCars; // 行 j の横方向の車の i 座標 [j][m]
+	private int[][] colCars; // 列 i の縦方向の車の j 座標 [i][m]
+	private long[] occX, occY; // 占有表（サイト (i,j) はビット j*L+i。大きな L では int を超えるので long で数える）
+	private int L; // 正方格子の一辺の数
+	private int k; // 最小密度の倍数定数
+	private int tau = 1; // 信号機の周期
+	private double P = 1.0; // スロースタート効果
+	private int current = 0; // 現在の段階
+	private long hash; // 状態のハッシュ値（段階 current を除く）
+	private RandomGenerator random; // インスタンスごとの乱数生成器
+	private BernoulliMask stayMask = new BernoulliMask(0.0); // スロースタート効果で留まる車（確率 1-P）
+	private long stayBits; // 留まる車のビット列と、その残りビット数
+	private int stayLeft;
+
+	/**
+	 * コンストラクタ
+	 * @param L 正方格子の一辺の数（正の偶数）
+	 * @param k 最小密度の倍数定数（ρ=k*ρmin）
+	 */
+	SparseBML(int L, int k) {
+		random = new Xoshiro256();
+
+		if (L <= 0 || L % 2 != 0) {
+			System.out.println("[err] Lは正の偶数でなければなりません。");
+			System.exit(1);
+		}
+		if (k < 1 || L/2 < k) {
+			System.out.println("[err] kは1以上L/2以下でなければなりません。");
+			System.exit(1);
+		}
+		if (((long)L * L + 63) / 64 > Integer.MAX_VALUE - 8) {
+			System.out.println("[err] Lが大きすぎます（占有表が配列に収まりません）。");
+			System.exit(1);
+		}
+
+		this.L = L;
+		this.k = k;
+		rowCars = new int[L][k];
+		colCars = new int[L][k];
+		occX = new long[(int)(((long)L * L + 63) / 64)];
+		occY = new long[occX.length];
+	}
+
+	/**
+	 * 乱数のシード値を指定するコンストラクタ
+	 * @param L
+	 * @param k
+	 * @param 乱数のシード値
+	 */
+	SparseBML(int L, int k, long seed) {
+		this(L, k);
+		random = new Xoshiro256(seed);
+	}
+
+	@Override
+	public void setRandom(RandomGenerator random) {
+		this.random = random;
+	}
+
+	@Override
+	public int getL() {
+		return L;
+	}
+
+	@Override
+	public int getN() {
+		return 2 * k * L;
+	}
+
+	@Override
+	public int getK() {
+		return k;
+	}
+
+	@Override
+	public int getTau() {
+		return tau;
+	}
+
+	@Override
+	public double getP() {
+		return P;
+	}
+
+	@Override
+	public int getCurrent() {
+		return current;
+	}
+
+	@Override
+	public void setTau(int tau) {
+		if (tau <= 0) {
+			System.out.println("[err] 信号機の周期 tau は1以上でなければなりません。");
+		} else {
+			this.tau = tau;
+		}
+	}
+
+	@Override
+	public void setP(double P) {
+		if (P < 0 || 1 < P) {
+			System.out.println("[err] スロースタート効果 P は0以上1以下でなければなりません。");
+		} else {
+			this.P = P;
+			stayMask = new BernoulliMask(1.0 - P);
+		}
+	}
+
+	@Override
+	public void initialize() throws Exception {
+		current = 0; // リセット
+		stayLeft = 0;
+
+		Arrays.fill(occX, 0);
+		Arrays.fill(occY, 0);
+		int[] nRow = new int[L], nCol = new int[L];
+		hash = 0;
+
+		InitialPlacement.place(L, k, random, (i, j, horizontal) -> {
+			if (horizontal) {
+				rowCars[j][nRow[j]++] = i;
+				set(occX, (long)j*L + i);
+				hash ^= StateHash.cell(StateHash.X, i, j);
+			} else {
+				colCars[i][nCol[i]++] = j;
+				set(occY, (long)j*L + i);
+				hash ^= StateHash.cell(StateHash.Y, i, j);
+			}
+		});
+
+		// 行・列ごとに昇順に並べる
+		for (int l = 0; l < L; l++) {
+			Arrays.sort(rowCars[l]);
+			Arrays.sort(colCars[l]);
+		}
+	}
+
+	@Override
+	public void setState(int[][] siteX, int[][] siteY, int current) {
+		Arrays.fill(occX, 0);
+		Arrays.fill(occY, 0);
+		int[] nRow = new int[L], nCol = new int[L];
+		hash = 0;
+
+		for (int i = 0; i < L; i++) {
+			for (int j = 0; j < L; j++) {
+				if (siteX[i][j] == 1) {
+					if (nRow[j] == k) throw new IllegalArgumentException("行 " + j + " の車の数が k と違います");
+					rowCars[j][nRow[j]++] = i;
+					set(occX, (long)j*L + i);
+					hash ^= StateHash.cell(StateHash.X, i, j);
+				}
+				if (siteY[i][j] == 1) {
+					if (nCol[i] == k) throw new IllegalArgumentException("列 " + i + " の車の数が k と違います");
+					colCars[i][nCol[i]++] = j;
+					set(occY, (long)j*L + i);
+					hash ^= StateHash.cell(StateHash.Y, i, j);
+				}
+			}
+		}
+		for (int l = 0; l < L; l++) {
+			if (nRow[l] != k || nCol[l] != k) {
+				throw new IllegalArgumentException("行・列 " + l + " の車の数が k と違います");
+			}
+		}
+		this.current = current;
+	}
+
+	/**
+	 * 乱数生成器の状態（4個）、持ち越している間隔、留まる車のビット列とその残りビット数、
+	 * 各行・列のリストで最も小さい位置にある車の番号（2L個）を返す
+	 * リストは巡回的に昇順なので、最後の値でリスト内の並び（スロースタートの判定順）を復元できる。
+	 */
+	@Override
+	public long[] getAuxState() {
+		if (!(random instanceof Xoshiro256)) return null;
+		long[] aux = new long[7 + 2 * L];
+		((Xoshiro256)random).saveState(aux, 0);
+		aux[4] = stayMask.getGap();
+		aux[5] = stayBits;
+		aux[6] = stayLeft;
+		for (int l = 0; l < L; l++) {
+			aux[7 + l] = minIndex(rowCars[l]);
+			aux[7 + L + l] = minIndex(colCars[l]);
+		}
+		return aux;
+	}
+
+	@Override
+	public void setAuxState(long[] aux) {
+		if (aux.length != 7 + 2 * L) {
+			throw new IllegalArgumentException("内部状態の長さが違います: " + aux.length);
+		}
+		if (!(random instanceof Xoshiro256)) random = new Xoshiro256();
+		((Xoshiro256)random).loadState(aux, 0);
+		stayMask.setGap(aux[4]);
+		stayBits = aux[5];
+		stayLeft = (int)aux[6];
+		// setState() で昇順に並べたリストを回転する
+		int[] tmp = new int[k];
+		for (int l = 0; l < L; l++) {
+			rotate(rowCars[l], (int)aux[7 + l], tmp);
+			rotate(colCars[l], (int)aux[7 + L + l], tmp);
+		}
+	}
+
+	private static int minIndex(int[] cars) {
+		int m = 0;
+		for (int n = 1; n < cars.length; n++) {
+			if (cars[n] < cars[m]) m = n;
+		}
+		return m;
+	}
+
+	/**
+	 * 昇順のリストを、最小の車が番号 shift に来るように回転する
+	 */
+	private static void rotate(int[] cars, int shift, int[] tmp) {
+		int n = cars.length;
+		for (int m = 0; m < n; m++) {
+			tmp[(m + shift) % n] = cars[m];
+		}
+		System.arraycopy(tmp, 0, cars, 0, n);
+	}
+
+	@Override
+	public long stateHash() {
+		return hash ^ StateHash.phase(current);
+	}
+
+	/**
+	 * 描画のために系の状態を与える
+	 * ExtendedBML と同じ [i][j] 形式の配列を新しく作って返す。
+	 */
+	@Override
+	public int[][][] getSites() {
+		int[][] siteX = new int[L][L];
+		int[][] siteY = new int[L][L];
+		for (int j = 0; j < L; j++) {
+			for (int m = 0; m < k; m++) {
+				siteX[rowCars[j][m]][j] = 1;
+			}
+		}
+		for (int i = 0; i < L; i++) {
+			for (int m = 0; m < k; m++) {
+				siteY[i][colCars[i][m]] = 1;
+			}
+		}
+		return new int[][][] {siteX, siteY};
+	}
+
+	@Override
+	public void getRow(int j, long[] x, long[] y) {
+		row(occX, j, x);
+		row(occY, j, y);
+	}
+
+	/**
+	 * 占有表の行 j（ビット j*L から L ビット）を、ワード i/64 のビット i%64 の形で dst に読む
+	 */
+	private void row(long[] occ, int j, long[] dst) {
+		int nw = (L + 63) / 64;
+		for (int w = 0; w < nw; w++) {
+			long b = (long)j * L + 64L * w;
+			int q = (int)(b >>> 6), s = (int)(b & 63);
+			long v = occ[q] >>> s;
+			if (s != 0 && q + 1 < occ.length) v |= occ[q + 1] << (64 - s);
+			int bits = Math.min(64, L - 64 * w);
+			dst[w] = (bits == 64) ? v : v & ((1L << bits) - 1);
+		}
+	}
+
+	@Override
+	public int move() {
+		int count;
+		if (current == 0) {
+			count = moveHorizontal(true);
+		} else if (current < tau) {
+			count = moveHorizontal(false);
+		} else if (current == tau) {
+			count = moveVertical(true);
+		} else {
+			count = moveVertical(false);
+		}
+
+		current++;
+		if (current == 2 * tau) {
+			current = 0;
+		}
+
+		return count;
+	}
+
+	@Override
+	public void move1period() {
+		for (int i = 0; i < 2 * tau; i++) {
+			move();
+		}
+	}
+
+	private static void set(long[] occ, long b) {
+		occ[(int)(b >>> 6)] |= 1L << b;
+	}
+
+	private static void clear(long[] occ, long b) {
+		occ[(int)(b >>> 6)] &= ~(1L << b);
+	}
+
+	private static boolean get(long[] occ, long b) {
+		return (occ[(int)(b >>> 6)] & (1L << b)) != 0;
+	}
+
+	/**
+	 * スロースタート効果でその場に留まるか（確率 1-P）
+	 */
+	private boolean stay() {
+		if (stayLeft == 0) {
+			stayBits = stayMask.next(random);
+			stayLeft = 64;
+		}
+		boolean s = (stayBits & 1L) != 0;
+		stayBits >>>= 1;
+		stayLeft--;
+		return s;
+	}
+
+	/**
+	 * 横方向の車を１ステップ動かす
+	 * 偶数行は右向き（i+1）、奇数行は左向き（i-1）。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveHorizontal(boolean ss) {
+		final boolean slow = ss && P < 1.0;
+		int count = 0;
+
+		for (int j = 0; j < L; j++) {
+			int[] cars = rowCars[j];
+			long base = (long)j * L;
+
+			if (j % 2 == 0) {
+				// 右向き：前方の車はリストの次の車。先頭の車の元の位置を残しておく
+				int first = cars[0];
+				for (int m = 0; m < k; m++) {
+					int i = cars[m];
+					int next = (i == L-1 ? 0 : i+1);
+					int ahead = (m == k-1 ? first : cars[m+1]);
+					if (ahead == next || get(occY, base + next)) continue;
+					if (slow && stay()) continue;
+					cars[m] = next;
+					clear(occX, base + i);
+					set(occX, base + next);
+					hash ^= StateHash.cell(StateHash.X, i, j) ^ StateHash.cell(StateHash.X, next, j);
+					count++;
+				}
+			} else {
+				// 左向き：前方の車はリストの前の車。末尾の車の元の位置を残しておく
+				int last = cars[k-1];
+				for (int m = k-1; m >= 0; m--) {
+					int i = cars[m];
+					int next = (i == 0 ? L-1 : i-1);
+					int ahead = (m == 0 ? last : cars[m-1]);
+					if (ahead == next || get(occY, base + next)) continue;
+					if (slow && stay()) continue;
+					cars[m] = next;
+					clear(occX, base + i);
+					set(occX, base + next);
+					hash ^= StateHash.cell(StateHash.X, i, j) ^ StateHash.cell(StateHash.X, next, j);
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * 縦方向の車を１ステップ動かす
+	 * 偶数列は上向き（j-1）、奇数列は下向き（j+1）。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveVertical(boolean ss) {
+		final boolean slow = ss && P < 1.0;
+		int count = 0;
+
+		for (int i = 0; i < L; i++) {
+			int[] cars = colCars[i];
+
+			if (i % 2 == 0) {
+				// 上向き：前方の車はリストの前の車
+				int last = cars[k-1];
+				for (int m = k-1; m >= 0; m--) {
+					int j = cars[m];
+					int next = (j == 0 ? L-1 : j-1);
+					int ahead = (m == 0 ? last : cars[m-1]);
+					if (ahead == next || get(occX, (long)next*L + i)) continue;
+					if (slow && stay()) continue;
+					cars[m] = next;
+					clear(occY, (long)j*L + i);
+					set(occY, (long)next*L + i);
+					hash ^= StateHash.cell(StateHash.Y, i, j) ^ StateHash.cell(StateHash.Y, i, next);
+					count++;
+				}
+			} else {
+				// 下向き：前方の車はリストの次の車
+				int first = cars[0];
+				for (int m = 0; m < k; m++) {
+					int j = cars[m];
+					int next = (j == L-1 ? 0 : j+1);
+					int ahead = (m == k-1 ? first : cars[m+1]);
+					if (ahead == next || get(occX, (long)next*L + i)) continue;
+					if (slow && stay()) continue;
+					cars[m] = next;
+					clear(occY, (long)j*L + i);
+					set(occY, (long)next*L + i);
+					hash ^= StateHash.cell(StateHash.Y, i, j) ^ StateHash.cell(StateHash.Y, i, next);
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+}
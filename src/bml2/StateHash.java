@@ -0,0 +1,45 @@
+package bml2;
+
+/**
+ * 状態のハッシュ値に使う鍵
+ *
+ * Zobrist ハッシュと同じく、状態のハッシュ値は占有されているサイト（またはビットボードのワード）の
+ * 鍵の XOR とする。変化したサイトの鍵だけを XOR し直せば逐次に更新できる。
+ * 鍵は表を持たずに座標から SplitMix64 の出力関数で計算するので、大きな格子でもメモリを使わない。
+ */
+class StateHash {
+	static final int X = 0, Y = 1; // 横方向・縦方向の車
+
+	private StateHash() {
+	}
+
+	/**
+	 * サイト (i, j) にある車の鍵
+	 * @param species X または Y
+	 */
+	static long cell(int species, int i, int j) {
+		return mix64((((long)j << 32) | (i & 0xFFFFFFFFL)) * 2 + species + 0x632BE59BD9B4E019L);
+	}
+
+	/**
+	 * ビットボードの行 j のワード w が値 v であるときの鍵（v = 0 の場合は 0）
+	 * @param species X または Y
+	 */
+	static long word(int species, int j, int w, long v) {
+		if (v == 0) return 0;
+		return mix64(v + mix64((((long)j << 32) | (w & 0xFFFFFFFFL)) * 2 + species));
+	}
+
+	/**
+	 * 段階 current の鍵
+	 */
+	static long phase(int current) {
+		return mix64(current + 0x3C6EF372FE94F82AL);
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
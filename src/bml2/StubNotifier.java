@@ -0,0 +1,24 @@
+package bml2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 受け取った通知を覚えておくだけの通知先
+ * ネットワークのない環境での動作確認に使う。
+ */
+class StubNotifier implements Notifier {
+	private final List<String> messages = new ArrayList<>();
+
+	@Override
+	public synchronized void post(String message) {
+		messages.add(message);
+	}
+
+	/**
+	 * これまでに受け取った通知（写し）
+	 */
+	synchronized List<String> getMessages() {
+		return new ArrayList<>(messages);
+	}
+}
@@ -0,0 +1,361 @@
+package bml2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 掃引の試行を TCP で複数のワーカー（SweepWorker）に配る
+ *
+ * 試行は SweepRunner と同じ (k, tau, P, 試行) の格子点で、シード値も同じ pointSeed() で決めて渡すので、
+ * どのワーカーがどの順番で計算しても、出力は SweepRunner で1台で計算した場合と同じになる。
+ *
+ * ワーカーは手が空いたら試行を取りに来る。配るものがなくなったら、まだ終わっていない試行のうち
+ * 一番前に配ったものをもう1つのワーカーにも配り（結果は同じなので先に返った方を使う）、遅いワーカーを待たない。
+ * 接続が切れたワーカーや、heartbeatTimeout ミリ秒のあいだ何も送ってこないワーカーの試行は配り直す。
+ *
+ * 接続してきたワーカーを認証しないので、受け取った結果はそのまま保存先とキャッシュに入る。
+ * 待ち受けるアドレスは信頼できるネットワークのものに限る（BMLSimulation.distBind の既定はループバック）。
+ *
+ * プロトコル（UTF-8 の1行ずつ、ワーカーが送った行に1行で返す。HEARTBEAT には返さない）:
+ *   HELLO L 空回し 計測 版 名前 → OK / ERR 理由（条件が違うワーカーは断る）
+ *   GET                         → TASK 番号 k tau P seed / WAIT（少し待ってから GET）/ DONE
+ *   RESULT 番号 v stderr 空回し 計測 経過時間 → OK
+ *   FAIL 番号 理由              → OK（maxAttempts 回失敗した試行は v = -1 とする）
+ *   HEARTBEAT
+ */
+class SweepCoordinator {
+	private static final long EXPIRE_MILLIS = 1000; // 応答のない接続を調べる間隔
+
+	private final InetAddress bind; // 待ち受けるアドレス（null ならすべてのインターフェース）
+	private final int port;
+	private final long seed;
+	private final long heartbeatTimeout; // ミリ秒
+	private final int maxAttempts;       // 1試行の失敗の上限
+	private ResultStore store; // 試行の結果の保存先（なければ null）
+	private ResultCache cache; // 試行の結果のキャッシュ（なければ null）
+
+	// 試行の状態（this で同期する）
+	private SweepRunner.Grid grid;
+	private long[] seeds;      // 試行のシード値
+	private boolean[] done;    // 結果を受け取ったか
+	private int[] holders;     // 計算しているワーカーの数
+	private long[] leasedAt;   // 最後に配った時刻
+	private int[] failures;    // 失敗した回数
+	private final ArrayDeque<Integer> pending = new ArrayDeque<>(); // まだ配っていない試行
+	private final List<Connection> connections = new ArrayList<>();
+	private boolean finished = false;
+
+	// 受け取った結果（呼び出したスレッドで grid に渡す）
+	private final BlockingQueue<double[]> results = new LinkedBlockingQueue<>(); // {番号, v}
+
+	/**
+	 * @param bind 待ち受けるアドレス（null ならすべてのインターフェース）
+	 * @param port 待ち受けるポート
+	 * @param seed 基になるシード値
+	 * @param heartbeatTimeout この時間（ミリ秒）何も送ってこないワーカーは切断する
+	 * @param maxAttempts 1試行の失敗の上限
+	 */
+	SweepCoordinator(InetAddress bind, int port, long seed, long heartbeatTimeout, int maxAttempts) {
+		this.bind = bind;
+		this.port = port;
+		this.seed = seed;
+		this.heartbeatTimeout = heartbeatTimeout;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * 各試行の結果を保存先に追記する
+	 */
+	void setStore(ResultStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * 記録済みの試行は配らずにその結果を使い、受け取った結果を記録する
+	 */
+	void setCache(ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * ワーカーと揃えておく条件（HELLO の引数）
+	 * 格子の大きさ・ステップ数・エンジンの版が違うと、同じシード値でも結果が変わる。
+	 */
+	static String handshake() {
+		return BMLSimulation.L + " " + BMLSimulation.stepIgnored + " " + BMLSimulation.stepToObtain
+				+ " " + ResultCache.versionHash(BMLSimulation.engineVersion());
+	}
+
+	/**
+	 * 掃引を実行する（すべての試行の結果が揃うまで戻らない）
+	 * 出力は SweepRunner.run() と同じ。
+	 * @param out 1行ずつ受け取る出力先（呼び出したスレッドから呼ばれる）
+	 */
+	void run(int[] taus, double[] Ps, int kFrom, int kTo, int trials, Consumer<String> out) throws Exception {
+		SweepRunner.Grid g = new SweepRunner.Grid(taus, Ps, kFrom, kTo, trials, out);
+		int n = g.groups() * trials;
+		List<double[]> cached = new ArrayList<>();
+		synchronized (this) {
+			grid = g;
+			seeds = new long[n];
+			done = new boolean[n];
+			holders = new int[n];
+			leasedAt = new long[n];
+			failures = new int[n];
+			for (int id = 0; id < n; id++) {
+				int group = id / trials;
+				seeds[id] = SweepRunner.pointSeed(seed, g.k(group), g.tau(group), g.P(group), id % trials);
+				SimulationResult r = (cache != null)
+						? cache.get(BMLSimulation.cacheKey(g.k(group), g.tau(group), g.P(group), seeds[id])) : null;
+				if (r != null) {
+					done[id] = true;
+					cached.add(new double[] {id, r.v});
+				} else {
+					pending.add(id);
+				}
+			}
+		}
+		results.addAll(cached);
+
+		ServerSocket server = new ServerSocket(port, 50, bind);
+		Thread acceptor = new Thread(() -> accept(server), "coordinator");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		try {
+			// 結果を受け取り、先頭から揃った点を出力する
+			// 結果が届き続けていても、応答のない接続は1秒ごとに調べる
+			long lastExpire = System.currentTimeMillis();
+			for (int received = 0; received < n; ) {
+				double[] r = results.poll(EXPIRE_MILLIS, TimeUnit.MILLISECONDS);
+				long now = System.currentTimeMillis();
+				if (now - lastExpire >= EXPIRE_MILLIS) {
+					expire();
+					lastExpire = now;
+				}
+				if (r == null) continue;
+				g.add((int)r[0] / trials, (int)r[0] % trials, r[1]);
+				received++;
+			}
+		} finally {
+			synchronized (this) {
+				finished = true;
+			}
+			server.close();
+			// 試行の途中のワーカーが結果を返せるよう、接続はワーカーが次に GET したときに DONE で閉じる
+		}
+	}
+
+	/**
+	 * 待ち受けて、接続ごとにスレッドを立てる
+	 */
+	private void accept(ServerSocket server) {
+		while (true) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return; // 閉じられた
+			}
+			Connection c = new Connection(socket);
+			synchronized (this) {
+				connections.add(c);
+			}
+			Thread t = new Thread(c, "coordinator-" + socket.getRemoteSocketAddress());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * heartbeatTimeout のあいだ何も送ってこない接続を切る（試行は切れたスレッドが配り直す）
+	 */
+	private synchronized void expire() {
+		long now = System.currentTimeMillis();
+		for (Connection c : connections) {
+			if (now - c.lastHeard > heartbeatTimeout) {
+				System.out.println("ワーカー " + c.name + " から応答がありません。");
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * 試行を1つ取る
+	 * @return 試行の番号（配るものがなければ -1）
+	 */
+	private synchronized int lease(Connection c) {
+		Integer id = pending.poll();
+		if (id == null) {
+			// 配っていない試行がなければ、一番前に配ったものを重ねて配る
+			int oldest = -1;
+			for (int i = 0; i < done.length; i++) {
+				if (done[i] || holders[i] != 1 || c.tasks.contains(i)) continue;
+				if (oldest < 0 || leasedAt[i] < leasedAt[oldest]) oldest = i;
+			}
+			if (oldest < 0) return -1;
+			id = oldest;
+		}
+		holders[id]++;
+		leasedAt[id] = System.currentTimeMillis();
+		c.tasks.add(id);
+		return id;
+	}
+
+	/**
+	 * 試行の結果を受け取る（重ねて配った試行は先に返った方を使う）
+	 */
+	private synchronized void complete(Connection c, int id, SimulationResult r, double wall) throws IOException {
+		if (!c.tasks.remove(id)) return;
+		holders[id]--;
+		if (done[id]) return;
+		done[id] = true;
+		int group = id / grid.trials();
+		int k = grid.k(group), tau = grid.tau(group);
+		double P = grid.P(group);
+		if (store != null) {
+			store.append(BMLSimulation.L, k, tau, P, seeds[id], r.steps(), r.v, r.stderr, wall);
+		}
+		if (cache != null && r.v >= 0) {
+			cache.put(BMLSimulation.cacheKey(k, tau, P, seeds[id]), r);
+		}
+		results.add(new double[] {id, r.v});
+	}
+
+	/**
+	 * 試行を返す（失敗した、または接続が切れた）
+	 * @param failed 試行が失敗したか
+	 */
+	private synchronized void release(Connection c, int id, boolean failed) {
+		if (!c.tasks.remove(id)) return;
+		holders[id]--;
+		if (done[id]) return;
+		if (failed && ++failures[id] >= maxAttempts) {
+			System.out.println("試行 " + id + " は " + failures[id] + " 回失敗しました。");
+			done[id] = true;
+			results.add(new double[] {id, -1});
+			return;
+		}
+		if (holders[id] == 0) pending.addFirst(id);
+	}
+
+	/**
+	 * 1つのワーカーとの接続
+	 */
+	private class Connection implements Runnable {
+		private final Socket socket;
+		private final Set<Integer> tasks = new HashSet<>(); // 配った試行（SweepCoordinator で同期する）
+		private volatile long lastHeard = System.currentTimeMillis();
+		private String name;
+
+		Connection(Socket socket) {
+			this.socket = socket;
+			this.name = String.valueOf(socket.getRemoteSocketAddress());
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// 閉じるだけ
+			}
+		}
+
+		@Override
+		public void run() {
+			try (BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+					PrintWriter out = new PrintWriter(
+						new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+				boolean greeted = false;
+				String line;
+				while ((line = in.readLine()) != null) {
+					lastHeard = System.currentTimeMillis();
+					String[] f = line.split(" ");
+					switch (f[0]) {
+					case "HEARTBEAT":
+						break;
+					case "HELLO":
+						String expected = handshake();
+						String actual = (f.length >= 5) ? String.join(" ", f[1], f[2], f[3], f[4]) : "";
+						if (!actual.equals(expected)) {
+							out.println("ERR 条件が違います（" + expected + "）");
+							return;
+						}
+						if (f.length > 5) name = f[5] + "@" + name;
+						greeted = true;
+						out.println("OK");
+						break;
+					case "GET":
+						if (!greeted) {
+							out.println("ERR HELLO がありません");
+							return;
+						}
+						int id = lease(this);
+						if (id >= 0) {
+							int group = id / grid.trials();
+							out.println("TASK " + id + " " + grid.k(group) + " " + grid.tau(group)
+									+ " " + grid.P(group) + " " + seeds[id]);
+						} else {
+							boolean end;
+							synchronized (SweepCoordinator.this) {
+								end = finished || pending.isEmpty() && allDone();
+							}
+							out.println(end ? "DONE" : "WAIT");
+							if (end) return;
+						}
+						break;
+					case "RESULT":
+						complete(this, Integer.parseInt(f[1]),
+								new SimulationResult(Double.parseDouble(f[2]), Double.parseDouble(f[3]),
+										Long.parseLong(f[4]), Long.parseLong(f[5])),
+								Double.parseDouble(f[6]));
+						out.println("OK");
+						break;
+					case "FAIL":
+						System.out.println("ワーカー " + name + " で試行 " + f[1] + " が失敗しました: " + line);
+						release(this, Integer.parseInt(f[1]), true);
+						out.println("OK");
+						break;
+					default:
+						out.println("ERR " + f[0]);
+						return;
+					}
+				}
+			} catch (SocketException e) {
+				// 切断された
+			} catch (IOException | RuntimeException e) {
+				System.out.println("ワーカー " + name + " との通信に失敗しました: " + e);
+			} finally {
+				close();
+				synchronized (SweepCoordinator.this) {
+					connections.remove(this);
+					for (int id : new ArrayList<>(tasks)) release(this, id, false);
+				}
+			}
+		}
+	}
+
+	private boolean allDone() {
+		for (boolean d : done) {
+			if (!d) return false;
+		}
+		return true;
+	}
+}
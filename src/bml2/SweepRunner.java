@@ -0,0 +1,256 @@
+package bml2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * パラメータ掃引を並列に実行する
+ *
+ * (k, tau, P, 試行) の格子点を1つずつタスクにして、固定数のスレッドで計算する。
+ * 各タスクは自分のエンジンを作り、シード値は点から決まるので、
+ * 結果はスレッド数や計算の順番によらない。
+ * 結果は終わった点から、tau, P, k の順に並べて出力する。
+ * 保存先を与えた場合は、各試行の結果を終わった順に追記する。
+ * キャッシュを与えた場合は、記録済みの試行を計算せずにその結果を使う（保存先には追記しない）。
+ */
+public class SweepRunner {
+	private final int threads; // スレッド数
+	private final long seed;   // 基になるシード値
+	private ResultStore store; // 試行の結果の保存先（なければ null）
+	private ResultCache cache; // 試行の結果のキャッシュ（なければ null）
+
+	/**
+	 * コンストラクタ
+	 * @param threads 並列に動かすスレッド数
+	 * @param seed 基になるシード値
+	 */
+	SweepRunner(int threads, long seed) {
+		this.threads = threads;
+		this.seed = seed;
+	}
+
+	/**
+	 * 並列に動かすスレッド数
+	 */
+	int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * 基になるシード値
+	 */
+	long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * 各試行の結果を保存先に追記する
+	 */
+	void setStore(ResultStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * 記録済みの試行を飛ばす
+	 */
+	void setCache(ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * 点 (k, tau, P, trial) の試行に使うシード値を導出する
+	 */
+	static long pointSeed(long seed, int k, int tau, double P, int trial) {
+		long s = Xoshiro256.mix(seed, k);
+		s = Xoshiro256.mix(s, tau);
+		s = Xoshiro256.mix(s, Double.doubleToLongBits(P));
+		return Xoshiro256.mix(s, trial);
+	}
+
+	/**
+	 * 1試行分の計算結果
+	 */
+	private static class Result {
+		final int group, trial;
+		final double v;
+
+		Result(int group, int trial, double v) {
+			this.group = group;
+			this.trial = trial;
+			this.v = v;
+		}
+	}
+
+	/**
+	 * 掃引の点を出力する順に並べ、終わった試行を受け取って先頭から揃った点を出力する
+	 * 点の番号 (group) は tau, P, k の順で、試行の番号と合わせて試行を表す。
+	 * 出力は試行が終わった順番によらない。
+	 */
+	static class Grid {
+		private final int[] taus;
+		private final double[] Ps;
+		private final int trials;
+		private final Consumer<String> out;
+		private final List<int[]> groups = new ArrayList<int[]>(); // {tauの番号, Pの番号, k}
+		private final double[][] vs;
+		private final int[] remaining;
+		private int next = 0; // 次に出力する点
+
+		/**
+		 * @param out 1行ずつ受け取る出力先（add() を呼んだスレッドから呼ばれる）
+		 */
+		Grid(int[] taus, double[] Ps, int kFrom, int kTo, int trials, Consumer<String> out) {
+			this.taus = taus;
+			this.Ps = Ps;
+			this.trials = trials;
+			this.out = out;
+			for (int t = 0; t < taus.length; t++) {
+				for (int p = 0; p < Ps.length; p++) {
+					for (int k = kFrom; k <= kTo; k++) {
+						groups.add(new int[] {t, p, k});
+					}
+				}
+			}
+			vs = new double[groups.size()][trials];
+			remaining = new int[groups.size()];
+			Arrays.fill(remaining, trials);
+		}
+
+		/**
+		 * 点の数
+		 */
+		int groups() {
+			return groups.size();
+		}
+
+		/**
+		 * 各点の試行回数
+		 */
+		int trials() {
+			return trials;
+		}
+
+		int tau(int group) {
+			return taus[groups.get(group)[0]];
+		}
+
+		double P(int group) {
+			return Ps[groups.get(group)[1]];
+		}
+
+		int k(int group) {
+			return groups.get(group)[2];
+		}
+
+		/**
+		 * すべての点を出力したか
+		 */
+		boolean done() {
+			return next == groups.size();
+		}
+
+		/**
+		 * 試行の結果を受け取り、先頭から揃った点を出力する
+		 */
+		void add(int group, int trial, double v) {
+			vs[group][trial] = v;
+			remaining[group]--;
+
+			while (next < groups.size() && remaining[next] == 0) {
+				int[] g = groups.get(next);
+				boolean newTau = (next == 0 || groups.get(next-1)[0] != g[0]);
+				boolean newP = newTau || groups.get(next-1)[1] != g[1];
+				if (newTau) out.accept("tau = " + taus[g[0]]);
+				if (newP) {
+					out.accept("P = " + Ps[g[1]]);
+					out.accept("[k], [ρ], [V]");
+				}
+				out.accept(g[2] + ", " + (2.0*g[2]/BMLSimulation.L) + ", " + average(vs[next]));
+				next++;
+			}
+		}
+	}
+
+	/**
+	 * 掃引を実行する
+	 * 出力は "tau = ..." / "P = ..." / "[k], [ρ], [V]" の見出しと、"k, ρ, V" の行からなる。
+	 * @param taus tau の値
+	 * @param Ps P の値
+	 * @param kFrom k の最小値
+	 * @param kTo k の最大値
+	 * @param trials 各点の試行回数
+	 * @param out 1行ずつ受け取る出力先（呼び出したスレッドから呼ばれる）
+	 */
+	public void run(int[] taus, double[] Ps, int kFrom, int kTo, int trials,
+			Consumer<String> out) throws Exception {
+		Grid grid = new Grid(taus, Ps, kFrom, kTo, trials, out);
+		int G = grid.groups();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<Result> cs = new ExecutorCompletionService<Result>(pool);
+			for (int g = 0; g < G; g++) {
+				final int group = g;
+				final int tau = grid.tau(g);
+				final double P = grid.P(g);
+				final int k = grid.k(g);
+				for (int trial = 0; trial < trials; trial++) {
+					final int tr = trial;
+					cs.submit(() -> new Result(group, tr, trial(k, tau, P, pointSeed(seed, k, tau, P, tr)).v));
+				}
+			}
+
+			// 終わった試行を受け取り、先頭から揃った点を出力する
+			for (int n = 0; n < G * trials; n++) {
+				Result r = cs.take().get();
+				grid.add(r.group, r.trial, r.v);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * 1回の試行を行ない、保存先があれば結果を追記する
+	 * キャッシュに記録済みなら計算しない。
+	 * 異なるスレッドから同時に呼び出してよい。
+	 * @return 結果（初期化できない場合は v = -1）
+	 */
+	SimulationResult trial(int k, int tau, double P, long s) throws IOException {
+		ResultCache.Key key = (cache != null) ? BMLSimulation.cacheKey(k, tau, P, s) : null;
+		if (key != null) {
+			SimulationResult cached = cache.get(key);
+			if (cached != null) return cached;
+		}
+
+		long tStart = System.nanoTime();
+		SimulationResult r = BMLSimulation.simulateTrialWithError(k, tau, P, s);
+		double wall = (System.nanoTime() - tStart) / 1e9;
+		if (store != null) {
+			store.append(BMLSimulation.L, k, tau, P, s, r.steps(), r.v, r.stderr, wall);
+		}
+		if (key != null && r.v >= 0) {
+			cache.put(key, r);
+		}
+		return r;
+	}
+
+	/**
+	 * 試行の平均値（初期化できなかった試行があれば -1）
+	 */
+	private static double average(double[] vs) {
+		double v = 0;
+		for (double _v : vs) {
+			if (_v < 0) return -1;
+			v += _v;
+		}
+		return v / vs.length;
+	}
+}
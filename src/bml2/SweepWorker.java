@@ -0,0 +1,165 @@
+package bml2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SweepCoordinator から試行を受け取って計算するワーカー
+ *
+ * スレッドごとに接続を1本張り、手が空いたら試行を取りに行って SweepRunner.trial() で計算し、結果を返す。
+ * 計算中も heartbeatInterval ミリ秒ごとに HEARTBEAT を送り、生きていることを知らせる。
+ * シード値は試行と一緒に受け取るので、ワーカーの設定によらず結果は同じになる。
+ * 保存先とキャッシュには書かない（受け取ったすべての結果をコーディネータが記録する）。
+ */
+class SweepWorker {
+	private static final long WAIT_MILLIS = 1000; // WAIT を受け取ったら待つ時間
+
+	private final String host;
+	private final int port;
+	private final SweepRunner runner;
+	private final long heartbeatInterval; // ミリ秒
+	private final String name;
+
+	private long trials = 0; // 計算した試行の数
+
+	/**
+	 * @param host コーディネータのホスト
+	 * @param port コーディネータのポート
+	 * @param runner 試行を計算する SweepRunner（スレッド数を使う。保存先・キャッシュは設定しない）
+	 * @param heartbeatInterval HEARTBEAT を送る間隔（ミリ秒）
+	 */
+	SweepWorker(String host, int port, SweepRunner runner, long heartbeatInterval) {
+		this.host = host;
+		this.port = port;
+		this.runner = runner;
+		this.heartbeatInterval = heartbeatInterval;
+		String hostName;
+		try {
+			hostName = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			hostName = "worker";
+		}
+		this.name = hostName.replace(' ', '_');
+	}
+
+	/**
+	 * 計算した試行の数
+	 */
+	synchronized long getTrials() {
+		return trials;
+	}
+
+	/**
+	 * コーディネータから DONE を受け取るか、接続が切れるまで試行を計算する
+	 */
+	void run() throws Exception {
+		ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		List<Thread> loops = new ArrayList<>();
+		try {
+			for (int i = 0; i < runner.getThreads(); i++) {
+				String id = name + "#" + i;
+				Thread t = new Thread(() -> loop(id, heartbeat), "worker-" + i);
+				t.start();
+				loops.add(t);
+			}
+			for (Thread t : loops) t.join();
+		} finally {
+			heartbeat.shutdownNow();
+		}
+	}
+
+	/**
+	 * 1本の接続で試行を取っては計算する
+	 */
+	private void loop(String id, ScheduledExecutorService heartbeat) {
+		try (Socket socket = new Socket(host, port);
+				BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(
+					new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+			// PrintWriter は行ごとに同期するので、HEARTBEAT と他の行は混ざらない
+			ScheduledFuture<?> beat = heartbeat.scheduleAtFixedRate(() -> out.println("HEARTBEAT"),
+					heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+			try {
+				String reply = request(in, out, "HELLO " + SweepCoordinator.handshake() + " " + id);
+				if (!reply.equals("OK")) {
+					System.out.println("[err] コーディネータに断られました: " + reply);
+					return;
+				}
+				while (true) {
+					String[] f = request(in, out, "GET").split(" ");
+					switch (f[0]) {
+					case "TASK":
+						compute(in, out, f);
+						break;
+					case "WAIT":
+						Thread.sleep(WAIT_MILLIS);
+						break;
+					case "DONE":
+						return;
+					default:
+						System.out.println("[err] コーディネータからの応答が不正です: " + String.join(" ", f));
+						return;
+					}
+				}
+			} finally {
+				beat.cancel(false);
+			}
+		} catch (IOException e) {
+			System.out.println("コーディネータとの接続が切れました: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * TASK 番号 k tau P seed の試行を計算して結果を返す
+	 */
+	private void compute(BufferedReader in, PrintWriter out, String[] f) throws IOException {
+		String task = f[1];
+		int k = Integer.parseInt(f[2]);
+		int tau = Integer.parseInt(f[3]);
+		double P = Double.parseDouble(f[4]);
+		long s = Long.parseLong(f[5]);
+		long tStart = System.nanoTime();
+		SimulationResult r;
+		try {
+			r = runner.trial(k, tau, P, s);
+		} catch (IOException | RuntimeException e) {
+			request(in, out, "FAIL " + task + " " + e.toString().replace('\n', ' '));
+			return;
+		}
+		double wall = (System.nanoTime() - tStart) / 1e9;
+		request(in, out, "RESULT " + task + " " + r.v + " " + r.stderr + " "
+				+ r.warmupSteps + " " + r.measureSteps + " " + wall);
+		synchronized (this) {
+			trials++;
+		}
+	}
+
+	/**
+	 * 1行送って、返ってきた1行を返す
+	 */
+	private static String request(BufferedReader in, PrintWriter out, String line) throws IOException {
+		out.println(line);
+		String reply = in.readLine();
+		if (reply == null) throw new IOException("切断されました");
+		return reply;
+	}
+}
@@ -0,0 +1,58 @@
+package bml2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 書き込み側1スレッド・読み出し側1スレッドのロックフリーなトリプルバッファ
+ *
+ * 3つのスロットを「書き込み中」「受け渡し」「読み出し中」に割り当て、
+ * publish() と poll() では受け渡しのスロットと自分のスロットを1回の getAndSet() で交換する。
+ * 書き込み側は待たされず、読み出し側は常に最後に公開されたものを受け取る（途中のものは捨てられる）。
+ * 公開したスロットは読み出し側が手放すまで書き込み側に戻らないので、読み出し側から見て不変である。
+ */
+class TripleBuffer<T> {
+	private static final int INDEX = 3; // 受け渡しのスロット番号
+	private static final int FRESH = 4; // 受け渡しのスロットがまだ読まれていない
+
+	private final Object[] slots = new Object[3];
+	private final AtomicInteger middle = new AtomicInteger(1);
+	private int back = 0;  // 書き込み側のスロット（書き込み側だけが触る）
+	private int front = 2; // 読み出し側のスロット（読み出し側だけが触る）
+
+	/**
+	 * @param factory スロットの中身を作る
+	 */
+	TripleBuffer(Supplier<T> factory) {
+		for (int n = 0; n < slots.length; n++) {
+			slots[n] = factory.get();
+		}
+	}
+
+	/**
+	 * 書き込み側: 次に公開するスロットを返す
+	 */
+	@SuppressWarnings("unchecked")
+	T back() {
+		return (T)slots[back];
+	}
+
+	/**
+	 * 書き込み側: back() に書いた内容を公開する
+	 */
+	void publish() {
+		back = middle.getAndSet(back | FRESH) & INDEX;
+	}
+
+	/**
+	 * 読み出し側: 前回の poll() 以降に公開されたものがあれば受け取る
+	 * 受け取ったものは次の poll() まで書き換えられない。
+	 * @return 最後に公開されたもの（新しいものがなければ null）
+	 */
+	@SuppressWarnings("unchecked")
+	T poll() {
+		if ((middle.get() & FRESH) == 0) return null;
+		front = middle.getAndSet(front) & INDEX;
+		return (T)slots[front];
+	}
+}
@@ -0,0 +1,20 @@
+package bml2;
+
+/**
+ * Twitter に投稿する通知先
+ *
+ * 投稿はネットワークを待つので、必ず AsyncNotifier で包んで使う。
+ * MyTwitter.initialize() は PIN を標準入力から読むので、シミュレーションを始める前に呼んでおく。
+ * 初期化していなければ何も投稿しない。
+ */
+class TwitterNotifier implements Notifier {
+	/**
+	 * ツイートの最大の長さ
+	 */
+	static final int MAX_LENGTH = 140;
+
+	@Override
+	public void post(String message) {
+		MyTwitter.tweet(message);
+	}
+}
@@ -0,0 +1,300 @@
+package bml2;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * SIMD 命令で動かす拡張BMLモデル
+ *
+ * 格子を行優先の byte 配列（サイト (i, j) は j*L+i）で持ち、ExtendedBML の更新式を
+ * 1行ずつ LatticeKernel で計算する。jdk.incubator.vector が使えれば AVX2/AVX-512 の幅で処理し、
+ * 使えなければスカラーの処理になる（結果は同じ）。
+ *
+ * スロースタート効果で留まるサイトは、各行で 64 サイトごとに BernoulliMask から作る。
+ * 状態のハッシュ値は変化したサイトを追わず、stateHash() を呼んだときに計算する。
+ */
+public class VectorBML implements BMLModel {
+	private byte[] x, y;   // 横方向・縦方向の車 [j*L+i]
+	private byte[] nx, ny; // 次のステップの書き込み先（参照の交換で使い回す）
+	private byte[] mv;     // 縦方向の移動マスク [j*L+i]
+	private byte[] mrow;   // 横方向の移動マスク（1行分）
+	private long[] stay;   // 1行分の留まるサイト
+	private int L; // 正方格子の一辺の数
+	private int k; // 最小密度の倍数定数
+	private int tau = 1; // 信号機の周期
+	private double P = 1.0; // スロースタート効果
+	private int current = 0; // 現在の段階
+	private RandomGenerator random; // インスタンスごとの乱数生成器
+	private BernoulliMask stayMask = new BernoulliMask(0.0); // スロースタート効果で留まる車（確率 1-P）
+	private final LatticeKernel kernel = LatticeKernel.create();
+
+	/**
+	 * コンストラクタ
+	 * @param L 正方格子の一辺の数（正の偶数）
+	 * @param k 最小密度の倍数定数（ρ=k*ρmin）
+	 */
+	VectorBML(int L, int k) {
+		random = new Xoshiro256();
+
+		if (L <= 0 || L % 2 != 0) {
+			System.out.println("[err] Lは正の偶数でなければなりません。");
+			System.exit(1);
+		}
+		if (k < 1 || L/2 < k) {
+			System.out.println("[err] kは1以上L/2以下でなければなりません。");
+			System.exit(1);
+		}
+
+		this.L = L;
+		this.k = k;
+		x = new byte[L * L];
+		y = new byte[L * L];
+		nx = new byte[L * L];
+		ny = new byte[L * L];
+		mv = new byte[L * L];
+		mrow = new byte[L];
+		stay = new long[(L + 63) / 64];
+	}
+
+	/**
+	 * 乱数のシード値を指定するコンストラクタ
+	 * @param L
+	 * @param k
+	 * @param 乱数のシード値
+	 */
+	VectorBML(int L, int k, long seed) {
+		this(L, k);
+		random = new Xoshiro256(seed);
+	}
+
+	/**
+	 * 使っている更新処理の名前（"scalar", "simd256" など）
+	 */
+	public String getKernelName() {
+		return kernel.name();
+	}
+
+	@Override
+	public void setRandom(RandomGenerator random) {
+		this.random = random;
+	}
+
+	@Override
+	public int getL() {
+		return L;
+	}
+
+	@Override
+	public int getN() {
+		return 2 * k * L;
+	}
+
+	@Override
+	public int getK() {
+		return k;
+	}
+
+	@Override
+	public int getTau() {
+		return tau;
+	}
+
+	@Override
+	public double getP() {
+		return P;
+	}
+
+	@Override
+	public int getCurrent() {
+		return current;
+	}
+
+	@Override
+	public void setTau(int tau) {
+		if (tau <= 0) {
+			System.out.println("[err] 信号機の周期 tau は1以上でなければなりません。");
+		} else {
+			this.tau = tau;
+		}
+	}
+
+	@Override
+	public void setP(double P) {
+		if (P < 0 || 1 < P) {
+			System.out.println("[err] スロースタート効果 P は0以上1以下でなければなりません。");
+		} else {
+			this.P = P;
+			stayMask = new BernoulliMask(1.0 - P);
+		}
+	}
+
+	@Override
+	public void initialize() throws Exception {
+		current = 0; // リセット
+
+		Arrays.fill(x, (byte)0);
+		Arrays.fill(y, (byte)0);
+		InitialPlacement.place(L, k, random, (i, j, horizontal) -> {
+			if (horizontal) {
+				x[j*L + i] = 1;
+			} else {
+				y[j*L + i] = 1;
+			}
+		});
+	}
+
+	@Override
+	public void setState(int[][] siteX, int[][] siteY, int current) {
+		for (int i = 0; i < L; i++) {
+			for (int j = 0; j < L; j++) {
+				x[j*L + i] = (byte)(siteX[i][j] & 1);
+				y[j*L + i] = (byte)(siteY[i][j] & 1);
+			}
+		}
+		this.current = current;
+	}
+
+	/**
+	 * 乱数生成器の状態（4個）と、持ち越している間隔を返す
+	 */
+	@Override
+	public long[] getAuxState() {
+		if (!(random instanceof Xoshiro256)) return null;
+		long[] aux = new long[5];
+		((Xoshiro256)random).saveState(aux, 0);
+		aux[4] = stayMask.getGap();
+		return aux;
+	}
+
+	@Override
+	public void setAuxState(long[] aux) {
+		if (aux.length != 5) {
+			throw new IllegalArgumentException("内部状態の長さが違います: " + aux.length);
+		}
+		if (!(random instanceof Xoshiro256)) random = new Xoshiro256();
+		((Xoshiro256)random).loadState(aux, 0);
+		stayMask.setGap(aux[4]);
+	}
+
+	/**
+	 * 状態 (siteX, siteY, current) のハッシュ値を返す
+	 * 格子全体から計算するので O(L^2) かかる（CycleDetector は周期の区切りでだけ呼び出す）。
+	 */
+	@Override
+	public long stateHash() {
+		long hash = StateHash.phase(current);
+		for (int j = 0; j < L; j++) {
+			for (int i = 0; i < L; i++) {
+				if (x[j*L + i] != 0) hash ^= StateHash.cell(StateHash.X, i, j);
+				if (y[j*L + i] != 0) hash ^= StateHash.cell(StateHash.Y, i, j);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * 描画のために系の状態を与える
+	 * ExtendedBML と同じ [i][j] 形式の配列を新しく作って返す。
+	 */
+	@Override
+	public int[][][] getSites() {
+		int[][] siteX = new int[L][L];
+		int[][] siteY = new int[L][L];
+		for (int j = 0; j < L; j++) {
+			for (int i = 0; i < L; i++) {
+				siteX[i][j] = x[j*L + i];
+				siteY[i][j] = y[j*L + i];
+			}
+		}
+		return new int[][][] {siteX, siteY};
+	}
+
+	@Override
+	public void getRow(int j, long[] x, long[] y) {
+		Arrays.fill(x, 0, (L + 63) / 64, 0);
+		Arrays.fill(y, 0, (L + 63) / 64, 0);
+		for (int i = 0; i < L; i++) {
+			x[i >>> 6] |= (long)this.x[j*L + i] << i;
+			y[i >>> 6] |= (long)this.y[j*L + i] << i;
+		}
+	}
+
+	@Override
+	public int move() {
+		int count;
+		if (current == 0) {
+			count = moveHorizontal(true);
+		} else if (current < tau) {
+			count = moveHorizontal(false);
+		} else if (current == tau) {
+			count = moveVertical(true);
+		} else {
+			count = moveVertical(false);
+		}
+
+		current++;
+		if (current == 2 * tau) {
+			current = 0;
+		}
+
+		return count;
+	}
+
+	@Override
+	public void move1period() {
+		for (int i = 0; i < 2 * tau; i++) {
+			move();
+		}
+	}
+
+	/**
+	 * 1行分の留まるサイトを作る
+	 * @return 留まるサイトのビット列（スロースタート効果がなければ null）
+	 */
+	private long[] nextStay(boolean ss) {
+		if (!ss || P == 1.0) return null;
+		for (int w = 0; w < stay.length; w++) {
+			stay[w] = stayMask.next(random);
+		}
+		return stay;
+	}
+
+	/**
+	 * 横方向の車を１ステップ動かす
+	 * 偶数行は右向き（i+1）、奇数行は左向き（i-1）。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveHorizontal(boolean ss) {
+		int count = 0;
+		for (int j = 0; j < L; j++) {
+			count += kernel.horizontalRow(x, y, nx, j*L, L, j % 2 == 0, nextStay(ss), mrow);
+		}
+
+		byte[] t = x; x = nx; nx = t;
+		return count;
+	}
+
+	/**
+	 * 縦方向の車を１ステップ動かす
+	 * 偶数列は上向き（j-1）、奇数列は下向き（j+1）。
+	 * @param ss スロースタート効果を適用する場合、true
+	 * @return そのステップで動いた車の数
+	 */
+	private int moveVertical(boolean ss) {
+		int count = 0;
+		for (int j = 0; j < L; j++) {
+			int up = (j == 0 ? L-1 : j-1) * L;
+			int down = (j == L-1 ? 0 : j+1) * L;
+			count += kernel.verticalMask(x, y, j*L, up, down, L, nextStay(ss), mv);
+		}
+		for (int j = 0; j < L; j++) {
+			int up = (j == 0 ? L-1 : j-1) * L;
+			int down = (j == L-1 ? 0 : j+1) * L;
+			kernel.verticalApply(y, mv, ny, j*L, up, down, L);
+		}
+
+		byte[] t = y; y = ny; ny = t;
+		return count;
+	}
+}
@@ -0,0 +1,101 @@
+package bml2;
+
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * xoshiro256** 乱数生成器
+ *
+ * java.util.Random と違って同期を取らず、インスタンスごとに独立した状態を持つ。
+ * シード値からの初期化と、(シード値, 系列番号) からの系列の導出には SplitMix64 を使う。
+ */
+public class Xoshiro256 implements RandomGenerator {
+	private long s0, s1, s2, s3;
+
+	/**
+	 * シード値を自動で決めるコンストラクタ
+	 */
+	public Xoshiro256() {
+		this(new SplittableRandom().nextLong());
+	}
+
+	/**
+	 * シード値を指定するコンストラクタ
+	 * @param seed 乱数のシード値
+	 */
+	public Xoshiro256(long seed) {
+		setSeed(seed);
+	}
+
+	/**
+	 * シード値から系列番号 stream 番目の乱数系列を作る
+	 * 同じ (seed, stream) からは常に同じ系列が得られる。
+	 * @param seed 基になるシード値
+	 * @param stream 系列番号
+	 */
+	public static Xoshiro256 stream(long seed, long stream) {
+		return new Xoshiro256(mix(seed, stream));
+	}
+
+	/**
+	 * 2つの値から新しいシード値を導出する（SplitMix64 の出力関数）
+	 */
+	public static long mix(long seed, long stream) {
+		return mix64(mix64(seed) + 0x9E3779B97F4A7C15L * (stream + 1));
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * シード値を設定し直す
+	 * @param seed 乱数のシード値
+	 */
+	public void setSeed(long seed) {
+		long z = seed;
+		s0 = mix64(z += 0x9E3779B97F4A7C15L);
+		s1 = mix64(z += 0x9E3779B97F4A7C15L);
+		s2 = mix64(z += 0x9E3779B97F4A7C15L);
+		s3 = mix64(z += 0x9E3779B97F4A7C15L);
+		if ((s0 | s1 | s2 | s3) == 0) s0 = 1;
+	}
+
+	/**
+	 * 内部状態を dst[off] から4個の long に書き出す（チェックポイント用）
+	 */
+	public void saveState(long[] dst, int off) {
+		dst[off] = s0;
+		dst[off + 1] = s1;
+		dst[off + 2] = s2;
+		dst[off + 3] = s3;
+	}
+
+	/**
+	 * saveState() で書き出した内部状態を src[off] から読み込む
+	 */
+	public void loadState(long[] src, int off) {
+		s0 = src[off];
+		s1 = src[off + 1];
+		s2 = src[off + 2];
+		s3 = src[off + 3];
+		if ((s0 | s1 | s2 | s3) == 0) s0 = 1;
+	}
+
+	@Override
+	public long nextLong() {
+		final long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		final long t = s1 << 17;
+
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+
+		return result;
+	}
+}
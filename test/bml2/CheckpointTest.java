@@ -0,0 +1,85 @@
+package bml2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * 保存した状態から再開すると、保存せずに動かし続けた場合と同じ時間発展になること
+ */
+class CheckpointTest {
+
+	@TempDir
+	Path dir;
+
+	private static List<BMLModel> engines(int L, int k, long seed) {
+		return List.of(new ExtendedBML(L, k, seed), new BitboardBML(L, k, seed), new SparseBML(L, k, seed),
+				new VectorBML(L, k, seed), new OffHeapBML(L, k, seed));
+	}
+
+	private static void init(BMLModel bml) throws Exception {
+		bml.setTau(3);
+		bml.setP(0.5);
+		bml.initialize();
+	}
+
+	@Test
+	void resumesSameTrajectory() throws Exception {
+		for (int L : new int[] {2, 64, 100}) {
+			int k = Math.max(1, L / 4);
+			List<BMLModel> original = engines(L, k, 5L);
+			List<BMLModel> restored = engines(L, k, 99L);
+			for (int e = 0; e < original.size(); e++) {
+				BMLModel a = original.get(e), b = restored.get(e);
+				String name = a.getClass().getSimpleName() + " L=" + L;
+				init(a);
+				init(b);
+				// 周期の途中で保存する
+				for (int t = 0; t < 41; t++) a.move();
+				Path file = dir.resolve(name.replace(' ', '_') + ".ckpt");
+				Checkpoint.save(a, file, 41, true);
+
+				Checkpoint c = Checkpoint.load(b, file);
+				assertEquals(41, c.step, name);
+				assertTrue(c.warmedUp, name);
+				assertEquals(a.getCurrent(), b.getCurrent(), name);
+				assertEquals(a.stateHash(), b.stateHash(), name);
+				assertArrayEquals(a.getSites(), b.getSites(), name);
+				for (int t = 0; t < 60; t++) {
+					assertEquals(a.move(), b.move(), name + " t=" + t);
+					assertEquals(a.stateHash(), b.stateHash(), name + " t=" + t);
+				}
+				assertArrayEquals(a.getSites(), b.getSites(), name);
+			}
+		}
+	}
+
+	@Test
+	void rejectsOtherEngineAndTruncatedFile() throws Exception {
+		BMLModel bitboard = new BitboardBML(64, 8, 1L);
+		init(bitboard);
+		Path file = dir.resolve("bitboard.ckpt");
+		Checkpoint.save(bitboard, file, 0, false);
+
+		BMLModel sparse = new SparseBML(64, 8, 1L);
+		init(sparse);
+		assertThrows(IOException.class, () -> Checkpoint.load(sparse, file));
+
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ch.truncate(ch.size() - 8);
+		}
+		BMLModel other = new BitboardBML(64, 8, 2L);
+		init(other);
+		assertThrows(IOException.class, () -> Checkpoint.load(other, file));
+	}
+}
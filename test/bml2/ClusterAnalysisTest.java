@@ -0,0 +1,76 @@
+package bml2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * エンジンから行を読んで解析した結果が、getSites() の配列を解析した結果と同じになること
+ */
+class ClusterAnalysisTest {
+
+	private static List<BMLModel> engines(int L, int k, long seed) {
+		return List.of(new ExtendedBML(L, k, seed), new BitboardBML(L, k, seed),
+				new SparseBML(L, k, seed), new VectorBML(L, k, seed), new OffHeapBML(L, k, seed));
+	}
+
+	private static void assertSameResult(ClusterAnalysis expected, ClusterAnalysis actual, String name) {
+		assertEquals(expected.getClusters(), actual.getClusters(), name);
+		assertEquals(expected.getLargest(), actual.getLargest(), name);
+		assertEquals(expected.getOccupied(), actual.getOccupied(), name);
+		assertEquals(expected.wrapsX(), actual.wrapsX(), name);
+		assertEquals(expected.wrapsY(), actual.wrapsY(), name);
+		assertArrayEquals(expected.getHistogram(), actual.getHistogram(), name);
+	}
+
+	@Test
+	void rowsMatchSites() throws Exception {
+		// L = 100 は1行が2ワードで、最終ワードは一部だけ使う
+		for (int L : new int[] {2, 64, 100}) {
+			for (int k : new int[] {1, L / 4, L / 2}) {
+				if (k < 1) continue;
+				for (BMLModel bml : engines(L, k, 11L)) {
+					bml.setTau(2);
+					bml.setP(0.5);
+					bml.initialize();
+					ClusterAnalysis fromSites = new ClusterAnalysis(L);
+					ClusterAnalysis fromRows = new ClusterAnalysis(L);
+					for (int t = 0; t < 40; t++) {
+						bml.move();
+						int[][][] sites = bml.getSites();
+						fromSites.analyze(sites[0], sites[1]);
+						fromRows.analyze(bml);
+						assertSameResult(fromSites, fromRows,
+								bml.getClass().getSimpleName() + " L=" + L + " k=" + k + " t=" + t);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void parallelMatchesSequential() throws Exception {
+		int L = 256;
+		BMLModel bml = new BitboardBML(L, 90, 3L);
+		bml.setTau(2);
+		bml.setP(0.5);
+		bml.initialize();
+		for (int t = 0; t < 4 * L; t++) bml.move();
+
+		ClusterAnalysis sequential = new ClusterAnalysis(L);
+		sequential.analyze(bml);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ClusterAnalysis parallel = new ClusterAnalysis(L);
+			parallel.setPool(pool);
+			parallel.analyze(bml);
+			assertSameResult(sequential, parallel, "threads=4");
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package bml2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 周期を使って飛ばした場合の動いた車の数の合計が、すべてのステップを動かした場合と同じになること
+ */
+class CycleDetectorTest {
+	private static final long STEPS = 20000;
+
+	private static BMLModel engine(int L, int k, int tau, double P, long seed) throws Exception {
+		BMLModel bml = new BitboardBML(L, k, seed);
+		bml.setTau(tau);
+		bml.setP(P);
+		bml.initialize();
+		return bml;
+	}
+
+	private static long bruteForce(BMLModel bml, long steps) {
+		long total = 0;
+		for (long s = 0; s < steps; s++) total += bml.move();
+		return total;
+	}
+
+	@Test
+	void skippingMatchesBruteForce() throws Exception {
+		int L = 32;
+		int cyclic = 0;
+		for (double P : new double[] {0.0, 1.0, 0.5}) {
+			for (int tau : new int[] {1, 2, 3}) {
+				for (int k = 1; k <= L / 2; k += 3) {
+					long seed = 1000L * k + tau;
+					CycleDetector det = new CycleDetector(engine(L, k, tau, P, seed), tau, P);
+					// 周期が見つかった後に周期の途中から始まるように、半端なステップ数を挟む
+					long total = det.advance(STEPS / 2 + 1) + det.advance(STEPS / 2 - 1);
+					String name = "k=" + k + " tau=" + tau + " P=" + P;
+					assertEquals(bruteForce(engine(L, k, tau, P, seed), STEPS), total, name);
+					if (det.isCyclic()) {
+						cyclic++;
+						assertEquals(0, det.cycleLength() % (2 * tau), name);
+					}
+				}
+			}
+		}
+		// 少なくとも一部の条件では周期を使って飛ばしている
+		assertTrue(cyclic > 0);
+	}
+}
@@ -0,0 +1,168 @@
+package bml2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * 同じシード値のエンジンが1ステップずつ同じ時間発展をすること
+ *
+ * stateHash() はエンジンの種類によって計算のしかたが違う（サイト単位とワード単位）ので、
+ * 種類の違うエンジンは getSites() と動いた車の数で比べる。
+ * ExtendedBML は行・列ごとに乱数系列を持つので、他のエンジンと一致するのは乱数を使わない P = 1 のときだけである。
+ */
+class EngineEquivalenceTest {
+	// L = 100 は1行が2ワードで、最終ワードは一部だけ使う
+	static final int[] SIZES = {2, 64, 100};
+	static final int[] TAUS = {1, 3};
+	static final int STEPS = 120;
+
+	static int[] densities(int L) {
+		return new int[] {1, Math.max(1, L / 6), L / 2};
+	}
+
+	static void init(BMLModel bml, int tau, double P) throws Exception {
+		bml.setTau(tau);
+		bml.setP(P);
+		bml.initialize();
+	}
+
+	/**
+	 * 2つのエンジンを STEPS ステップ動かし、毎ステップ状態と動いた車の数を比べる
+	 * @param sameHash stateHash() も比べるなら true（同じ計算のしかたのエンジンどうし）
+	 */
+	static void assertSameEvolution(BMLModel expected, BMLModel actual, boolean sameHash, String name) {
+		assertArrayEquals(expected.getSites(), actual.getSites(), name + " t=0");
+		for (int t = 1; t <= STEPS; t++) {
+			assertEquals(expected.move(), actual.move(), name + " moved t=" + t);
+			assertEquals(expected.getCurrent(), actual.getCurrent(), name + " current t=" + t);
+			if (sameHash) {
+				assertEquals(expected.stateHash(), actual.stateHash(), name + " hash t=" + t);
+			}
+			if (t % 10 == 0 || t == STEPS) {
+				assertArrayEquals(expected.getSites(), actual.getSites(), name + " t=" + t);
+			}
+		}
+	}
+
+	@Test
+	void bitboardMatchesArrayWithoutSlowStart() throws Exception {
+		for (int L : SIZES) {
+			for (int k : densities(L)) {
+				for (int tau : TAUS) {
+					long seed = 31L * L + k;
+					BMLModel array = new ExtendedBML(L, k, seed);
+					BMLModel bitboard = new BitboardBML(L, k, seed);
+					init(array, tau, 1.0);
+					init(bitboard, tau, 1.0);
+					assertSameEvolution(array, bitboard, false, "L=" + L + " k=" + k + " tau=" + tau);
+				}
+			}
+		}
+	}
+
+	@Test
+	void sparseMatchesBitboardWithoutSlowStart() throws Exception {
+		for (int L : SIZES) {
+			for (int k : densities(L)) {
+				for (int tau : TAUS) {
+					long seed = 17L * L + k;
+					BMLModel bitboard = new BitboardBML(L, k, seed);
+					BMLModel sparse = new SparseBML(L, k, seed);
+					init(bitboard, tau, 1.0);
+					init(sparse, tau, 1.0);
+					assertSameEvolution(bitboard, sparse, false, "L=" + L + " k=" + k + " tau=" + tau);
+				}
+			}
+		}
+	}
+
+	@Test
+	void pooledLanesMatchSerialLanes() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int L : SIZES) {
+				for (int k : densities(L)) {
+					for (double P : new double[] {0.0, 0.5, 1.0}) {
+						long seed = 7L * L + k;
+						ExtendedBML serial = new ExtendedBML(L, k, seed);
+						ExtendedBML pooled = new ExtendedBML(L, k, seed);
+						pooled.setPool(pool);
+						init(serial, 2, P);
+						init(pooled, 2, P);
+						assertSameEvolution(serial, pooled, true, "L=" + L + " k=" + k + " P=" + P);
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void vectorMatchesBitboardWithoutSlowStart() throws Exception {
+		// スロースタート効果の乱数は、BitboardBML は動ける車のあるワードだけ、VectorBML はすべてのワードで使う
+		for (int L : SIZES) {
+			for (int k : densities(L)) {
+				for (int tau : TAUS) {
+					long seed = 11L * L + k;
+					BMLModel bitboard = new BitboardBML(L, k, seed);
+					BMLModel vector = new VectorBML(L, k, seed);
+					init(bitboard, tau, 1.0);
+					init(vector, tau, 1.0);
+					assertSameEvolution(bitboard, vector, false, "L=" + L + " k=" + k + " tau=" + tau);
+				}
+			}
+		}
+	}
+
+	@Test
+	void simdVectorMatchesScalarVector() throws Exception {
+		// surefire の argLine で jdk.incubator.vector を加えているので SimdKernel が使われる
+		assertTrue(new VectorBML(2, 1).getKernelName().startsWith("simd"));
+		for (int L : SIZES) {
+			for (int k : densities(L)) {
+				long seed = 13L * L + k;
+				VectorBML vector = new VectorBML(L, k, seed);
+				VectorBML scalar;
+				System.setProperty("bml2.simd", "false");
+				try {
+					scalar = new VectorBML(L, k, seed);
+				} finally {
+					System.clearProperty("bml2.simd");
+				}
+				assertEquals("scalar", scalar.getKernelName());
+				init(vector, 2, 0.5);
+				init(scalar, 2, 0.5);
+				assertSameEvolution(scalar, vector, true, "L=" + L + " k=" + k);
+			}
+		}
+	}
+
+	@Test
+	void offHeapMatchesBitboard(@TempDir Path dir) throws Exception {
+		for (int L : SIZES) {
+			for (int k : densities(L)) {
+				// タイルの行数は1行、半端な行数、格子全体、既定値。格子はダイレクトバッファとメモリマップ
+				for (int tileRows : new int[] {1, 3, L, 0}) {
+					for (Path place : new Path[] {null, dir}) {
+						long seed = 19L * L + k;
+						BMLModel bitboard = new BitboardBML(L, k, seed);
+						BMLModel offHeap = new OffHeapBML(L, k, place, tileRows);
+						offHeap.setRandom(new Xoshiro256(seed));
+						init(bitboard, 2, 0.5);
+						init(offHeap, 2, 0.5);
+						assertSameEvolution(bitboard, offHeap, true,
+								"L=" + L + " k=" + k + " tileRows=" + tileRows + " mapped=" + (place != null));
+					}
+				}
+			}
+		}
+	}
+}
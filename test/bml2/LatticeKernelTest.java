@@ -0,0 +1,79 @@
+package bml2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * SimdKernel が ScalarKernel と同じ結果を返すこと
+ * ベクトルの幅の倍数でない L や、行の端の巡回も含めて比べる。
+ */
+class LatticeKernelTest {
+	private static final int[] SIZES = {2, 30, 64, 100, 130, 258};
+
+	private final LatticeKernel scalar = new ScalarKernel();
+	private final LatticeKernel simd = new SimdKernel();
+
+	/**
+	 * 横方向・縦方向の車が重ならないように、ランダムに配置する
+	 */
+	private static byte[][] lattice(int L, SplittableRandom random) {
+		byte[] x = new byte[L * L];
+		byte[] y = new byte[L * L];
+		for (int s = 0; s < L * L; s++) {
+			int r = random.nextInt(3);
+			if (r == 1) x[s] = 1;
+			if (r == 2) y[s] = 1;
+		}
+		return new byte[][] {x, y};
+	}
+
+	private static long[] stay(int L, SplittableRandom random) {
+		long[] stay = new long[(L + 63) / 64];
+		for (int w = 0; w < stay.length; w++) stay[w] = random.nextLong();
+		return stay;
+	}
+
+	@Test
+	void horizontalRowMatchesScalar() {
+		SplittableRandom random = new SplittableRandom(1);
+		for (int L : SIZES) {
+			byte[][] s = lattice(L, random);
+			for (int j = 0; j < L; j++) {
+				long[] stay = (j % 3 == 0) ? null : stay(L, random);
+				byte[] out1 = new byte[L * L], out2 = new byte[L * L];
+				int c1 = scalar.horizontalRow(s[0], s[1], out1, j * L, L, j % 2 == 0, stay, new byte[L]);
+				int c2 = simd.horizontalRow(s[0], s[1], out2, j * L, L, j % 2 == 0, stay, new byte[L]);
+				assertEquals(c1, c2, "L=" + L + " j=" + j);
+				assertArrayEquals(out1, out2, "L=" + L + " j=" + j);
+			}
+		}
+	}
+
+	@Test
+	void verticalMatchesScalar() {
+		SplittableRandom random = new SplittableRandom(2);
+		for (int L : SIZES) {
+			byte[][] s = lattice(L, random);
+			byte[] mv1 = new byte[L * L], mv2 = new byte[L * L];
+			for (int j = 0; j < L; j++) {
+				int up = (j == 0 ? L-1 : j-1) * L, down = (j == L-1 ? 0 : j+1) * L;
+				long[] stay = (j % 3 == 0) ? null : stay(L, random);
+				int c1 = scalar.verticalMask(s[0], s[1], j * L, up, down, L, stay, mv1);
+				int c2 = simd.verticalMask(s[0], s[1], j * L, up, down, L, stay, mv2);
+				assertEquals(c1, c2, "L=" + L + " j=" + j);
+			}
+			assertArrayEquals(mv1, mv2, "L=" + L);
+			byte[] out1 = new byte[L * L], out2 = new byte[L * L];
+			for (int j = 0; j < L; j++) {
+				int up = (j == 0 ? L-1 : j-1) * L, down = (j == L-1 ? 0 : j+1) * L;
+				scalar.verticalApply(s[1], mv1, out1, j * L, up, down, L);
+				simd.verticalApply(s[1], mv1, out2, j * L, up, down, L);
+			}
+			assertArrayEquals(out1, out2, "L=" + L);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package bml2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 各レプリカが、同じシード値で1回ずつ動かしたエンジンと同じ時間発展をすること
+ * スロースタート効果の乱数の使い方は異なるので、乱数を使わない P = 1 で比べる。
+ */
+class ReplicaBMLTest {
+
+	@Test
+	void replicasMatchSingleTrials() throws Exception {
+		for (int L : new int[] {2, 64, 100}) {
+			for (int k : new int[] {1, Math.max(1, L / 6), L / 2}) {
+				for (int tau : new int[] {1, 3}) {
+					int replicas = (L == 2) ? 3 : ReplicaBML.MAX_REPLICAS;
+					long[] seeds = new long[replicas];
+					BMLModel[] single = new BMLModel[replicas];
+					for (int r = 0; r < replicas; r++) {
+						seeds[r] = 1000L * L + 37L * r + k;
+						single[r] = new BitboardBML(L, k, seeds[r]);
+						single[r].setTau(tau);
+						single[r].setP(1.0);
+						single[r].initialize();
+					}
+					ReplicaBML rep = new ReplicaBML(L, k, replicas);
+					rep.setTau(tau);
+					rep.setP(1.0);
+					rep.initialize(seeds);
+
+					String name = "L=" + L + " k=" + k + " tau=" + tau;
+					for (int t = 1; t <= 80; t++) {
+						long total = rep.move();
+						long expectedTotal = 0;
+						int[] moved = rep.getMoved();
+						for (int r = 0; r < replicas; r++) {
+							int m = single[r].move();
+							expectedTotal += m;
+							assertEquals(m, moved[r], name + " r=" + r + " t=" + t);
+						}
+						assertEquals(expectedTotal, total, name + " t=" + t);
+					}
+					for (int r = 0; r < replicas; r++) {
+						assertArrayEquals(single[r].getSites(), rep.getSites(r), name + " r=" + r);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package bml2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * ResultCache のジャーナルに2つの書き込み手が同時に書かないこと
+ */
+class ResultCacheTest {
+	private static final long VERSION = ResultCache.versionHash("test");
+
+	@TempDir
+	Path dir;
+
+	private static ResultCache.Key key(int k) {
+		return new ResultCache.Key(256, k, 1, 0.5, 1L, 5000, 2000, VERSION);
+	}
+
+	private static SimulationResult result(int k) {
+		return new SimulationResult(1.0 / k, 0.01, 5000, 2000);
+	}
+
+	@Test
+	void secondWriterInSameJvmIsRejected() throws IOException {
+		Path file = dir.resolve("cache.journal");
+		try (ResultCache first = new ResultCache(file, 16)) {
+			assertThrows(IOException.class, () -> new ResultCache(file, 16));
+			for (int k = 1; k <= 3; k++) first.put(key(k), result(k));
+		}
+		try (ResultCache reopened = new ResultCache(file, 16)) {
+			assertEquals(3, reopened.size());
+			for (int k = 1; k <= 3; k++) {
+				SimulationResult r = reopened.get(key(k));
+				assertNotNull(r);
+				assertEquals(1.0 / k, r.v);
+			}
+		}
+	}
+
+	@Test
+	void secondWriterInAnotherProcessIsRejected() throws Exception {
+		Path file = dir.resolve("cache.journal");
+		Process holder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), Holder.class.getName(), file.toString())
+				.redirectErrorStream(true).start();
+		try {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(holder.getInputStream(), StandardCharsets.UTF_8));
+			assertEquals("locked", in.readLine());
+			assertThrows(IOException.class, () -> new ResultCache(file, 16));
+		} finally {
+			// 標準入力を閉じると、書き込んで終わる
+			holder.getOutputStream().close();
+			assertEquals(0, holder.waitFor());
+		}
+
+		try (ResultCache second = new ResultCache(file, 16)) {
+			for (int k = 4; k <= 6; k++) second.put(key(k), result(k));
+		}
+		try (ResultCache reopened = new ResultCache(file, 16)) {
+			assertEquals(6, reopened.size());
+			for (int k = 1; k <= 6; k++) {
+				assertNotNull(reopened.get(key(k)), "k = " + k);
+			}
+		}
+	}
+
+	/**
+	 * 別のプロセスでジャーナルを開いておき、標準入力が閉じたら k = 1..3 を書いて閉じる
+	 */
+	static class Holder {
+		public static void main(String[] args) throws IOException {
+			try (ResultCache cache = new ResultCache(Paths.get(args[0]), 16)) {
+				System.out.println("locked");
+				System.out.flush();
+				while (System.in.read() >= 0) {
+					// 閉じられるまで待つ
+				}
+				for (int k = 1; k <= 3; k++) cache.put(key(k), result(k));
+			}
+		}
+	}
+}
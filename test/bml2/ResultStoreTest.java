@@ -0,0 +1,78 @@
+package bml2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * ResultStore の保存先に2つの書き込み手が同時に追記しないこと
+ */
+class ResultStoreTest {
+
+	@TempDir
+	Path dir;
+
+	private static void append(ResultStore store, int k) throws IOException {
+		store.append(256, k, 1, 0.5, k, 7000, 1.0 / k, 0.01, 0.1);
+	}
+
+	@Test
+	void secondWriterInSameJvmIsRejected() throws IOException {
+		try (ResultStore first = ResultStore.open(dir)) {
+			assertThrows(IOException.class, () -> ResultStore.open(dir));
+			for (int k = 1; k <= 3; k++) append(first, k);
+		}
+		try (ResultStore reopened = ResultStore.open(dir)) {
+			assertEquals(3, reopened.size());
+		}
+	}
+
+	@Test
+	void secondWriterInAnotherProcessIsRejected() throws Exception {
+		Process holder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), Holder.class.getName(), dir.toString())
+				.redirectErrorStream(true).start();
+		try {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(holder.getInputStream(), StandardCharsets.UTF_8));
+			assertEquals("locked", in.readLine());
+			assertThrows(IOException.class, () -> ResultStore.open(dir));
+		} finally {
+			// 標準入力を閉じると、追記して終わる
+			holder.getOutputStream().close();
+			assertEquals(0, holder.waitFor());
+		}
+
+		try (ResultStore second = ResultStore.open(dir)) {
+			for (int k = 4; k <= 6; k++) append(second, k);
+		}
+		try (ResultStore reopened = ResultStore.open(dir)) {
+			assertEquals(6, reopened.size());
+		}
+	}
+
+	/**
+	 * 別のプロセスで保存先を開いておき、標準入力が閉じたら k = 1..3 を追記して閉じる
+	 */
+	static class Holder {
+		public static void main(String[] args) throws IOException {
+			try (ResultStore store = ResultStore.open(Paths.get(args[0]))) {
+				System.out.println("locked");
+				System.out.flush();
+				while (System.in.read() >= 0) {
+					// 閉じられるまで待つ
+				}
+				for (int k = 1; k <= 3; k++) append(store, k);
+			}
+		}
+	}
+}